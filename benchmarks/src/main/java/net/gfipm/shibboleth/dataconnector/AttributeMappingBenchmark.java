@@ -0,0 +1,78 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+import org.gtri.gfipm.bae.v2_0.BackendAttribute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mapping of a BAE response to IdP attributes, over responses of growing size with every other attribute mapped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeMappingBenchmark {
+
+    /** Number of attributes in the response. */
+    @Param({"8", "64", "512"})
+    public int size;
+
+    /** The response. */
+    private Collection<BackendAttribute> response;
+
+    /** The connector doing the mapping. */
+    private GfipmBAEDataConnector connector;
+
+    /** Build the response and the attribute map. */
+    @Setup
+    public void setUp() {
+        response = BenchmarkFixtures.backendAttributes(size);
+        connector = new GfipmBAEDataConnector();
+        connector.setBaeAttributes(BenchmarkFixtures.attributeMap(size));
+    }
+
+    /**
+     * Map the response.
+     *
+     * @return the mapped attributes
+     */
+    @Benchmark
+    public Map<String, IdPAttribute> map() {
+        return connector.mapAttributes(response);
+    }
+}
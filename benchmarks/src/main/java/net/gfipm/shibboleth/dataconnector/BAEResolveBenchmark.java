@@ -0,0 +1,104 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end resolution by the BAE connector, from principal to mapped attributes, against an in-process responder.
+ * With no responder latency this measures the connector's own overhead; with latency and several threads it shows
+ * how the cache, coalescing and bulkhead behave under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BAEResolveBenchmark {
+
+    /** Result cache size, 0 for no cache. */
+    @Param({"0", "10000"})
+    public int cacheSize;
+
+    /** Responder latency in microseconds. */
+    @Param({"0", "1000"})
+    public long latencyMicros;
+
+    /** Attributes returned per subject. */
+    @Param({"16"})
+    public int attributes;
+
+    /** Number of distinct subjects resolved. */
+    @Param({"1000"})
+    public int subjects;
+
+    /** The principals to resolve. */
+    private String[] principals;
+
+    /** The connector. */
+    private GfipmBAEDataConnector connector;
+
+    /**
+     * Initialize the connector.
+     *
+     * @throws Exception if set up fails
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        principals = BenchmarkFixtures.emailPrincipals(subjects);
+        connector = BenchmarkFixtures.baeConnector(attributes, latencyMicros, cacheSize);
+        connector.initialize();
+    }
+
+    /** Destroy the connector. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connector.destroy();
+    }
+
+    /**
+     * Resolve a random subject.
+     *
+     * @return the attributes
+     * @throws Exception if resolution fails
+     */
+    @Benchmark
+    public Map<String, IdPAttribute> resolve() throws Exception {
+        return connector.resolvePrincipal(principals[ThreadLocalRandom.current().nextInt(principals.length)]);
+    }
+}
@@ -0,0 +1,344 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gtri.gfipm.bae.v2_0.BAEServer;
+import org.gtri.gfipm.bae.v2_0.BAEServerInfo;
+import org.gtri.gfipm.bae.v2_0.BackendAttribute;
+import org.gtri.gfipm.bae.v2_0.BackendAttributeValue;
+import org.gtri.gfipm.bae.v2_0.WebServiceRequestOptions;
+import org.opensaml.security.x509.X509Credential;
+
+/**
+ * Shared set up for the benchmarks: principals of each identifier type, generated attribute directories, and a BAE
+ * connector wired to an in-process responder so that no network or signing cost is measured.
+ */
+public final class BenchmarkFixtures {
+
+    /** A PIV-I UUID principal. */
+    public static final String UUID_PRINCIPAL = "urn:uuid:3c6e1a2e-4a07-4bb5-8e0a-6f1c2d3b4a59";
+
+    /** A FASC-N principal. */
+    public static final String FASCN_PRINCIPAL = "D4E739DA739CED39CE739D836858210842108421C84210C3EB";
+
+    /** An e-mail principal. */
+    public static final String EMAIL_PRINCIPAL = "jane.doe@agency.example.gov";
+
+    /** Prefix of the generated backend attribute names. */
+    private static final String ATTRIBUTE_PREFIX = "gfipm:2.0:user:Attribute";
+
+    /** Constructor. */
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Get the principal used for an identifier type.
+     *
+     * @param kind "uuid", "fascn" or "email"
+     * @return the principal
+     */
+    public static String principal(final String kind) {
+        if ("uuid".equals(kind)) {
+            return UUID_PRINCIPAL;
+        } else if ("fascn".equals(kind)) {
+            return FASCN_PRINCIPAL;
+        }
+        return EMAIL_PRINCIPAL;
+    }
+
+    /**
+     * Generate e-mail principals.
+     *
+     * @param count how many
+     * @return the principals
+     */
+    public static String[] emailPrincipals(final int count) {
+        final String[] principals = new String[count];
+        for (int i = 0; i < count; i++) {
+            principals[i] = "user" + i + "@agency.example.gov";
+        }
+        return principals;
+    }
+
+    /**
+     * Generate the attributes a responder returns for a subject.
+     *
+     * @param count how many attributes
+     * @return the attributes
+     */
+    public static Collection<BackendAttribute> backendAttributes(final int count) {
+        final List<BackendAttribute> attributes = new ArrayList<BackendAttribute>(count);
+        for (int i = 0; i < count; i++) {
+            attributes.add(backendAttribute(ATTRIBUTE_PREFIX + i, "value-" + i));
+        }
+        return Collections.unmodifiableList(attributes);
+    }
+
+    /**
+     * Map every other generated backend attribute, so the mapping loop sees both hits and misses.
+     *
+     * @param count how many backend attributes are generated
+     * @return the attribute map
+     */
+    public static List<BAEAttributeNameMap> attributeMap(final int count) {
+        final List<BAEAttributeNameMap> map = new ArrayList<BAEAttributeNameMap>();
+        for (int i = 0; i < count; i += 2) {
+            final BAEAttributeNameMap entry = new BAEAttributeNameMap();
+            entry.QueryName = ATTRIBUTE_PREFIX + i;
+            entry.ReturnName = "attribute" + i;
+            map.add(entry);
+        }
+        return map;
+    }
+
+    /**
+     * Create a BAE connector whose responder answers in-process.
+     *
+     * @param attributeCount how many attributes the responder returns
+     * @param latencyMicros how long the responder takes, in microseconds
+     * @param cacheSize result cache size, 0 for none
+     * @return the connector, not yet initialized
+     */
+    public static GfipmBAEDataConnector baeConnector(final int attributeCount, final long latencyMicros,
+            final int cacheSize) {
+        final BAEServer server = fakeServer(backendAttributes(attributeCount), latencyMicros);
+        final GfipmBAEDataConnector connector = new GfipmBAEDataConnector() {
+            protected BAEServer createBAEServer(final BAEServerInfo serverInfo,
+                    final WebServiceRequestOptions options) {
+                return server;
+            }
+        };
+        final X509Credential credential = credential();
+        connector.setId("benchmarkBAE");
+        connector.setBaeUrl("https://bae.example.org/bae");
+        connector.setBaeEntityId("https://bae.example.org/entity");
+        connector.setMyEntityId("https://idp.example.org/idp/shibboleth");
+        connector.setSubjectId("principal");
+        connector.setX509Key(credential);
+        connector.setX509Trust(credential);
+        connector.setBaeAttributes(attributeMap(attributeCount));
+        connector.setCacheMaxSize(cacheSize);
+        return connector;
+    }
+
+    /**
+     * Create a responder that returns the same attributes for every subject.
+     *
+     * @param attributes what to return
+     * @param latencyMicros how long to take, in microseconds
+     * @return the responder
+     */
+    public static BAEServer fakeServer(final Collection<BackendAttribute> attributes, final long latencyMicros) {
+        return (BAEServer) Proxy.newProxyInstance(BAEServer.class.getClassLoader(), new Class<?>[] {BAEServer.class},
+                new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args)
+                            throws Throwable {
+                        if ("attributeQuery".equals(method.getName())) {
+                            if (latencyMicros > 0) {
+                                TimeUnit.MICROSECONDS.sleep(latencyMicros);
+                            }
+                            return attributes;
+                        }
+                        return defaultAnswer(proxy, method, args);
+                    }
+                });
+    }
+
+    /**
+     * Write a directory of test connector attribute files.
+     *
+     * @param users how many users
+     * @param attributesPerUser how many attributes each has
+     * @return the directory
+     * @throws IOException if the files cannot be written
+     */
+    public static File attributeDirectory(final int users, final int attributesPerUser) throws IOException {
+        final File directory = File.createTempFile("gfipm-bench", "");
+        directory.delete();
+        directory.mkdir();
+        for (final String principal : emailPrincipals(users)) {
+            final FileWriter out = new FileWriter(new File(directory, principal + ".attr"));
+            try {
+                for (int i = 0; i < attributesPerUser; i++) {
+                    out.write("attribute" + i + " :: " + principal + "-value-" + i + "\n");
+                }
+            } finally {
+                out.close();
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Delete a generated directory.
+     *
+     * @param directory the directory
+     */
+    public static void delete(final File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Create a backend attribute.
+     *
+     * @param name the name
+     * @param value the value
+     * @return the attribute
+     */
+    private static BackendAttribute backendAttribute(final String name, final String value) {
+        final BackendAttributeValue attributeValue = (BackendAttributeValue) Proxy.newProxyInstance(
+                BackendAttributeValue.class.getClassLoader(), new Class<?>[] {BackendAttributeValue.class},
+                new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getStringValue".equals(method.getName())) {
+                            return value;
+                        }
+                        return defaultAnswer(proxy, method, args);
+                    }
+                });
+        return (BackendAttribute) Proxy.newProxyInstance(BackendAttribute.class.getClassLoader(),
+                new Class<?>[] {BackendAttribute.class}, new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getName".equals(method.getName())) {
+                            return name;
+                        } else if ("getValue".equals(method.getName())) {
+                            return attributeValue;
+                        }
+                        return defaultAnswer(proxy, method, args);
+                    }
+                });
+    }
+
+    /**
+     * Load the benchmark credential, a self-signed certificate and its key.  The responder is in-process, so the
+     * credential is only there to satisfy the connector's configuration checks.
+     *
+     * @return the credential
+     */
+    private static X509Credential credential() {
+        try {
+            final String pem = readResource("benchmark-credential.pem");
+            final X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(pemBlock(pem, "CERTIFICATE")));
+            final PrivateKey key = KeyFactory.getInstance("RSA")
+                    .generatePrivate(new PKCS8EncodedKeySpec(pemBlock(pem, "PRIVATE KEY")));
+            return (X509Credential) Proxy.newProxyInstance(X509Credential.class.getClassLoader(),
+                    new Class<?>[] {X509Credential.class}, new InvocationHandler() {
+                        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                            if ("getEntityCertificate".equals(method.getName())) {
+                                return certificate;
+                            } else if ("getEntityCertificateChain".equals(method.getName())) {
+                                return Collections.singletonList(certificate);
+                            } else if ("getPrivateKey".equals(method.getName())) {
+                                return key;
+                            } else if ("getPublicKey".equals(method.getName())) {
+                                return certificate.getPublicKey();
+                            }
+                            return defaultAnswer(proxy, method, args);
+                        }
+                    });
+        } catch (final Exception e) {
+            throw new IllegalStateException("Unable to load the benchmark credential", e);
+        }
+    }
+
+    /**
+     * Read a class path resource as text.
+     *
+     * @param name the resource name
+     * @return the content
+     * @throws IOException if it cannot be read
+     */
+    private static String readResource(final String name) throws IOException {
+        final InputStream in = BenchmarkFixtures.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Missing resource " + name);
+        }
+        try {
+            final StringBuilder text = new StringBuilder();
+            final byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                text.append(new String(chunk, 0, read, "US-ASCII"));
+            }
+            return text.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decode one block of a PEM file.
+     *
+     * @param pem the PEM text
+     * @param type the block type
+     * @return the decoded block
+     */
+    private static byte[] pemBlock(final String pem, final String type) {
+        final String begin = "-----BEGIN " + type + "-----";
+        final int start = pem.indexOf(begin) + begin.length();
+        final int end = pem.indexOf("-----END " + type + "-----");
+        return Base64.getMimeDecoder().decode(pem.substring(start, end).trim());
+    }
+
+    /**
+     * Answer the methods every proxy must support.
+     *
+     * @param proxy the proxy
+     * @param method the method called
+     * @param args its arguments
+     * @return the answer
+     */
+    private static Object defaultAnswer(final Object proxy, final Method method, final Object[] args) {
+        if ("equals".equals(method.getName())) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(method.getName())) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(method.getName())) {
+            return proxy.getClass().getInterfaces()[0].getSimpleName() + "@" + System.identityHashCode(proxy);
+        }
+        return null;
+    }
+}
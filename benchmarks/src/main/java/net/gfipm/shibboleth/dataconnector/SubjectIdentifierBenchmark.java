@@ -0,0 +1,77 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gtri.gfipm.bae.v2_0.SubjectIdentifier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Classification of principals into BAE subject identifiers, with and without the classification cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubjectIdentifierBenchmark {
+
+    /** The kind of principal: "uuid", "fascn" or "email". */
+    @Param({"uuid", "fascn", "email"})
+    public String kind;
+
+    /** Classification cache size, 0 to classify every time. */
+    @Param({"0", "1000"})
+    public int cacheSize;
+
+    /** The principal. */
+    private String principal;
+
+    /** The classifier. */
+    private BAESubjectClassifier classifier;
+
+    /** Pick the principal. */
+    @Setup
+    public void setUp() {
+        principal = BenchmarkFixtures.principal(kind);
+        classifier = new BAESubjectClassifier(null, null, null, null, cacheSize);
+    }
+
+    /**
+     * Classify the principal.
+     *
+     * @return the subject identifier
+     */
+    @Benchmark
+    public SubjectIdentifier classify() {
+        return classifier.classify(principal);
+    }
+}
@@ -0,0 +1,121 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolution by the test connector over attribute directories of different sizes, reading a file per resolution,
+ * from the preloaded index, and from a bulk attribute file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TestConnectorResolveBenchmark {
+
+    /** Number of users in the directory. */
+    @Param({"100", "10000", "100000"})
+    public int users;
+
+    /** How the attributes are read: "file", "preload" or "bulk". */
+    @Param({"file", "preload", "bulk"})
+    public String source;
+
+    /** Attributes per user. */
+    @Param({"10"})
+    public int attributesPerUser;
+
+    /** The generated directory. */
+    private File directory;
+
+    /** The generated bulk file, when used. */
+    private File bulkFile;
+
+    /** The principals to resolve. */
+    private String[] principals;
+
+    /** The connector. */
+    private GfipmTestDataConnector connector;
+
+    /**
+     * Generate the directory and initialize the connector.
+     *
+     * @throws Exception if set up fails
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        directory = BenchmarkFixtures.attributeDirectory(users, attributesPerUser);
+        principals = BenchmarkFixtures.emailPrincipals(users);
+        connector = new GfipmTestDataConnector();
+        connector.setId("benchmarkTest");
+        connector.setUidAttribute("uid");
+        connector.setPathToAttributeFiles(directory.getPath() + File.separator);
+        if ("preload".equals(source)) {
+            connector.setPreloadAttributes(true);
+        } else if ("bulk".equals(source)) {
+            bulkFile = File.createTempFile("gfipm-bench", ".bulk");
+            BulkAttributeFile.convert(directory, bulkFile);
+            connector.setPathToBulkAttributeFile(bulkFile.getPath());
+        }
+        connector.initialize();
+    }
+
+    /** Destroy the connector and delete the generated files. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connector.destroy();
+        BenchmarkFixtures.delete(directory);
+        if (bulkFile != null) {
+            bulkFile.delete();
+        }
+    }
+
+    /**
+     * Resolve a random user.
+     *
+     * @return the attributes
+     * @throws Exception if resolution fails
+     */
+    @Benchmark
+    public Map<String, IdPAttribute> resolve() throws Exception {
+        return connector.resolvePrincipal(principals[ThreadLocalRandom.current().nextInt(principals.length)]);
+    }
+}
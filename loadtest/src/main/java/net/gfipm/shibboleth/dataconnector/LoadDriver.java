@@ -0,0 +1,473 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+
+import org.gtri.gfipm.bae.v2_0.BAEServer;
+import org.gtri.gfipm.bae.v2_0.BAEServerCreationException;
+import org.gtri.gfipm.bae.v2_0.BAEServerInfo;
+import org.gtri.gfipm.bae.v2_0.BackendAttribute;
+import org.gtri.gfipm.bae.v2_0.WebServiceRequestOptions;
+import org.opensaml.security.x509.X509Credential;
+
+/**
+ * Drives concurrent resolutions through the BAE connector against a stub responder and reports what happened.
+ *
+ * Settings are system properties:
+ * <ul>
+ * <li>load.mode - "inprocess" to plug {@link StubBAEResponder} in place of the BAE client, or "http" to run the real
+ * client against {@link StubBAEHttpServer} (default inprocess)</li>
+ * <li>load.url - in http mode, a responder already running elsewhere, instead of starting the stub</li>
+ * <li>load.responderCert - with load.url, PEM certificate the responder signs with (default the bundled credential,
+ * which the HTTP stub signs with)</li>
+ * <li>load.threads - concurrent callers (default 32)</li>
+ * <li>load.warmup, load.duration - seconds of warm up and of measurement (default 10 and 60)</li>
+ * <li>load.subjects - distinct subjects, chosen at random (default 10000)</li>
+ * <li>load.thinkMillis - pause between a caller's resolutions (default 0)</li>
+ * <li>load.fixture - attribute fixture for the in-process stub (default the bundled one)</li>
+ * <li>connector.&lt;property&gt; - any connector setting, e.g. -Dconnector.cacheMaxSize=10000</li>
+ * <li>stub.* - the stub's behaviour, see {@link StubBehaviour} and {@link StubBAEHttpServer}</li>
+ * </ul>
+ */
+public final class LoadDriver {
+
+    /** Settings. */
+    private final Properties properties;
+
+    /** Resolution latency while measuring. */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Outcomes while measuring, by kind. */
+    private final ConcurrentMap<String, AtomicLong> outcomes = new ConcurrentHashMap<String, AtomicLong>();
+
+    /** Whether resolutions are being measured. */
+    private volatile boolean measuring;
+
+    /** Whether callers should stop. */
+    private volatile boolean stopping;
+
+    /**
+     * Constructor.
+     *
+     * @param settings the settings
+     */
+    private LoadDriver(final Properties settings) {
+        properties = settings;
+    }
+
+    /**
+     * Run a load test.
+     *
+     * @param args ignored; settings are read from system properties
+     * @throws Exception if the test cannot be set up
+     */
+    public static void main(final String[] args) throws Exception {
+        new LoadDriver(System.getProperties()).run();
+        System.exit(0);
+    }
+
+    /**
+     * Set up, drive and report.
+     *
+     * @throws Exception if the test cannot be set up
+     */
+    private void run() throws Exception {
+        final boolean http = "http".equals(properties.getProperty("load.mode", "inprocess"));
+        final int threads = Integer.parseInt(properties.getProperty("load.threads", "32"));
+        final long warmup = Long.parseLong(properties.getProperty("load.warmup", "10")) * 1000;
+        final long duration = Long.parseLong(properties.getProperty("load.duration", "60")) * 1000;
+        final long think = Long.parseLong(properties.getProperty("load.thinkMillis", "0"));
+        final String[] subjects = subjects(Integer.parseInt(properties.getProperty("load.subjects", "10000")));
+
+        final StubBehaviour behaviour = new StubBehaviour(properties);
+        final StubBAEResponder responder = new StubBAEResponder(properties.getProperty("load.fixture"), behaviour);
+        StubBAEHttpServer httpStub = null;
+        String url = "https://bae.example.org/bae";
+        if (http) {
+            url = properties.getProperty("load.url");
+            if (url == null) {
+                httpStub = new StubBAEHttpServer(properties);
+                httpStub.start();
+                url = httpStub.getUrl();
+            }
+        }
+
+        final GfipmBAEDataConnector connector = createConnector(http ? null : responder.getServer(), url);
+        System.out.println("Stub: " + behaviour);
+        System.out.println("Driving " + url + " with " + threads + " thread(s), " + subjects.length + " subject(s)");
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final Thread caller = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        drive(connector, subjects, think);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-" + i);
+            caller.setDaemon(true);
+            caller.start();
+        }
+
+        Thread.sleep(warmup);
+        measuring = true;
+        final long start = System.nanoTime();
+        final long end = System.currentTimeMillis() + duration;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.min(10000, Math.max(1, end - System.currentTimeMillis())));
+            System.out.println(progress(start));
+        }
+        measuring = false;
+        final long elapsed = System.nanoTime() - start;
+        stopping = true;
+
+        report(elapsed, connector.getMetrics(), responder, httpStub);
+        connector.destroy();
+        if (httpStub != null) {
+            httpStub.stop();
+        }
+    }
+
+    /**
+     * Resolve random subjects until told to stop.
+     *
+     * @param connector the connector
+     * @param subjects the subjects
+     * @param think pause between resolutions, in milliseconds
+     */
+    private void drive(final GfipmBAEDataConnector connector, final String[] subjects, final long think) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (!stopping) {
+            final String subject = subjects[random.nextInt(subjects.length)];
+            final long start = System.nanoTime();
+            String outcome;
+            try {
+                final Map<String, IdPAttribute> attributes = connector.resolvePrincipal(subject);
+                outcome = attributes.isEmpty() ? "empty" : "ok";
+            } catch (final ResolutionException e) {
+                outcome = "ResolutionException";
+            } catch (final RuntimeException e) {
+                outcome = e.getClass().getSimpleName();
+            }
+            if (measuring) {
+                latency.record(System.nanoTime() - start);
+                count(outcome);
+            }
+            if (think > 0) {
+                try {
+                    Thread.sleep(think);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count an outcome.
+     *
+     * @param outcome the outcome
+     */
+    private void count(final String outcome) {
+        AtomicLong counter = outcomes.get(outcome);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = outcomes.putIfAbsent(outcome, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * Describe progress so far.
+     *
+     * @param start when measurement started, in nanoseconds
+     * @return the description
+     */
+    private String progress(final long start) {
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        return String.format("%6.0fs %10d resolutions %9.0f/s  p50 %7.1fms  p99 %7.1fms", seconds,
+                latency.getCount(), latency.getCount() / seconds, latency.getPercentile(50) / 1000.0,
+                latency.getPercentile(99) / 1000.0);
+    }
+
+    /**
+     * Print the final report.
+     *
+     * @param elapsed measured time in nanoseconds
+     * @param metrics the connector's metrics
+     * @param responder the in-process stub
+     * @param httpStub the HTTP stub, if one was started
+     */
+    private void report(final long elapsed, final BAEConnectorMetrics metrics, final StubBAEResponder responder,
+            final StubBAEHttpServer httpStub) {
+        final double seconds = elapsed / 1e9;
+        System.out.println();
+        System.out.println(String.format("Resolutions  %d in %.1fs, %.1f/s", latency.getCount(), seconds,
+                latency.getCount() / seconds));
+        System.out.println(String.format("Latency (ms) mean %.2f  p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+                latency.getMean() / 1000.0, latency.getPercentile(50) / 1000.0, latency.getPercentile(90) / 1000.0,
+                latency.getPercentile(99) / 1000.0, latency.getPercentile(99.9) / 1000.0, latency.getMax() / 1000.0));
+        System.out.println("Outcomes     " + new TreeMap<String, AtomicLong>(outcomes));
+        System.out.println(String.format("Queries      %d sent, %d failed, %d timed out, %d rejected, %d coalesced",
+                metrics.getQueryCount(), metrics.getQueryErrorCount(), metrics.getTimeoutCount(),
+                metrics.getRejectedCount(), metrics.getCoalescedCount()));
+        System.out.println(String.format("Query (ms)   p50 %.2f  p99 %.2f  max %.2f",
+                metrics.getQueryLatency50thPercentile() / 1000.0, metrics.getQueryLatency99thPercentile() / 1000.0,
+                metrics.getQueryLatencyMax() / 1000.0));
+        System.out.println(String.format("Cache        %d hits, %d misses, %d stale", metrics.getCacheHitCount(),
+                metrics.getCacheMissCount(), metrics.getCacheStaleHitCount()));
+        System.out.println(String.format("Protection   circuit %s (%d transitions, %d short-circuited), bulkhead %d "
+                + "rejected", metrics.getCircuitState(), metrics.getCircuitTransitionCount(),
+                metrics.getShortCircuitedCount(), metrics.getBulkheadRejectedCount()));
+        if (httpStub != null) {
+            System.out.println("Stub         " + httpStub.getRequests() + " HTTP requests");
+        } else {
+            System.out.println(String.format("Stub         %d answered, %d failed, %d hung", responder.getAnswered(),
+                    responder.getFailed(), responder.getHung()));
+        }
+        System.out.println("(Counts cover the whole run, including warm up, except resolutions and outcomes.)");
+    }
+
+    /**
+     * Create and initialize the connector.
+     *
+     * @param server the in-process responder, or null to use the real BAE client
+     * @param url the responder URL
+     * @return the connector
+     * @throws Exception if it cannot be configured
+     */
+    private GfipmBAEDataConnector createConnector(final BAEServer server, final String url) throws Exception {
+        final GfipmBAEDataConnector connector = new GfipmBAEDataConnector() {
+            protected BAEServer createBAEServer(final BAEServerInfo serverInfo,
+                    final WebServiceRequestOptions options) throws BAEServerCreationException {
+                return server != null ? server : super.createBAEServer(serverInfo, options);
+            }
+        };
+        final X509Credential credential = credential();
+        connector.setId("loadtest");
+        connector.setBaeUrl(url);
+        connector.setBaeEntityId(properties.getProperty("load.responderEntityId", "https://bae.example.org/entity"));
+        connector.setMyEntityId(properties.getProperty("load.entityId", "https://idp.example.org/idp/shibboleth"));
+        connector.setSubjectId("principal");
+        connector.setX509Key(credential);
+        final String responderCert = properties.getProperty("load.responderCert");
+        connector.setX509Trust(responderCert == null ? credential
+                : credential(new String(Files.readAllBytes(Paths.get(responderCert)), StandardCharsets.US_ASCII)));
+        connector.setBaeAttributes(attributeMap(properties.getProperty("load.fixture")));
+        for (final String name : properties.stringPropertyNames()) {
+            if (name.startsWith("connector.")) {
+                configure(connector, name.substring("connector.".length()), properties.getProperty(name));
+            }
+        }
+        connector.initialize();
+        return connector;
+    }
+
+    /**
+     * Map every attribute of the fixture to its local name.
+     *
+     * @param fixture the fixture file, or null for the bundled one
+     * @return the attribute map
+     * @throws Exception if the fixture cannot be read
+     */
+    private static List<BAEAttributeNameMap> attributeMap(final String fixture) throws Exception {
+        final StubBAEResponder quiet = new StubBAEResponder(fixture, new StubBehaviour(quietBehaviour()));
+        final List<BAEAttributeNameMap> map = new ArrayList<BAEAttributeNameMap>();
+        final List<String> seen = new ArrayList<String>();
+        for (final BackendAttribute attribute : quiet.getServer().attributeQuery(null)) {
+            if (!seen.contains(attribute.getName())) {
+                seen.add(attribute.getName());
+                final BAEAttributeNameMap entry = new BAEAttributeNameMap();
+                entry.QueryName = attribute.getName();
+                entry.ReturnName = attribute.getName().substring(attribute.getName().lastIndexOf(':') + 1);
+                map.add(entry);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Behaviour of a stub that answers at once and never fails.
+     *
+     * @return the settings
+     */
+    private static Properties quietBehaviour() {
+        final Properties quiet = new Properties();
+        quiet.setProperty("stub.latency", "fixed");
+        quiet.setProperty("stub.latencyMean", "0");
+        return quiet;
+    }
+
+    /**
+     * Apply a connector setting through its setter.
+     *
+     * @param connector the connector
+     * @param property the property name
+     * @param value the value
+     * @throws Exception if there is no such setter or the value does not convert
+     */
+    private static void configure(final GfipmBAEDataConnector connector, final String property, final String value)
+            throws Exception {
+        final String setter = "set" + Character.toUpperCase(property.charAt(0)) + property.substring(1);
+        for (final Method method : GfipmBAEDataConnector.class.getMethods()) {
+            if (method.getName().equals(setter) && method.getParameterTypes().length == 1) {
+                final Class<?> type = method.getParameterTypes()[0];
+                final Object converted;
+                if (type == int.class) {
+                    converted = Integer.valueOf(value);
+                } else if (type == long.class) {
+                    converted = Long.valueOf(value);
+                } else if (type == double.class) {
+                    converted = Double.valueOf(value);
+                } else if (type == boolean.class) {
+                    converted = Boolean.valueOf(value);
+                } else if (type == String.class) {
+                    converted = value;
+                } else {
+                    continue;
+                }
+                method.invoke(connector, converted);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No connector setting " + property);
+    }
+
+    /**
+     * Generate subjects.
+     *
+     * @param count how many
+     * @return the subjects
+     */
+    private static String[] subjects(final int count) {
+        final String[] subjects = new String[count];
+        for (int i = 0; i < count; i++) {
+            subjects[i] = "user" + i + "@agency.example.gov";
+        }
+        return subjects;
+    }
+
+    /**
+     * Load the bundled credential.
+     *
+     * @return the credential
+     * @throws IOException if it cannot be read
+     */
+    static X509Credential credential() throws IOException {
+        final InputStream in = LoadDriver.class.getClassLoader().getResourceAsStream("loadtest-credential.pem");
+        if (in == null) {
+            throw new IOException("Missing bundled loadtest-credential.pem");
+        }
+        try {
+            final StringBuilder pem = new StringBuilder();
+            final byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                pem.append(new String(chunk, 0, read, StandardCharsets.US_ASCII));
+            }
+            return credential(pem.toString());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Build a credential from PEM text holding a certificate and, optionally, its private key.
+     *
+     * @param pem the PEM text
+     * @return the credential
+     */
+    private static X509Credential credential(final String pem) {
+        try {
+            final X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(pemBlock(pem, "CERTIFICATE")));
+            final byte[] keyBytes = pemBlock(pem, "PRIVATE KEY");
+            final PrivateKey key = keyBytes == null ? null
+                    : KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
+            return (X509Credential) Proxy.newProxyInstance(X509Credential.class.getClassLoader(),
+                    new Class<?>[] {X509Credential.class}, new InvocationHandler() {
+                        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                            if ("getEntityCertificate".equals(method.getName())) {
+                                return certificate;
+                            } else if ("getEntityCertificateChain".equals(method.getName())) {
+                                return Collections.singletonList(certificate);
+                            } else if ("getPrivateKey".equals(method.getName())) {
+                                return key;
+                            } else if ("getPublicKey".equals(method.getName())) {
+                                return certificate.getPublicKey();
+                            }
+                            return StubBAEResponder.objectMethod(proxy, method, args);
+                        }
+                    });
+        } catch (final Exception e) {
+            throw new IllegalStateException("Unable to load credential", e);
+        }
+    }
+
+    /**
+     * Decode one block of a PEM file.
+     *
+     * @param pem the PEM text
+     * @param type the block type
+     * @return the decoded block, or null if there is none
+     */
+    private static byte[] pemBlock(final String pem, final String type) {
+        final String begin = "-----BEGIN " + type + "-----";
+        final int start = pem.indexOf(begin);
+        final int end = pem.indexOf("-----END " + type + "-----");
+        if (start < 0 || end < 0) {
+            return null;
+        }
+        return Base64.getMimeDecoder().decode(pem.substring(start + begin.length(), end).trim());
+    }
+}
@@ -0,0 +1,242 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Local HTTP(S) stand-in for a BAE Responder, for driving the real BAE client.
+ *
+ * Every SOAP attribute query is answered with a SAML response built and signed for it by {@link StubSamlResponder},
+ * after the latency and misbehaviour of the {@link StubBehaviour}: a failure is a SOAP fault with status 500, a hung
+ * query gets no answer until the timeout and then has its connection closed, and a slow-drip response is written a
+ * few bytes at a time.  Responses are signed with the bundled load test credential, so a connector that trusts it
+ * (as the load driver's does unless load.responderCert is set) accepts them.
+ *
+ * Properties: stub.port (default 8443), load.responderEntityId (default https://bae.example.org/entity), load.fixture
+ * (default the bundled attributes), stub.faultFile (optional), and for HTTPS stub.keystore and stub.keystorePassword
+ * naming a PKCS12 key store.
+ */
+public class StubBAEHttpServer implements HttpHandler {
+
+    /** Size of each slow-drip write. */
+    private static final int DRIP_CHUNK = 64;
+
+    /** SOAP fault returned when no fault file is given. */
+    private static final String DEFAULT_FAULT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<soap11:Envelope xmlns:soap11=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap11:Body>"
+            + "<soap11:Fault><faultcode>soap11:Server</faultcode><faultstring>Stub responder failure</faultstring>"
+            + "</soap11:Fault></soap11:Body></soap11:Envelope>";
+
+    /** How the responder behaves. */
+    private final StubBehaviour behaviour;
+
+    /** Builds the responses. */
+    private final StubSamlResponder responder;
+
+    /** The fault response. */
+    private final byte[] fault;
+
+    /** The server. */
+    private final HttpServer server;
+
+    /** Handles exchanges. */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /** Requests served. */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param properties the stub's settings
+     * @throws Exception if the fixture, credential, fault file or key store cannot be read, or the port bound
+     */
+    public StubBAEHttpServer(final Properties properties) throws Exception {
+        behaviour = new StubBehaviour(properties);
+        responder = new StubSamlResponder(properties.getProperty("load.fixture"),
+                properties.getProperty("load.responderEntityId", "https://bae.example.org/entity"),
+                LoadDriver.credential());
+        final String faultFile = properties.getProperty("stub.faultFile");
+        fault = faultFile == null ? DEFAULT_FAULT.getBytes("UTF-8") : Files.readAllBytes(Paths.get(faultFile));
+
+        final InetSocketAddress address =
+                new InetSocketAddress("127.0.0.1", Integer.parseInt(properties.getProperty("stub.port", "8443")));
+        final String keystore = properties.getProperty("stub.keystore");
+        if (keystore == null) {
+            server = HttpServer.create(address, 1024);
+        } else {
+            final HttpsServer https = HttpsServer.create(address, 1024);
+            https.setHttpsConfigurator(new HttpsConfigurator(createSSLContext(keystore,
+                    properties.getProperty("stub.keystorePassword", "").toCharArray())));
+            server = https;
+        }
+        server.createContext("/", this);
+        server.setExecutor(executor);
+    }
+
+    /** Start serving. */
+    public void start() {
+        server.start();
+    }
+
+    /** Stop serving. */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get the URL to configure the connector with.
+     *
+     * @return the URL
+     */
+    public String getUrl() {
+        return (server instanceof HttpsServer ? "https" : "http") + "://127.0.0.1:" + server.getAddress().getPort()
+                + "/";
+    }
+
+    /**
+     * Get the number of requests served.
+     *
+     * @return the count
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** {@inheritDoc} */
+    public void handle(final HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            final byte[] request = read(exchange.getRequestBody());
+            final Random random = ThreadLocalRandom.current();
+            StubBehaviour.Outcome outcome = behaviour.nextOutcome(random);
+            byte[] body = fault;
+            if (outcome == StubBehaviour.Outcome.OK || outcome == StubBehaviour.Outcome.SLOW_DRIP) {
+                try {
+                    body = responder.answer(new ByteArrayInputStream(request));
+                } catch (final Exception e) {
+                    System.err.println("Stub BAE responder could not answer a request: " + e);
+                    outcome = StubBehaviour.Outcome.ERROR;
+                }
+            }
+            if (outcome == StubBehaviour.Outcome.TIMEOUT) {
+                Thread.sleep(behaviour.getTimeoutMillis());
+                return;
+            }
+            Thread.sleep(behaviour.nextLatency(random));
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+            exchange.sendResponseHeaders(outcome == StubBehaviour.Outcome.ERROR ? 500 : 200, body.length);
+            final OutputStream out = exchange.getResponseBody();
+            if (outcome == StubBehaviour.Outcome.SLOW_DRIP) {
+                final int chunks = (body.length + DRIP_CHUNK - 1) / DRIP_CHUNK;
+                final long pause = behaviour.getSlowDripMillis() / Math.max(1, chunks);
+                for (int offset = 0; offset < body.length; offset += DRIP_CHUNK) {
+                    out.write(body, offset, Math.min(DRIP_CHUNK, body.length - offset));
+                    out.flush();
+                    Thread.sleep(pause);
+                }
+            } else {
+                out.write(body);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Read a request body.
+     *
+     * @param in the body
+     * @return its bytes
+     * @throws IOException if it cannot be read
+     */
+    private static byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Create the TLS context from a PKCS12 key store.
+     *
+     * @param keystore the key store file
+     * @param password its password
+     * @return the context
+     * @throws Exception if the key store cannot be read
+     */
+    private static SSLContext createSSLContext(final String keystore, final char[] password) throws Exception {
+        final KeyStore store = KeyStore.getInstance("PKCS12");
+        final InputStream in = new FileInputStream(keystore);
+        try {
+            store.load(in, password);
+        } finally {
+            in.close();
+        }
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, password);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * Run the stub on its own, for driving from another process or host.
+     *
+     * @param args ignored; settings are read from system properties
+     * @throws Exception if the stub cannot start
+     */
+    public static void main(final String[] args) throws Exception {
+        final StubBAEHttpServer stub = new StubBAEHttpServer(System.getProperties());
+        stub.start();
+        System.out.println("Stub BAE responder at " + stub.getUrl() + " (" + stub.behaviour + ")");
+    }
+}
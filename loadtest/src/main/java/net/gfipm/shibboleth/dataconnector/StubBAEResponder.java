@@ -0,0 +1,214 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gtri.gfipm.bae.v2_0.BAEServer;
+import org.gtri.gfipm.bae.v2_0.BackendAttribute;
+import org.gtri.gfipm.bae.v2_0.BackendAttributeValue;
+
+/**
+ * In-process stand-in for a BAE Responder, plugged into the connector in place of the BAE client.
+ *
+ * Every subject gets the attributes of the fixture file, after the latency and misbehaviour of the
+ * {@link StubBehaviour}.  A failure is thrown as an unchecked exception, which the connector treats like any other
+ * query failure; a slow-drip response, having no wire to drip over, is simply late.
+ */
+public class StubBAEResponder implements InvocationHandler {
+
+    /** The attributes returned. */
+    private final Collection<BackendAttribute> attributes;
+
+    /** How the responder behaves. */
+    private final StubBehaviour behaviour;
+
+    /** Queries answered. */
+    private final AtomicLong answered = new AtomicLong();
+
+    /** Queries failed on purpose. */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Queries hung on purpose. */
+    private final AtomicLong hung = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param fixture the fixture file, or null for the bundled one
+     * @param stubBehaviour how to behave
+     * @throws IOException if the fixture cannot be read
+     */
+    public StubBAEResponder(final String fixture, final StubBehaviour stubBehaviour) throws IOException {
+        attributes = readFixture(fixture);
+        behaviour = stubBehaviour;
+    }
+
+    /**
+     * Get the responder as a BAE server.
+     *
+     * @return the server
+     */
+    public BAEServer getServer() {
+        return (BAEServer) Proxy.newProxyInstance(BAEServer.class.getClassLoader(), new Class<?>[] {BAEServer.class},
+                this);
+    }
+
+    /** {@inheritDoc} */
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        if (!"attributeQuery".equals(method.getName())) {
+            return objectMethod(proxy, method, args);
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (behaviour.nextOutcome(random)) {
+            case ERROR:
+                Thread.sleep(behaviour.nextLatency(random));
+                failed.incrementAndGet();
+                throw new IllegalStateException("Stub responder failure");
+            case TIMEOUT:
+                hung.incrementAndGet();
+                Thread.sleep(behaviour.getTimeoutMillis());
+                throw new IllegalStateException("Stub responder hung");
+            case SLOW_DRIP:
+                Thread.sleep(behaviour.nextLatency(random) + behaviour.getSlowDripMillis());
+                break;
+            default:
+                Thread.sleep(behaviour.nextLatency(random));
+        }
+        answered.incrementAndGet();
+        return attributes;
+    }
+
+    /**
+     * Get the number of queries answered.
+     *
+     * @return the count
+     */
+    public long getAnswered() {
+        return answered.get();
+    }
+
+    /**
+     * Get the number of queries failed on purpose.
+     *
+     * @return the count
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Get the number of queries hung on purpose.
+     *
+     * @return the count
+     */
+    public long getHung() {
+        return hung.get();
+    }
+
+    /**
+     * Read a fixture of "name :: value" lines.
+     *
+     * @param fixture the file, or null for the bundled one
+     * @return the attributes
+     * @throws IOException if it cannot be read
+     */
+    static Collection<BackendAttribute> readFixture(final String fixture) throws IOException {
+        final InputStream in = fixture == null
+                ? StubBAEResponder.class.getClassLoader().getResourceAsStream("attributes.fixture")
+                : new FileInputStream(fixture);
+        if (in == null) {
+            throw new IOException("Missing bundled attributes.fixture");
+        }
+        final List<BackendAttribute> list = new ArrayList<BackendAttribute>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] tokens = line.split(" :: ");
+                if (!line.startsWith("#") && tokens.length == 2) {
+                    list.add(backendAttribute(tokens[0].trim(), tokens[1].trim()));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Create a backend attribute.
+     *
+     * @param name the name
+     * @param value the value
+     * @return the attribute
+     */
+    private static BackendAttribute backendAttribute(final String name, final String value) {
+        final BackendAttributeValue attributeValue = (BackendAttributeValue) Proxy.newProxyInstance(
+                BackendAttributeValue.class.getClassLoader(), new Class<?>[] {BackendAttributeValue.class},
+                new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        return "getStringValue".equals(method.getName()) ? value : objectMethod(proxy, method, args);
+                    }
+                });
+        return (BackendAttribute) Proxy.newProxyInstance(BackendAttribute.class.getClassLoader(),
+                new Class<?>[] {BackendAttribute.class}, new InvocationHandler() {
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getName".equals(method.getName())) {
+                            return name;
+                        } else if ("getValue".equals(method.getName())) {
+                            return attributeValue;
+                        }
+                        return objectMethod(proxy, method, args);
+                    }
+                });
+    }
+
+    /**
+     * Answer the methods every proxy must support.
+     *
+     * @param proxy the proxy
+     * @param method the method called
+     * @param args its arguments
+     * @return the answer
+     */
+    static Object objectMethod(final Object proxy, final Method method, final Object[] args) {
+        if ("equals".equals(method.getName())) {
+            return proxy == args[0];
+        } else if ("hashCode".equals(method.getName())) {
+            return System.identityHashCode(proxy);
+        } else if ("toString".equals(method.getName())) {
+            return proxy.getClass().getInterfaces()[0].getSimpleName() + "@" + System.identityHashCode(proxy);
+        }
+        return null;
+    }
+}
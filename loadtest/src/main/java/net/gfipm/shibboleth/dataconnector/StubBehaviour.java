@@ -0,0 +1,163 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * How the stub responder misbehaves: its latency distribution, and how often it fails, hangs or drips its response.
+ *
+ * Read from properties with the "stub." prefix:
+ * <ul>
+ * <li>stub.latency - "fixed", "uniform", "exponential" or "lognormal" (default lognormal)</li>
+ * <li>stub.latencyMean - mean latency in milliseconds (default 40)</li>
+ * <li>stub.latencySpread - for uniform the half width, for lognormal the sigma of the underlying normal (default
+ * 0.5)</li>
+ * <li>stub.errorRate - fraction of queries that fail (default 0)</li>
+ * <li>stub.timeoutRate - fraction of queries that hang (default 0)</li>
+ * <li>stub.timeoutMillis - how long a hung query hangs (default 30000)</li>
+ * <li>stub.slowDripRate - fraction of responses sent slowly (default 0)</li>
+ * <li>stub.slowDripMillis - how long a slow response takes to send (default 5000)</li>
+ * </ul>
+ */
+public class StubBehaviour {
+
+    /** What a query does. */
+    public enum Outcome {
+        /** Answers after the sampled latency. */
+        OK,
+        /** Fails after the sampled latency. */
+        ERROR,
+        /** Hangs. */
+        TIMEOUT,
+        /** Answers, slowly. */
+        SLOW_DRIP
+    }
+
+    /** Latency distribution. */
+    private final String distribution;
+
+    /** Mean latency in milliseconds. */
+    private final double mean;
+
+    /** Spread of the distribution. */
+    private final double spread;
+
+    /** Fraction of queries that fail. */
+    private final double errorRate;
+
+    /** Fraction of queries that hang. */
+    private final double timeoutRate;
+
+    /** How long a hung query hangs. */
+    private final long timeoutMillis;
+
+    /** Fraction of responses sent slowly. */
+    private final double slowDripRate;
+
+    /** How long a slow response takes. */
+    private final long slowDripMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param properties where to read the behaviour from
+     */
+    public StubBehaviour(final Properties properties) {
+        distribution = properties.getProperty("stub.latency", "lognormal").toLowerCase(Locale.ENGLISH);
+        mean = Double.parseDouble(properties.getProperty("stub.latencyMean", "40"));
+        spread = Double.parseDouble(properties.getProperty("stub.latencySpread", "0.5"));
+        errorRate = Double.parseDouble(properties.getProperty("stub.errorRate", "0"));
+        timeoutRate = Double.parseDouble(properties.getProperty("stub.timeoutRate", "0"));
+        timeoutMillis = Long.parseLong(properties.getProperty("stub.timeoutMillis", "30000"));
+        slowDripRate = Double.parseDouble(properties.getProperty("stub.slowDripRate", "0"));
+        slowDripMillis = Long.parseLong(properties.getProperty("stub.slowDripMillis", "5000"));
+    }
+
+    /**
+     * Decide what a query does.
+     *
+     * @param random the caller's random source
+     * @return the outcome
+     */
+    public Outcome nextOutcome(final Random random) {
+        double roll = random.nextDouble();
+        if (roll < errorRate) {
+            return Outcome.ERROR;
+        }
+        roll -= errorRate;
+        if (roll < timeoutRate) {
+            return Outcome.TIMEOUT;
+        }
+        roll -= timeoutRate;
+        if (roll < slowDripRate) {
+            return Outcome.SLOW_DRIP;
+        }
+        return Outcome.OK;
+    }
+
+    /**
+     * Sample a latency.
+     *
+     * @param random the caller's random source
+     * @return the latency in milliseconds
+     */
+    public long nextLatency(final Random random) {
+        final double latency;
+        if ("fixed".equals(distribution)) {
+            latency = mean;
+        } else if ("uniform".equals(distribution)) {
+            latency = mean + spread * (2 * random.nextDouble() - 1);
+        } else if ("exponential".equals(distribution)) {
+            latency = -mean * Math.log(1 - random.nextDouble());
+        } else {
+            // Chosen so the distribution's mean is the configured mean.
+            final double mu = Math.log(mean) - spread * spread / 2;
+            latency = Math.exp(mu + spread * random.nextGaussian());
+        }
+        return Math.max(0, Math.round(latency));
+    }
+
+    /**
+     * Get how long a hung query hangs.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Get how long a slow response takes to send.
+     *
+     * @return the time in milliseconds
+     */
+    public long getSlowDripMillis() {
+        return slowDripMillis;
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return distribution + " latency, mean " + mean + "ms, spread " + spread + "; errors " + errorRate
+                + ", timeouts " + timeoutRate + " (" + timeoutMillis + "ms), slow drip " + slowDripRate + " ("
+                + slowDripMillis + "ms)";
+    }
+}
@@ -0,0 +1,283 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.gtri.gfipm.bae.v2_0.BackendAttribute;
+import org.opensaml.security.x509.X509Credential;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Answers SOAP-bound SAML 2.0 attribute queries the way a BAE Responder does, for {@link StubBAEHttpServer}.
+ *
+ * Each response is built for its query: it answers the query's ID, names the query's subject, is restricted to the
+ * querying entity, and carries the fixture attributes, only those asked for if the query names any.  The assertion is
+ * signed (RSA-SHA256, exclusive canonicalization) with the bundled load test credential, which the load driver's
+ * connector trusts by default.
+ */
+public class StubSamlResponder {
+
+    /** SOAP 1.1 namespace. */
+    private static final String SOAP_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+
+    /** SAML 2.0 protocol namespace. */
+    private static final String SAMLP_NS = "urn:oasis:names:tc:SAML:2.0:protocol";
+
+    /** SAML 2.0 assertion namespace. */
+    private static final String SAML_NS = "urn:oasis:names:tc:SAML:2.0:assertion";
+
+    /** XML Signature RSA-SHA256 algorithm. */
+    private static final String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+
+    /** How long, in milliseconds, an assertion is valid either side of now. */
+    private static final long VALIDITY = 5 * 60 * 1000;
+
+    /** Parses queries and builds responses, one per thread. */
+    private static final ThreadLocal<DocumentBuilder> BUILDERS = new ThreadLocal<DocumentBuilder>() {
+        protected DocumentBuilder initialValue() {
+            try {
+                final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setNamespaceAware(true);
+                factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+                return factory.newDocumentBuilder();
+            } catch (final Exception e) {
+                throw new IllegalStateException("Unable to create an XML parser", e);
+            }
+        }
+    };
+
+    /** Signs assertions, one per thread. */
+    private static final ThreadLocal<XMLSignatureFactory> SIGNERS = new ThreadLocal<XMLSignatureFactory>() {
+        protected XMLSignatureFactory initialValue() {
+            return XMLSignatureFactory.getInstance("DOM");
+        }
+    };
+
+    /** Source of message IDs. */
+    private final SecureRandom random = new SecureRandom();
+
+    /** The attributes answered. */
+    private final Collection<BackendAttribute> attributes;
+
+    /** The responder's entity ID. */
+    private final String entityId;
+
+    /** The signing key. */
+    private final PrivateKey key;
+
+    /** The signing certificate, sent in the signature's key info. */
+    private final X509Certificate certificate;
+
+    /**
+     * Constructor.
+     *
+     * @param fixture the attribute fixture file, or null for the bundled one
+     * @param responderEntityId the responder's entity ID
+     * @param credential the signing credential
+     * @throws IOException if the fixture cannot be read
+     */
+    public StubSamlResponder(final String fixture, final String responderEntityId, final X509Credential credential)
+            throws IOException {
+        attributes = StubBAEResponder.readFixture(fixture);
+        entityId = responderEntityId;
+        key = credential.getPrivateKey();
+        certificate = credential.getEntityCertificate();
+    }
+
+    /**
+     * Answer a query.
+     *
+     * @param query the SOAP request body
+     * @return the SOAP response
+     * @throws Exception if the request is not a SAML attribute query or the response cannot be signed
+     */
+    public byte[] answer(final InputStream query) throws Exception {
+        final DocumentBuilder builder = BUILDERS.get();
+        builder.reset();
+        final Element request = child(builder.parse(query).getDocumentElement(), SAMLP_NS, "AttributeQuery");
+        if (request == null) {
+            throw new IllegalArgumentException("No AttributeQuery in the request");
+        }
+        final Element subject = child(request, SAML_NS, "Subject");
+        if (subject == null) {
+            throw new IllegalArgumentException("No Subject in the AttributeQuery");
+        }
+        final Element requester = child(request, SAML_NS, "Issuer");
+        final Set<String> requested = new HashSet<String>();
+        final NodeList asked = request.getElementsByTagNameNS(SAML_NS, "Attribute");
+        for (int i = 0; i < asked.getLength(); i++) {
+            requested.add(((Element) asked.item(i)).getAttribute("Name"));
+        }
+
+        final Document document = builder.newDocument();
+        final Instant now = Instant.now();
+        final Element envelope = document.createElementNS(SOAP_NS, "soap11:Envelope");
+        document.appendChild(envelope);
+        final Element response = append(append(envelope, SOAP_NS, "soap11:Body"), SAMLP_NS, "samlp:Response");
+        response.setAttribute("ID", newId());
+        response.setAttribute("InResponseTo", request.getAttribute("ID"));
+        response.setAttribute("IssueInstant", now.toString());
+        response.setAttribute("Version", "2.0");
+        append(response, SAML_NS, "saml:Issuer").setTextContent(entityId);
+        append(append(response, SAMLP_NS, "samlp:Status"), SAMLP_NS, "samlp:StatusCode")
+                .setAttribute("Value", "urn:oasis:names:tc:SAML:2.0:status:Success");
+
+        final Element assertion = append(response, SAML_NS, "saml:Assertion");
+        final String assertionId = newId();
+        assertion.setAttribute("ID", assertionId);
+        assertion.setIdAttribute("ID", true);
+        assertion.setAttribute("IssueInstant", now.toString());
+        assertion.setAttribute("Version", "2.0");
+        append(assertion, SAML_NS, "saml:Issuer").setTextContent(entityId);
+        final Element answeredSubject = (Element) document.importNode(subject, true);
+        assertion.appendChild(answeredSubject);
+        final Element conditions = append(assertion, SAML_NS, "saml:Conditions");
+        conditions.setAttribute("NotBefore", now.minusMillis(VALIDITY).toString());
+        conditions.setAttribute("NotOnOrAfter", now.plusMillis(VALIDITY).toString());
+        if (requester != null) {
+            append(append(conditions, SAML_NS, "saml:AudienceRestriction"), SAML_NS, "saml:Audience")
+                    .setTextContent(requester.getTextContent().trim());
+        }
+        final Element statement = append(assertion, SAML_NS, "saml:AttributeStatement");
+        Element attribute = null;
+        String lastName = null;
+        for (final BackendAttribute backend : attributes) {
+            final String name = backend.getName();
+            if (!requested.isEmpty() && !requested.contains(name)) {
+                continue;
+            }
+            if (!name.equals(lastName)) {
+                attribute = append(statement, SAML_NS, "saml:Attribute");
+                attribute.setAttribute("Name", name);
+                attribute.setAttribute("NameFormat", "urn:oasis:names:tc:SAML:2.0:attrname-format:uri");
+                lastName = name;
+            }
+            append(attribute, SAML_NS, "saml:AttributeValue").setTextContent(backend.getValue().getStringValue());
+        }
+
+        // Declare the namespaces, including any prefix the query's subject brought with it, before signing.
+        document.normalizeDocument();
+        sign(assertion, assertionId, answeredSubject);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        final Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.transform(new DOMSource(document), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Sign an assertion, placing the signature after its issuer as SAML requires.
+     *
+     * @param assertion the assertion
+     * @param id its ID
+     * @param next the element the signature goes before
+     * @throws Exception if it cannot be signed
+     */
+    private void sign(final Element assertion, final String id, final Element next) throws Exception {
+        final XMLSignatureFactory factory = SIGNERS.get();
+        final List<Transform> transforms = Arrays.asList(
+                factory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null),
+                factory.newTransform(CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null));
+        final Reference reference = factory.newReference("#" + id, factory.newDigestMethod(DigestMethod.SHA256, null),
+                transforms, null, null);
+        final SignedInfo signedInfo = factory.newSignedInfo(
+                factory.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null),
+                factory.newSignatureMethod(RSA_SHA256, null), Collections.singletonList(reference));
+        final KeyInfoFactory keyInfos = factory.getKeyInfoFactory();
+        final KeyInfo keyInfo = keyInfos.newKeyInfo(
+                Collections.singletonList(keyInfos.newX509Data(Collections.singletonList(certificate))));
+        final DOMSignContext context = new DOMSignContext(key, assertion, next);
+        context.setDefaultNamespacePrefix("ds");
+        factory.newXMLSignature(signedInfo, keyInfo).sign(context);
+    }
+
+    /**
+     * Find the first descendant element with a name.
+     *
+     * @param parent where to look
+     * @param namespace the element's namespace
+     * @param name its local name
+     * @return the element, or null if there is none
+     */
+    private static Element child(final Element parent, final String namespace, final String name) {
+        final NodeList found = parent.getElementsByTagNameNS(namespace, name);
+        return found.getLength() == 0 ? null : (Element) found.item(0);
+    }
+
+    /**
+     * Append a new element.
+     *
+     * @param parent the parent
+     * @param namespace the element's namespace
+     * @param qualifiedName its prefixed name
+     * @return the element
+     */
+    private static Element append(final Element parent, final String namespace, final String qualifiedName) {
+        final Element element = parent.getOwnerDocument().createElementNS(namespace, qualifiedName);
+        parent.appendChild(element);
+        return element;
+    }
+
+    /**
+     * Generate a message ID.
+     *
+     * @return the ID
+     */
+    private String newId() {
+        final byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        final StringBuilder id = new StringBuilder("_");
+        for (final byte b : bytes) {
+            id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return id.toString();
+    }
+}
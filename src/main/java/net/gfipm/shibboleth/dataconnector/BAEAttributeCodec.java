@@ -0,0 +1,148 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+
+/**
+ * Compact binary form of a resolved attribute set, for storing BAE results outside the heap.
+ *
+ * The layout is a version byte, the attribute count, then for each attribute its id, its value count and its values.
+ * Strings are written as a length followed by their UTF-8 bytes.  Every value is stored as a string, which is all
+ * the BAE connector produces.
+ */
+public final class BAEAttributeCodec {
+
+    /** Format version. */
+    private static final byte VERSION = 1;
+
+    /** Character set of the encoded strings. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Constructor. */
+    private BAEAttributeCodec() {
+    }
+
+    /**
+     * Encode an attribute set.
+     *
+     * @param attributes the attributes
+     * @return the encoded form
+     */
+    @Nonnull public static byte[] encode(@Nonnull final Map<String, IdPAttribute> attributes) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * attributes.size() + 8);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(attributes.size());
+            for (final IdPAttribute attribute : attributes.values()) {
+                writeString(out, attribute.getId());
+                final List<IdPAttributeValue<?>> values = attribute.getValues();
+                out.writeInt(values.size());
+                for (final IdPAttributeValue<?> value : values) {
+                    writeString(out, String.valueOf(value.getValue()));
+                }
+            }
+            out.flush();
+        } catch (final IOException e) {
+            // Not thrown by an in-memory stream.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode an attribute set.
+     *
+     * @param data the encoded form
+     * @return the attributes
+     * @throws IOException if the data is not a valid encoding
+     */
+    @Nonnull public static Map<String, IdPAttribute> decode(@Nonnull final byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readByte() != VERSION) {
+            throw new IOException("Unknown attribute encoding version");
+        }
+        final int count = in.readInt();
+        if (count < 0 || count > data.length) {
+            throw new IOException("Invalid attribute count " + count);
+        }
+        final Map<String, IdPAttribute> attributes = new HashMap<String, IdPAttribute>(count * 2);
+        for (int i = 0; i < count; i++) {
+            final IdPAttribute attribute = new IdPAttribute(readString(in));
+            final int valueCount = in.readInt();
+            if (valueCount < 0 || valueCount > data.length) {
+                throw new IOException("Invalid value count " + valueCount);
+            }
+            final List<IdPAttributeValue<String>> values = new ArrayList<IdPAttributeValue<String>>(valueCount);
+            for (int j = 0; j < valueCount; j++) {
+                values.add(new StringAttributeValue(readString(in)));
+            }
+            attribute.setValues(values);
+            attributes.put(attribute.getId(), attribute);
+        }
+        return attributes;
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string.
+     *
+     * @param out where to write
+     * @param value the string
+     * @throws IOException if the write fails
+     */
+    private static void writeString(@Nonnull final DataOutputStream out, @Nonnull final String value)
+            throws IOException {
+        final byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string.
+     *
+     * @param in where to read from
+     * @return the string
+     * @throws IOException if the read fails or the length is invalid
+     */
+    @Nonnull private static String readString(@Nonnull final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,239 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.utilities.java.support.primitive.StringSupport;
+
+import org.gtri.gfipm.bae.v2_0.BackendAttribute;
+import org.gtri.gfipm.bae.v2_0.BackendAttributeValue;
+
+/**
+ * The configured attribute map, compiled for resolution.
+ *
+ * Each BAE attribute name is looked up once and leads straight to the IdP attributes it feeds, so a response is
+ * mapped in a single pass.  Every value of an IdP attribute is kept: repeated BAE attributes, and different BAE
+ * attributes mapped to the same IdP attribute, add values rather than replace them.
+ */
+@Immutable
+public class BAEAttributeMappingPlan {
+
+    /** Value transforms. */
+    public enum Transform {
+        /** The value as returned. */
+        NONE,
+        /** Lower cased. */
+        LOWERCASE,
+        /** Upper cased. */
+        UPPERCASE,
+        /** With leading and trailing white space removed. */
+        TRIM;
+
+        /**
+         * Apply the transform.
+         *
+         * @param value the value
+         * @return the transformed value
+         */
+        @Nonnull String apply(@Nonnull final String value) {
+            switch (this) {
+                case LOWERCASE:
+                    return value.toLowerCase(Locale.ENGLISH);
+                case UPPERCASE:
+                    return value.toUpperCase(Locale.ENGLISH);
+                case TRIM:
+                    return value.trim();
+                default:
+                    return value;
+            }
+        }
+    }
+
+    /** The targets of each BAE attribute name. */
+    private final Map<String, Target[]> targets;
+
+    /** The IdP attribute names, indexed by target slot. */
+    private final String[] returnNames;
+
+    /** The number of BAE attributes feeding each slot, used to size its value list. */
+    private final int[] fanIn;
+
+    /**
+     * Constructor.
+     *
+     * @param mappings the configured attribute map
+     * @throws IllegalArgumentException if a mapping is missing a name or has an unknown transform
+     */
+    public BAEAttributeMappingPlan(@Nonnull final List<BAEAttributeNameMap> mappings) {
+        final Map<String, Integer> slots = new LinkedHashMap<String, Integer>();
+        final Map<String, List<Target>> compiled = new HashMap<String, List<Target>>();
+        final List<Integer> counts = new ArrayList<Integer>();
+        for (final BAEAttributeNameMap mapping : mappings) {
+            final String queryName = StringSupport.trimOrNull(mapping.QueryName);
+            final String returnName = StringSupport.trimOrNull(mapping.ReturnName);
+            if (queryName == null || returnName == null) {
+                throw new IllegalArgumentException("BAE attribute mapping needs both a query and a return name");
+            }
+            Integer slot = slots.get(returnName);
+            if (slot == null) {
+                slot = slots.size();
+                slots.put(returnName, slot);
+                counts.add(0);
+            }
+            counts.set(slot, counts.get(slot) + 1);
+            List<Target> list = compiled.get(queryName);
+            if (list == null) {
+                list = new ArrayList<Target>(1);
+                compiled.put(queryName, list);
+            }
+            list.add(new Target(slot, getTransform(mapping.Transform)));
+        }
+
+        targets = new HashMap<String, Target[]>(compiled.size() * 2);
+        for (final Map.Entry<String, List<Target>> entry : compiled.entrySet()) {
+            targets.put(entry.getKey(), entry.getValue().toArray(new Target[entry.getValue().size()]));
+        }
+        returnNames = slots.keySet().toArray(new String[slots.size()]);
+        fanIn = new int[counts.size()];
+        for (int i = 0; i < fanIn.length; i++) {
+            fanIn[i] = counts.get(i);
+        }
+    }
+
+    /**
+     * Map a BAE response.  Attributes not in the map, and empty values, are dropped.
+     *
+     * @param attributes the BAE attributes
+     * @return the IdP attributes keyed by name, each carrying all its values
+     */
+    @Nonnull public Map<String, IdPAttribute> map(@Nonnull final Collection<BackendAttribute> attributes) {
+        @SuppressWarnings("unchecked")
+        final List<IdPAttributeValue<String>>[] values = new List[returnNames.length];
+        int populated = 0;
+        for (final BackendAttribute attribute : attributes) {
+            final Target[] mapped = targets.get(attribute.getName());
+            if (mapped == null) {
+                continue;
+            }
+            final BackendAttributeValue value = attribute.getValue();
+            final String stringValue = value == null ? null : value.getStringValue();
+            if (stringValue == null || stringValue.length() == 0) {
+                continue;
+            }
+            for (final Target target : mapped) {
+                List<IdPAttributeValue<String>> list = values[target.slot];
+                if (list == null) {
+                    list = new ArrayList<IdPAttributeValue<String>>(fanIn[target.slot]);
+                    values[target.slot] = list;
+                    populated++;
+                }
+                list.add(new StringAttributeValue(target.transform.apply(stringValue)));
+            }
+        }
+
+        if (populated == 0) {
+            return Collections.emptyMap();
+        }
+        final Map<String, IdPAttribute> result = new HashMap<String, IdPAttribute>(populated * 4 / 3 + 1);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                final IdPAttribute idpAttribute = new IdPAttribute(returnNames[i]);
+                idpAttribute.setValues(values[i]);
+                result.put(returnNames[i], idpAttribute);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the BAE attribute names the plan maps.
+     *
+     * @return the names
+     */
+    @Nonnull public Set<String> getQueryNames() {
+        return Collections.unmodifiableSet(new LinkedHashSet<String>(targets.keySet()));
+    }
+
+    /**
+     * Get the IdP attribute names the plan produces.
+     *
+     * @return the names
+     */
+    @Nonnull public List<String> getReturnNames() {
+        final List<String> names = new ArrayList<String>(returnNames.length);
+        Collections.addAll(names, returnNames);
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Parse a transform name.
+     *
+     * @param name the name, or null for none
+     * @return the transform
+     * @throws IllegalArgumentException if the name is not a transform
+     */
+    @Nonnull private static Transform getTransform(final String name) {
+        final String trimmed = StringSupport.trimOrNull(name);
+        if (trimmed == null) {
+            return Transform.NONE;
+        }
+        try {
+            return Transform.valueOf(trimmed.toUpperCase(Locale.ENGLISH));
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown BAE attribute transform '" + trimmed + "'");
+        }
+    }
+
+    /** Where a BAE attribute's values go. */
+    private static final class Target {
+
+        /** The IdP attribute slot. */
+        private final int slot;
+
+        /** The transform applied on the way. */
+        private final Transform transform;
+
+        /**
+         * Constructor.
+         *
+         * @param index the IdP attribute slot
+         * @param valueTransform the transform
+         */
+        private Target(final int index, final Transform valueTransform) {
+            slot = index;
+            transform = valueTransform;
+        }
+    }
+}
@@ -19,9 +19,15 @@
 
 package net.gfipm.shibboleth.dataconnector;
 
+/**
+ * Maps a BAE attribute to an IdP attribute.  A query name may be mapped to several return names and several query
+ * names to one return name, whose values are then combined.  The optional transform is applied to each value:
+ * "lowercase", "uppercase" or "trim".
+ */
 public class BAEAttributeNameMap {
     public String QueryName;
     public String ReturnName;
+    public String Transform;
 }
 
 
@@ -0,0 +1,137 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Caps the number of BAE queries a connector has outstanding at once.
+ *
+ * A caller that finds every permit taken joins a bounded wait queue for up to the queue timeout, a caller that finds
+ * the queue full as well is turned away immediately.
+ */
+@ThreadSafe
+public class BAEBulkhead {
+
+    /** Maximum number of concurrent queries. */
+    private final int maxConcurrent;
+
+    /** Maximum number of callers waiting for a permit. */
+    private final int maxQueued;
+
+    /** How long, in milliseconds, a queued caller waits for a permit. */
+    private final long queueTimeout;
+
+    /** Query permits. */
+    private final Semaphore permits;
+
+    /** Number of callers currently waiting for a permit. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Number of callers turned away because the queue was full. */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Number of callers that gave up waiting in the queue. */
+    private final AtomicLong queueTimeouts = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param concurrent maximum number of concurrent queries
+     * @param queueSize maximum number of callers waiting for a permit
+     * @param timeout how long, in milliseconds, a queued caller waits
+     */
+    public BAEBulkhead(final int concurrent, final int queueSize, final long timeout) {
+        maxConcurrent = concurrent;
+        maxQueued = queueSize;
+        queueTimeout = timeout;
+        permits = new Semaphore(concurrent, true);
+    }
+
+    /**
+     * Take a permit, waiting in the queue if there is room in it.
+     *
+     * @return whether a permit was taken
+     * @throws InterruptedException if interrupted while queued
+     */
+    public boolean acquire() throws InterruptedException {
+        if (permits.tryAcquire()) {
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        try {
+            if (permits.tryAcquire(queueTimeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } finally {
+            queued.decrementAndGet();
+        }
+        queueTimeouts.incrementAndGet();
+        return false;
+    }
+
+    /** Return a permit. */
+    public void release() {
+        permits.release();
+    }
+
+    /**
+     * Get the number of queries currently holding a permit.
+     *
+     * @return the number of active queries
+     */
+    public int getActiveCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * Get the number of callers currently waiting for a permit.
+     *
+     * @return the queue length
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Get the number of callers turned away because the queue was full.
+     *
+     * @return the rejection count
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Get the number of callers that gave up waiting in the queue.
+     *
+     * @return the queue timeout count
+     */
+    public long getQueueTimeoutCount() {
+        return queueTimeouts.get();
+    }
+}
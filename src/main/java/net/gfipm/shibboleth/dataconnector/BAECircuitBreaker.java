@@ -0,0 +1,303 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker guarding the BAE Responder.
+ *
+ * The circuit opens after a run of consecutive failures, or when the failure rate over the last calls reaches a
+ * threshold.  While open, queries are short-circuited.  Once the open duration has passed a limited number of probe
+ * queries are let through: the circuit closes again when they all succeed, and reopens on the first that fails.  A
+ * probe that has not reported within the open duration counts as a failure, so a lost outcome cannot hold the circuit
+ * half open.
+ *
+ * Each query let through is given the generation of the state it was admitted in, and its outcome only counts while
+ * the circuit is still in that generation.  A slow query admitted before the circuit opened that reports once it is
+ * half open is ignored, rather than taken for a probe.
+ */
+@ThreadSafe
+public class BAECircuitBreaker {
+
+    /** What {@link #allowRequest()} returns when a query is short-circuited. */
+    public static final long REFUSED = -1;
+
+    /** Circuit states. */
+    public enum State {
+        /** Queries flow normally. */
+        CLOSED,
+        /** Queries are short-circuited. */
+        OPEN,
+        /** A limited number of probe queries are let through. */
+        HALF_OPEN
+    }
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BAECircuitBreaker.class);
+
+    /** Name used when logging transitions. */
+    private final String name;
+
+    /** Consecutive failures that open the circuit, zero to disable. */
+    private final int failureThreshold;
+
+    /** Failure rate, in percent over the window, that opens the circuit, zero to disable. */
+    private final int failureRateThreshold;
+
+    /** How long, in milliseconds, the circuit stays open before probing. */
+    private final long openDuration;
+
+    /** Number of probe queries let through while half open. */
+    private final int halfOpenProbes;
+
+    /** Outcomes of the most recent calls, true for a failure. */
+    private final boolean[] window;
+
+    /** Current state. */
+    private volatile State state = State.CLOSED;
+
+    /** Generation of the current state, advanced on every transition. */
+    private volatile long generation;
+
+    /** Next slot of the window to be written. */
+    private int windowIndex;
+
+    /** Number of calls recorded in the window. */
+    private int windowCount;
+
+    /** Number of failures recorded in the window. */
+    private int windowFailures;
+
+    /** Current run of consecutive failures. */
+    private int consecutiveFailures;
+
+    /** When the circuit last opened, in milliseconds since the epoch. */
+    private long openedAt;
+
+    /** Probe queries still to be let through while half open. */
+    private int probesRemaining;
+
+    /** Probe queries that have succeeded while half open. */
+    private int probeSuccesses;
+
+    /** When the last probe query was let through, in milliseconds since the epoch. */
+    private long probedAt;
+
+    /** Number of state transitions. */
+    private final AtomicLong transitions = new AtomicLong();
+
+    /** Number of queries short-circuited. */
+    private final AtomicLong shortCircuited = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param breakerName name used when logging transitions
+     * @param consecutiveFailures consecutive failures that open the circuit, zero to disable
+     * @param failureRate failure rate, in percent, that opens the circuit, zero to disable
+     * @param windowSize number of recent calls the failure rate is measured over
+     * @param duration how long, in milliseconds, the circuit stays open before probing
+     * @param probes number of probe queries let through while half open
+     */
+    public BAECircuitBreaker(@Nonnull final String breakerName, final int consecutiveFailures, final int failureRate,
+            final int windowSize, final long duration, final int probes) {
+        name = breakerName;
+        failureThreshold = consecutiveFailures;
+        failureRateThreshold = failureRate;
+        window = new boolean[Math.max(1, windowSize)];
+        openDuration = duration;
+        halfOpenProbes = Math.max(1, probes);
+    }
+
+    /**
+     * Decide whether a query may go to the BAE Responder.  A caller that is allowed through must report the outcome
+     * with {@link #onSuccess(long)}, {@link #onFailure(long)} or {@link #onAbandoned(long)}, passing back the
+     * generation returned here.
+     *
+     * @return the generation the query was admitted in, or {@link #REFUSED} if it may not proceed
+     */
+    public long allowRequest() {
+        if (state == State.CLOSED) {
+            return generation;
+        }
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (state == State.HALF_OPEN && probeSuccesses + probesRemaining < halfOpenProbes
+                    && now - probedAt >= openDuration) {
+                log.warn("{} BAE circuit breaker probe did not report within {} ms", name, openDuration);
+                consecutiveFailures++;
+                open();
+            } else if (state == State.OPEN && now - openedAt >= openDuration) {
+                transition(State.HALF_OPEN);
+                probesRemaining = halfOpenProbes;
+                probeSuccesses = 0;
+            }
+            if (state == State.CLOSED) {
+                return generation;
+            } else if (state == State.HALF_OPEN && probesRemaining > 0) {
+                probesRemaining--;
+                probedAt = now;
+                return generation;
+            }
+        }
+        shortCircuited.incrementAndGet();
+        return REFUSED;
+    }
+
+    /**
+     * Record a successful query.
+     *
+     * @param admitted the generation {@link #allowRequest()} returned for it
+     */
+    public synchronized void onSuccess(final long admitted) {
+        if (admitted != generation) {
+            return;
+        }
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN) {
+            if (++probeSuccesses >= halfOpenProbes) {
+                resetWindow();
+                transition(State.CLOSED);
+            }
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    /**
+     * Record a failed or timed out query.
+     *
+     * @param admitted the generation {@link #allowRequest()} returned for it
+     */
+    public synchronized void onFailure(final long admitted) {
+        if (admitted != generation) {
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            if ((failureThreshold > 0 && consecutiveFailures >= failureThreshold)
+                    || (failureRateThreshold > 0 && windowCount == window.length
+                            && windowFailures * 100 >= failureRateThreshold * windowCount)) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Record a query that was let through but never reached the BAE Responder.
+     *
+     * @param admitted the generation {@link #allowRequest()} returned for it
+     */
+    public synchronized void onAbandoned(final long admitted) {
+        if (admitted == generation && state == State.HALF_OPEN) {
+            probesRemaining++;
+        }
+    }
+
+    /**
+     * Get the current state.
+     *
+     * @return the state
+     */
+    @Nonnull public State getState() {
+        return state;
+    }
+
+    /**
+     * Get the number of state transitions so far.
+     *
+     * @return the transition count
+     */
+    public long getTransitionCount() {
+        return transitions.get();
+    }
+
+    /**
+     * Get the number of queries short-circuited so far.
+     *
+     * @return the short-circuit count
+     */
+    public long getShortCircuitedCount() {
+        return shortCircuited.get();
+    }
+
+    /** Open the circuit. */
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        transition(State.OPEN);
+    }
+
+    /**
+     * Record the outcome of a call in the window.
+     *
+     * @param failure whether the call failed
+     */
+    private void record(final boolean failure) {
+        if (windowCount == window.length) {
+            if (window[windowIndex]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failure;
+        if (failure) {
+            windowFailures++;
+        }
+        windowIndex = (windowIndex + 1) % window.length;
+    }
+
+    /** Forget the recorded outcomes. */
+    private void resetWindow() {
+        windowIndex = 0;
+        windowCount = 0;
+        windowFailures = 0;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Move to a new state, logging the change.
+     *
+     * @param newState the state to move to
+     */
+    private void transition(@Nonnull final State newState) {
+        if (state == newState) {
+            return;
+        }
+        final State oldState = state;
+        generation++;
+        state = newState;
+        transitions.incrementAndGet();
+        if (newState == State.OPEN) {
+            log.warn("{} BAE circuit breaker {} -> {} after {} consecutive failure(s), {} of the last {} call(s) failed",
+                    new Object[] {name, oldState, newState, consecutiveFailures, windowFailures, windowCount});
+        } else {
+            log.info("{} BAE circuit breaker {} -> {}", new Object[] {name, oldState, newState});
+        }
+    }
+}
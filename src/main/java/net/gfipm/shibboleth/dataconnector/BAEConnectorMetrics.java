@@ -0,0 +1,429 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.JMException;
+import javax.management.StandardMBean;
+
+/**
+ * Metrics of the BAE connector.  Adds the BAE Responder queries to the resolution metrics, and reads the counters
+ * its caches, coalescer, bulkhead, rate limiter, circuit breaker and responder pool already keep.
+ */
+@ThreadSafe
+public class BAEConnectorMetrics extends ConnectorMetrics implements BAEConnectorMetricsMBean {
+
+    /** The connector. */
+    private final GfipmBAEDataConnector connector;
+
+    /** Number of queries sent. */
+    private final AtomicLong queries = new AtomicLong();
+
+    /** Number of queries that failed. */
+    private final AtomicLong queryErrors = new AtomicLong();
+
+    /** Number of resolutions that timed out. */
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /** Number of resolutions refused by the bulkhead or circuit breaker. */
+    private final AtomicLong rejections = new AtomicLong();
+
+    /** Number of queries outstanding. */
+    private final AtomicLong inFlight = new AtomicLong();
+
+    /** Attributes returned by the BAE Responder. */
+    private final AtomicLong returnedAttributes = new AtomicLong();
+
+    /** Attributes mapped. */
+    private final AtomicLong mappedAttributes = new AtomicLong();
+
+    /** Estimated size of the responses, in characters. */
+    private final AtomicLong payload = new AtomicLong();
+
+    /** Query latency. */
+    private final LatencyHistogram queryLatency = new LatencyHistogram();
+
+    /** Age of the cached results resolutions were answered with, recorded in milliseconds as if microseconds. */
+    private final LatencyHistogram servedAge = new LatencyHistogram();
+
+    /**
+     * Constructor.
+     *
+     * @param dataConnector the connector
+     */
+    public BAEConnectorMetrics(@Nonnull final GfipmBAEDataConnector dataConnector) {
+        super(dataConnector.getId());
+        connector = dataConnector;
+    }
+
+    /**
+     * Record a query being sent.
+     *
+     * @return {@link System#nanoTime()}, to pass back when it completes
+     */
+    public long onQueryStart() {
+        queries.incrementAndGet();
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a query that completed.
+     *
+     * @param startNanos what {@link #onQueryStart()} returned
+     * @param returned the number of attributes returned
+     * @param mapped the number of those mapped
+     * @param payloadSize estimated size of the response, in characters
+     */
+    public void onQuery(final long startNanos, final int returned, final int mapped, final long payloadSize) {
+        queryLatency.record(System.nanoTime() - startNanos);
+        inFlight.decrementAndGet();
+        returnedAttributes.addAndGet(returned);
+        mappedAttributes.addAndGet(mapped);
+        payload.addAndGet(payloadSize);
+    }
+
+    /**
+     * Record a query that failed.
+     *
+     * @param startNanos what {@link #onQueryStart()} returned
+     */
+    public void onQueryError(final long startNanos) {
+        queryLatency.record(System.nanoTime() - startNanos);
+        inFlight.decrementAndGet();
+        queryErrors.incrementAndGet();
+    }
+
+    /**
+     * Record a resolution answered with a cached result, from any of the caches, fresh or stale.
+     *
+     * @param ageMillis how long ago, in milliseconds, the result was resolved
+     */
+    public void onServedFromCache(final long ageMillis) {
+        servedAge.record(ageMillis * 1000);
+    }
+
+    /** Record a resolution that gave up waiting for the BAE Responder. */
+    public void onTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    /** Record a resolution refused by the bulkhead or circuit breaker. */
+    public void onRejected() {
+        rejections.incrementAndGet();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    @Nonnull protected StandardMBean createMBean() throws JMException {
+        return new StandardMBean(this, BAEConnectorMetricsMBean.class);
+    }
+
+    /** {@inheritDoc} */
+    public boolean isReady() {
+        return connector.isReady();
+    }
+
+    /** {@inheritDoc} */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getQueryErrorCount() {
+        return queryErrors.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getRejectedCount() {
+        return rejections.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getInFlightQueries() {
+        return inFlight.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getReturnedAttributeCount() {
+        return returnedAttributes.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getMappedAttributeCount() {
+        return mappedAttributes.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getResponsePayloadSize() {
+        return payload.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getProjectedQueryCount() {
+        long count = 0;
+        for (final BAEQueryProjection projection : connector.getQueryProjections()) {
+            count += projection.getProjectedCount();
+        }
+        return count;
+    }
+
+    /** {@inheritDoc} */
+    public long getProjectionFallbackCount() {
+        long count = 0;
+        for (final BAEQueryProjection projection : connector.getQueryProjections()) {
+            count += projection.getFallbackCount();
+        }
+        return count;
+    }
+
+    /** {@inheritDoc} */
+    public long getQueryLatencyMean() {
+        return queryLatency.getMean();
+    }
+
+    /** {@inheritDoc} */
+    public long getQueryLatency50thPercentile() {
+        return queryLatency.getPercentile(50);
+    }
+
+    /** {@inheritDoc} */
+    public long getQueryLatency90thPercentile() {
+        return queryLatency.getPercentile(90);
+    }
+
+    /** {@inheritDoc} */
+    public long getQueryLatency99thPercentile() {
+        return queryLatency.getPercentile(99);
+    }
+
+    /** {@inheritDoc} */
+    public long getQueryLatency999thPercentile() {
+        return queryLatency.getPercentile(99.9);
+    }
+
+    /** {@inheritDoc} */
+    public long getQueryLatencyMax() {
+        return queryLatency.getMax();
+    }
+
+    /** {@inheritDoc} */
+    public long getCacheHitCount() {
+        final BAEResultCache cache = connector.getResultCache();
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /** {@inheritDoc} */
+    public long getCacheMissCount() {
+        final BAEResultCache cache = connector.getResultCache();
+        return cache == null ? 0 : cache.getMisses();
+    }
+
+    /** {@inheritDoc} */
+    public long getCacheStaleHitCount() {
+        final BAEResultCache cache = connector.getResultCache();
+        return cache == null ? 0 : cache.getStaleHits();
+    }
+
+    /** {@inheritDoc} */
+    public long getServedAgeMean() {
+        return servedAge.getMean();
+    }
+
+    /** {@inheritDoc} */
+    public long getServedAge99thPercentile() {
+        return servedAge.getPercentile(99);
+    }
+
+    /** {@inheritDoc} */
+    public long getServedAgeMax() {
+        return servedAge.getMax();
+    }
+
+    /** {@inheritDoc} */
+    public int getCacheSize() {
+        final BAEResultCache cache = connector.getResultCache();
+        return cache == null ? 0 : cache.size();
+    }
+
+    /** {@inheritDoc} */
+    public long getRefreshCount() {
+        return connector.getRefreshCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getPersistentCacheHitCount() {
+        final BAEPersistentCache cache = connector.getPersistentCache();
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /** {@inheritDoc} */
+    public long getSharedCacheHitCount() {
+        final BAESharedCache cache = connector.getSharedCache();
+        return cache == null ? 0 : cache.getHits();
+    }
+
+    /** {@inheritDoc} */
+    public long getSharedCacheWriteCount() {
+        final BAESharedCache cache = connector.getSharedCache();
+        return cache == null ? 0 : cache.getWrites();
+    }
+
+    /** {@inheritDoc} */
+    public long getSharedCacheErrorCount() {
+        final BAESharedCache cache = connector.getSharedCache();
+        return cache == null ? 0 : cache.getErrors();
+    }
+
+    /** {@inheritDoc} */
+    public long getCoalescedCount() {
+        final BAEQueryCoalescer coalescer = connector.getQueryCoalescer();
+        final BAEQueryCoalescer background = connector.getBackgroundCoalescer();
+        return (coalescer == null ? 0 : coalescer.getCoalescedCount())
+                + (background == null ? 0 : background.getCoalescedCount());
+    }
+
+    /** {@inheritDoc} */
+    public int getBulkheadActiveCount() {
+        final BAEBulkhead bulkhead = connector.getBulkhead();
+        return bulkhead == null ? 0 : bulkhead.getActiveCount();
+    }
+
+    /** {@inheritDoc} */
+    public int getBulkheadQueuedCount() {
+        final BAEBulkhead bulkhead = connector.getBulkhead();
+        return bulkhead == null ? 0 : bulkhead.getQueuedCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getBulkheadRejectedCount() {
+        final BAEBulkhead bulkhead = connector.getBulkhead();
+        return bulkhead == null ? 0 : bulkhead.getRejectedCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getRateLimitGrantedCount() {
+        final BAERateLimiter limiter = connector.getRateLimiter();
+        return limiter == null ? 0 : limiter.getGrantedCount(BAERateLimiter.Priority.INTERACTIVE)
+                + limiter.getGrantedCount(BAERateLimiter.Priority.BACKGROUND);
+    }
+
+    /** {@inheritDoc} */
+    public long getRateLimitInteractiveRejectedCount() {
+        final BAERateLimiter limiter = connector.getRateLimiter();
+        return limiter == null ? 0 : limiter.getRejectedCount(BAERateLimiter.Priority.INTERACTIVE);
+    }
+
+    /** {@inheritDoc} */
+    public long getRateLimitBackgroundRejectedCount() {
+        final BAERateLimiter limiter = connector.getRateLimiter();
+        return limiter == null ? 0 : limiter.getRejectedCount(BAERateLimiter.Priority.BACKGROUND);
+    }
+
+    /** {@inheritDoc} */
+    public long getRateLimitInteractiveWaitMean() {
+        final BAERateLimiter limiter = connector.getRateLimiter();
+        return limiter == null ? 0 : limiter.getWaitTime(BAERateLimiter.Priority.INTERACTIVE).getMean();
+    }
+
+    /** {@inheritDoc} */
+    public long getRateLimitInteractiveWait99thPercentile() {
+        final BAERateLimiter limiter = connector.getRateLimiter();
+        return limiter == null ? 0 : limiter.getWaitTime(BAERateLimiter.Priority.INTERACTIVE).getPercentile(99);
+    }
+
+    /** {@inheritDoc} */
+    public long getRateLimitBackgroundWaitMean() {
+        final BAERateLimiter limiter = connector.getRateLimiter();
+        return limiter == null ? 0 : limiter.getWaitTime(BAERateLimiter.Priority.BACKGROUND).getMean();
+    }
+
+    /** {@inheritDoc} */
+    public int getRateLimitAvailableTokens() {
+        final BAERateLimiter limiter = connector.getRateLimiter();
+        return limiter == null ? 0 : limiter.getAvailableTokens();
+    }
+
+    /** {@inheritDoc} */
+    public String getCircuitState() {
+        final BAECircuitBreaker breaker = connector.getCircuitBreaker();
+        return breaker == null ? null : breaker.getState().name();
+    }
+
+    /** {@inheritDoc} */
+    public long getCircuitTransitionCount() {
+        final BAECircuitBreaker breaker = connector.getCircuitBreaker();
+        return breaker == null ? 0 : breaker.getTransitionCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getShortCircuitedCount() {
+        final BAECircuitBreaker breaker = connector.getCircuitBreaker();
+        return breaker == null ? 0 : breaker.getShortCircuitedCount();
+    }
+
+    /** {@inheritDoc} */
+    public int getHealthyResponderCount() {
+        final BAEServerPool pool = connector.getServerPool();
+        return pool == null ? 0 : pool.getHealthyCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getHedgesSent() {
+        final BAEServerPool pool = connector.getServerPool();
+        return pool == null ? 0 : pool.getHedgesSent();
+    }
+
+    /** {@inheritDoc} */
+    public long getHedgesWon() {
+        final BAEServerPool pool = connector.getServerPool();
+        return pool == null ? 0 : pool.getHedgesWon();
+    }
+
+    /** {@inheritDoc} */
+    public long getTlsHandshakeCount() {
+        final BAETlsMonitor monitor = BAETlsMonitor.getInstalled();
+        return monitor == null ? -1 : monitor.getHandshakeCount();
+    }
+
+    /** {@inheritDoc} */
+    public long getTlsResumedCount() {
+        final BAETlsMonitor monitor = BAETlsMonitor.getInstalled();
+        return monitor == null ? -1 : monitor.getResumedCount();
+    }
+
+    /** {@inheritDoc} */
+    public int getOpenTlsConnectionCount() {
+        final BAETlsMonitor monitor = BAETlsMonitor.getInstalled();
+        return monitor == null ? -1 : monitor.getOpenConnectionCount();
+    }
+
+    /** {@inheritDoc} */
+    public int getCachedTlsSessionCount() {
+        return BAETlsMonitor.getCachedSessionCount();
+    }
+}
@@ -0,0 +1,376 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package net.gfipm.shibboleth.dataconnector;
+
+/**
+ * Management interface of the BAE connector's metrics: resolution metrics plus the BAE Responder queries and the
+ * state of the cache, bulkhead, rate limiter, circuit breaker and responder pool.  Latencies are in microseconds.
+ */
+public interface BAEConnectorMetricsMBean extends ConnectorMetricsMBean {
+
+    /**
+     * Get whether the BAE client is built and warmed up, queries are refused until it is.
+     *
+     * @return whether the connector is ready
+     */
+    boolean isReady();
+
+    /**
+     * Get the number of queries sent to the BAE Responder.
+     *
+     * @return the count
+     */
+    long getQueryCount();
+
+    /**
+     * Get the number of queries that failed.
+     *
+     * @return the count
+     */
+    long getQueryErrorCount();
+
+    /**
+     * Get the number of resolutions that gave up waiting for the BAE Responder.
+     *
+     * @return the count
+     */
+    long getTimeoutCount();
+
+    /**
+     * Get the number of resolutions refused by the bulkhead or circuit breaker.
+     *
+     * @return the count
+     */
+    long getRejectedCount();
+
+    /**
+     * Get the number of queries currently outstanding.
+     *
+     * @return the count
+     */
+    long getInFlightQueries();
+
+    /**
+     * Get the total number of attributes returned by the BAE Responder.
+     *
+     * @return the count
+     */
+    long getReturnedAttributeCount();
+
+    /**
+     * Get the total number of those attributes that were mapped.
+     *
+     * @return the count
+     */
+    long getMappedAttributeCount();
+
+    /**
+     * Get the total estimated size of the BAE Responder's responses, as characters of attribute names and values.
+     *
+     * @return the size
+     */
+    long getResponsePayloadSize();
+
+    /**
+     * Get the number of queries that asked for only the mapped attributes.
+     *
+     * @return the count
+     */
+    long getProjectedQueryCount();
+
+    /**
+     * Get the number of full queries sent because a responder failed a query for selected attributes.
+     *
+     * @return the count
+     */
+    long getProjectionFallbackCount();
+
+    /**
+     * Get the mean query latency.
+     *
+     * @return the mean
+     */
+    long getQueryLatencyMean();
+
+    /**
+     * Get the median query latency.
+     *
+     * @return the 50th percentile
+     */
+    long getQueryLatency50thPercentile();
+
+    /**
+     * Get the 90th percentile of query latency.
+     *
+     * @return the 90th percentile
+     */
+    long getQueryLatency90thPercentile();
+
+    /**
+     * Get the 99th percentile of query latency.
+     *
+     * @return the 99th percentile
+     */
+    long getQueryLatency99thPercentile();
+
+    /**
+     * Get the 99.9th percentile of query latency.
+     *
+     * @return the 99.9th percentile
+     */
+    long getQueryLatency999thPercentile();
+
+    /**
+     * Get the largest query latency.
+     *
+     * @return the maximum
+     */
+    long getQueryLatencyMax();
+
+    /**
+     * Get the number of resolutions answered from the result cache.
+     *
+     * @return the count, 0 without a cache
+     */
+    long getCacheHitCount();
+
+    /**
+     * Get the number of resolutions not answered from the result cache.
+     *
+     * @return the count, 0 without a cache
+     */
+    long getCacheMissCount();
+
+    /**
+     * Get the number of resolutions answered with an expired cache entry.
+     *
+     * @return the count, 0 without a cache
+     */
+    long getCacheStaleHitCount();
+
+    /**
+     * Get the mean age, in milliseconds, of the cached results resolutions were answered with.
+     *
+     * @return the mean, 0 if none were
+     */
+    long getServedAgeMean();
+
+    /**
+     * Get the 99th percentile of the age, in milliseconds, of the cached results resolutions were answered with.
+     *
+     * @return the 99th percentile, 0 if none were
+     */
+    long getServedAge99thPercentile();
+
+    /**
+     * Get the greatest age, in milliseconds, of a cached result a resolution was answered with.
+     *
+     * @return the maximum, 0 if none were
+     */
+    long getServedAgeMax();
+
+    /**
+     * Get the number of entries in the result cache.
+     *
+     * @return the size, 0 without a cache
+     */
+    int getCacheSize();
+
+    /**
+     * Get the number of background refreshes started.
+     *
+     * @return the count
+     */
+    long getRefreshCount();
+
+    /**
+     * Get the number of resolutions answered from the persistent cache.
+     *
+     * @return the count, 0 without one
+     */
+    long getPersistentCacheHitCount();
+
+    /**
+     * Get the number of resolutions answered from the cluster's shared cache.
+     *
+     * @return the count, 0 without one
+     */
+    long getSharedCacheHitCount();
+
+    /**
+     * Get the number of results written to the cluster's shared cache.
+     *
+     * @return the count, 0 without one
+     */
+    long getSharedCacheWriteCount();
+
+    /**
+     * Get the number of reads and writes of the shared cache that failed.
+     *
+     * @return the count, 0 without one
+     */
+    long getSharedCacheErrorCount();
+
+    /**
+     * Get the number of resolutions that shared another's query.
+     *
+     * @return the count, 0 without coalescing
+     */
+    long getCoalescedCount();
+
+    /**
+     * Get the number of queries holding a bulkhead permit.
+     *
+     * @return the count, 0 without a bulkhead
+     */
+    int getBulkheadActiveCount();
+
+    /**
+     * Get the number of queries waiting for a bulkhead permit.
+     *
+     * @return the count, 0 without a bulkhead
+     */
+    int getBulkheadQueuedCount();
+
+    /**
+     * Get the number of queries the bulkhead turned away.
+     *
+     * @return the count, 0 without a bulkhead
+     */
+    long getBulkheadRejectedCount();
+
+    /**
+     * Get the number of queries the rate limiter let through.  The limiter is shared by every connector querying as
+     * the same requester entity, and so are its counts.
+     *
+     * @return the count, 0 without a rate limit
+     */
+    long getRateLimitGrantedCount();
+
+    /**
+     * Get the number of interactive queries refused for want of a rate limit token.
+     *
+     * @return the count, 0 without a rate limit
+     */
+    long getRateLimitInteractiveRejectedCount();
+
+    /**
+     * Get the number of background refresh and pre-fetch queries refused for want of a rate limit token.
+     *
+     * @return the count, 0 without a rate limit
+     */
+    long getRateLimitBackgroundRejectedCount();
+
+    /**
+     * Get the mean time interactive queries waited for a rate limit token.
+     *
+     * @return the mean in microseconds, 0 without a rate limit
+     */
+    long getRateLimitInteractiveWaitMean();
+
+    /**
+     * Get the 99th percentile of the time interactive queries waited for a rate limit token.
+     *
+     * @return the percentile in microseconds, 0 without a rate limit
+     */
+    long getRateLimitInteractiveWait99thPercentile();
+
+    /**
+     * Get the mean time background queries waited for a rate limit token.
+     *
+     * @return the mean in microseconds, 0 without a rate limit
+     */
+    long getRateLimitBackgroundWaitMean();
+
+    /**
+     * Get the number of rate limit tokens available now.
+     *
+     * @return the count, 0 without a rate limit
+     */
+    int getRateLimitAvailableTokens();
+
+    /**
+     * Get the state of the circuit breaker.
+     *
+     * @return the state, or null without a breaker
+     */
+    String getCircuitState();
+
+    /**
+     * Get the number of circuit breaker state changes.
+     *
+     * @return the count, 0 without a breaker
+     */
+    long getCircuitTransitionCount();
+
+    /**
+     * Get the number of queries refused by the open circuit.
+     *
+     * @return the count, 0 without a breaker
+     */
+    long getShortCircuitedCount();
+
+    /**
+     * Get the number of BAE Responders not ejected from the pool.
+     *
+     * @return the count
+     */
+    int getHealthyResponderCount();
+
+    /**
+     * Get the number of hedged queries sent.
+     *
+     * @return the count
+     */
+    long getHedgesSent();
+
+    /**
+     * Get the number of hedged queries that answered first.
+     *
+     * @return the count
+     */
+    long getHedgesWon();
+
+    /**
+     * Get the number of full TLS handshakes made by the JVM's default HTTPS client.
+     *
+     * @return the count, -1 unless TLS monitoring is on
+     */
+    long getTlsHandshakeCount();
+
+    /**
+     * Get the number of TLS handshakes that resumed an earlier session.
+     *
+     * @return the count, -1 unless TLS monitoring is on
+     */
+    long getTlsResumedCount();
+
+    /**
+     * Get the number of TLS connections still open.
+     *
+     * @return the count, -1 unless TLS monitoring is on
+     */
+    int getOpenTlsConnectionCount();
+
+    /**
+     * Get the number of sessions in the default TLS client session cache.
+     *
+     * @return the count
+     */
+    int getCachedTlsSessionCount();
+}
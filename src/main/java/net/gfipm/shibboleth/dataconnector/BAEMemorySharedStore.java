@@ -0,0 +1,158 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A {@link BAESharedStore} held in memory.
+ *
+ * Shared by the connectors of one JVM, it stands in for a networked store in tests and load tests.  Values are copied
+ * in and out, as they would be serialized over the network, and an optional latency is added to every operation to
+ * model the round trip.  Once full, expired entries are purged and, failing that, an arbitrary entry is dropped.
+ */
+@ThreadSafe
+public class BAEMemorySharedStore implements BAESharedStore {
+
+    /** Maximum number of entries. */
+    private final int maxSize;
+
+    /** Delay added to every operation, in milliseconds. */
+    private final long latency;
+
+    /** The entries. */
+    private final ConcurrentMap<String, StoredValue> entries = new ConcurrentHashMap<String, StoredValue>();
+
+    /**
+     * Constructor.
+     *
+     * @param size maximum number of entries
+     */
+    public BAEMemorySharedStore(final int size) {
+        this(size, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param size maximum number of entries
+     * @param delay delay added to every operation, in milliseconds
+     */
+    public BAEMemorySharedStore(final int size, final long delay) {
+        maxSize = size;
+        latency = delay;
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public byte[] read(@Nonnull final String key) {
+        simulateLatency();
+        final StoredValue stored = entries.get(key);
+        if (stored == null) {
+            return null;
+        } else if (stored.expires <= System.currentTimeMillis()) {
+            entries.remove(key, stored);
+            return null;
+        }
+        return stored.value.clone();
+    }
+
+    /** {@inheritDoc} */
+    public void write(@Nonnull final String key, @Nonnull final byte[] value, final long expires) {
+        simulateLatency();
+        if (entries.size() >= maxSize && !entries.containsKey(key)) {
+            makeRoom();
+        }
+        entries.put(key, new StoredValue(value.clone(), expires));
+    }
+
+    /** {@inheritDoc} */
+    public void delete(@Nonnull final String key) {
+        simulateLatency();
+        entries.remove(key);
+    }
+
+    /**
+     * Get the number of entries held, including any that have expired but not yet been purged.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /** Purge the expired entries, and drop one more if that freed nothing. */
+    private void makeRoom() {
+        final long now = System.currentTimeMillis();
+        boolean purged = false;
+        final Iterator<Map.Entry<String, StoredValue>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expires <= now) {
+                it.remove();
+                purged = true;
+            }
+        }
+        if (!purged) {
+            final Iterator<String> keys = entries.keySet().iterator();
+            if (keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        }
+    }
+
+    /** Wait out the configured latency. */
+    private void simulateLatency() {
+        if (latency > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latency);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** A value and its expiry. */
+    private static final class StoredValue {
+
+        /** The value. */
+        private final byte[] value;
+
+        /** When the value expires, in milliseconds since the epoch. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param data the value
+         * @param expiry when the value expires
+         */
+        private StoredValue(final byte[] data, final long expiry) {
+            value = data;
+            expires = expiry;
+        }
+    }
+}
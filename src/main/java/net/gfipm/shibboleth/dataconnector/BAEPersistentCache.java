@@ -0,0 +1,606 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Second-level cache of resolved BAE attribute sets in a local file, so that a restarted connector starts warm.
+ *
+ * The file is an append-only log of records, each holding the subject key, when the entry was cached and when it
+ * expires, and the attribute set encrypted with AES-GCM under the configured key (the subject key and both times are
+ * bound in as additional authenticated data, so that a record cannot be moved to another subject or have its expiry
+ * extended).  An in-memory index maps each subject to its newest record.  The index is built by {@link #load()}, meant
+ * to run in the background: until it finishes every lookup misses.  When the file grows past its size limit it is
+ * compacted, in the background, down to the live entries, dropping those closest to expiry if they alone are too big.
+ */
+@ThreadSafe
+public class BAEPersistentCache {
+
+    /** File header, "BAE" and the format version. */
+    private static final int MAGIC = 0x42414502;
+
+    /** File header of the first format, whose records authenticated only the subject key. */
+    private static final int MAGIC_V1 = 0x42414501;
+
+    /** Cipher of the records, which Java 7's SunJCE provider does not offer. */
+    static final String CIPHER = "AES/GCM/NoPadding";
+
+    /** Length of the AES-GCM nonce. */
+    private static final int IV_LENGTH = 12;
+
+    /** Length of the AES-GCM tag, in bits. */
+    private static final int TAG_BITS = 128;
+
+    /** Character set of the subject keys. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BAEPersistentCache.class);
+
+    /** The cache file. */
+    private final File file;
+
+    /** Encryption key. */
+    private final SecretKeySpec key;
+
+    /** Size, in bytes, past which the file is compacted. */
+    private final long maxBytes;
+
+    /** Reads and appends share the file, compaction takes it exclusively. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Serializes appends. */
+    private final Object appendLock = new Object();
+
+    /** Newest record of each subject. */
+    private final ConcurrentMap<String, Record> index = new ConcurrentHashMap<String, Record>();
+
+    /** Runs compactions off the writing thread. */
+    private final ExecutorService compactor;
+
+    /** Whether a compaction is scheduled or running. */
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    /** Source of nonces. */
+    private final SecureRandom random = new SecureRandom();
+
+    /** Number of lookups answered from the file. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups not answered from the file. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The open file, guarded by the lock. */
+    private RandomAccessFile raf;
+
+    /** Whether the index has been built. */
+    private volatile boolean loaded;
+
+    /**
+     * Constructor.  Opens, or creates, the file but does not read it.
+     *
+     * @param cacheFile the cache file
+     * @param keyBytes AES key, 16, 24 or 32 bytes
+     * @param sizeLimit size, in bytes, past which the file is compacted
+     * @throws IOException if the file cannot be opened or is not a cache file
+     */
+    public BAEPersistentCache(@Nonnull final File cacheFile, @Nonnull final byte[] keyBytes, final long sizeLimit)
+            throws IOException {
+        if (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32) {
+            throw new IOException("The cache key must be 16, 24 or 32 bytes, not " + keyBytes.length);
+        }
+        file = cacheFile;
+        key = new SecretKeySpec(keyBytes, "AES");
+        maxBytes = sizeLimit;
+        raf = open(file);
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedDaemonThreadFactory("bae-cache-compact"));
+        executor.allowCoreThreadTimeOut(true);
+        compactor = executor;
+    }
+
+    /**
+     * Build the index from the file.  A truncated or corrupt tail, left by a crash, is cut off.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public void load() throws IOException {
+        final long start = System.currentTimeMillis();
+        final long now = start;
+        int count = 0;
+        lock.readLock().lock();
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            long position = 4;
+            while (position < size) {
+                final Record record = readHeader(channel, position, size);
+                if (record == null) {
+                    synchronized (appendLock) {
+                        if (channel.size() == size) {
+                            log.warn("Truncating BAE cache file {} at a damaged record at offset {}", file, position);
+                            channel.truncate(position);
+                        }
+                    }
+                    break;
+                }
+                if (record.expires > now) {
+                    index(record);
+                    count++;
+                }
+                position += 4 + record.length;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        loaded = true;
+        log.info("Loaded {} live BAE cache entries from {} in {}ms",
+                new Object[] {count, file, System.currentTimeMillis() - start});
+    }
+
+    /**
+     * Get the cached attributes for a subject.
+     *
+     * @param subject normalized subject identifier
+     * @return the entry, or null if nothing current is held or the index is still loading
+     */
+    @Nullable public Entry get(@Nonnull final String subject) {
+        final Record record = loaded ? index.get(subject) : null;
+        if (record == null || record.expires <= System.currentTimeMillis()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            final byte[] data;
+            lock.readLock().lock();
+            try {
+                final ByteBuffer buffer = ByteBuffer.allocate(record.length);
+                readFully(raf.getChannel(), buffer, record.offset + 4);
+                data = buffer.array();
+            } finally {
+                lock.readLock().unlock();
+            }
+            final int payload = 2 + record.keyLength + 16;
+            final Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, data, payload, IV_LENGTH));
+            cipher.updateAAD(aad(subject.getBytes(UTF8), record.created, record.expires));
+            final byte[] plain = cipher.doFinal(data, payload + IV_LENGTH, data.length - payload - IV_LENGTH);
+            hits.incrementAndGet();
+            return new Entry(BAEAttributeCodec.decode(plain), record.created, record.expires);
+        } catch (final IOException e) {
+            log.warn("Could not read the BAE cache entry for {}: {}", subject, e.getMessage());
+        } catch (final GeneralSecurityException e) {
+            log.warn("Could not decrypt the BAE cache entry for {}: {}", subject, e.getMessage());
+        }
+        index.remove(subject, record);
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Append the attributes for a subject.
+     *
+     * @param subject normalized subject identifier
+     * @param attributes the attributes
+     * @param created when the attributes were resolved
+     * @param expires when they expire
+     */
+    public void put(@Nonnull final String subject, @Nonnull final Map<String, IdPAttribute> attributes,
+            final long created, final long expires) {
+        final byte[] keyBytes = subject.getBytes(UTF8);
+        if (keyBytes.length > Short.MAX_VALUE) {
+            return;
+        }
+        try {
+            final byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            final Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(aad(keyBytes, created, expires));
+            final byte[] encrypted = cipher.doFinal(BAEAttributeCodec.encode(attributes));
+
+            final int length = 2 + keyBytes.length + 16 + IV_LENGTH + encrypted.length;
+            final ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+            buffer.putInt(length).putShort((short) keyBytes.length).put(keyBytes).putLong(created).putLong(expires)
+                    .put(iv).put(encrypted);
+            buffer.flip();
+
+            boolean compact = false;
+            lock.readLock().lock();
+            try {
+                synchronized (appendLock) {
+                    final FileChannel channel = raf.getChannel();
+                    final long offset = channel.size();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, offset + buffer.position());
+                    }
+                    index(new Record(subject, offset, length, keyBytes.length, created, expires));
+                    compact = offset + 4 + length > maxBytes;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (compact) {
+                scheduleCompaction();
+            }
+        } catch (final IOException e) {
+            log.warn("Could not write the BAE cache entry for {}: {}", subject, e.getMessage());
+        } catch (final GeneralSecurityException e) {
+            log.warn("Could not encrypt the BAE cache entry for {}: {}", subject, e.getMessage());
+        }
+    }
+
+    /** Compact the file in the background, unless a compaction is already pending. */
+    private void scheduleCompaction() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (final IOException e) {
+                        log.warn("Could not compact the BAE cache file {}: {}", file, e.getMessage());
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Rewrite the file with only the live entries, newest expiry first, up to three quarters of the size limit.
+     *
+     * @throws IOException if the file cannot be rewritten
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            final long now = System.currentTimeMillis();
+            final List<Record> live = new ArrayList<Record>(index.values());
+            Collections.sort(live, new Comparator<Record>() {
+                public int compare(final Record a, final Record b) {
+                    return a.expires < b.expires ? 1 : (a.expires > b.expires ? -1 : 0);
+                }
+            });
+
+            final File temp = new File(file.getPath() + ".compact");
+            final RandomAccessFile out = open(temp);
+            final List<Record> kept = new ArrayList<Record>(live.size());
+            try {
+                final FileChannel from = raf.getChannel();
+                final FileChannel to = out.getChannel();
+                long position = 4;
+                for (final Record record : live) {
+                    if (record.expires <= now || position + 4 + record.length > maxBytes * 3 / 4) {
+                        continue;
+                    }
+                    final ByteBuffer buffer = ByteBuffer.allocate(4 + record.length);
+                    readFully(from, buffer, record.offset);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        to.write(buffer, position + buffer.position());
+                    }
+                    kept.add(new Record(record.subject, position, record.length, record.keyLength, record.created,
+                            record.expires));
+                    position += 4 + record.length;
+                }
+                to.force(false);
+            } finally {
+                out.close();
+            }
+
+            raf.close();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            raf = open(file);
+            index.clear();
+            for (final Record record : kept) {
+                index.put(record.subject, record);
+            }
+            log.debug("Compacted BAE cache file {} to {} entries", file, kept.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Stop compacting and close the file. */
+    public void close() {
+        compactor.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            raf.close();
+        } catch (final IOException e) {
+            log.debug("Error closing BAE cache file {}: {}", file, e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get whether the index has been built.
+     *
+     * @return whether loaded
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Get the number of subjects indexed.
+     *
+     * @return the entry count
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the number of lookups answered from the file.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups not answered from the file.
+     *
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Make a record the subject's current one, unless a newer one has been indexed meanwhile.
+     *
+     * @param record the record
+     */
+    private void index(@Nonnull final Record record) {
+        while (true) {
+            final Record existing = index.putIfAbsent(record.subject, record);
+            if (existing == null || existing.offset >= record.offset
+                    || index.replace(record.subject, existing, record)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read the fixed part of a record.
+     *
+     * @param channel the file
+     * @param position where the record starts
+     * @param size the file size
+     * @return the record, or null if it is damaged or runs past the end of the file
+     * @throws IOException if the read fails
+     */
+    @Nullable private Record readHeader(@Nonnull final FileChannel channel, final long position, final long size)
+            throws IOException {
+        if (position + 6 > size) {
+            return null;
+        }
+        final ByteBuffer prefix = ByteBuffer.allocate(6);
+        readFully(channel, prefix, position);
+        prefix.flip();
+        final int length = prefix.getInt();
+        final int keyLength = prefix.getShort();
+        if (keyLength < 0 || length < 2 + keyLength + 16 + IV_LENGTH + TAG_BITS / 8 || position + 4 + length > size) {
+            return null;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(keyLength + 16);
+        readFully(channel, header, position + 6);
+        header.flip();
+        final byte[] keyBytes = new byte[keyLength];
+        header.get(keyBytes);
+        return new Record(new String(keyBytes, UTF8), position, length, keyLength, header.getLong(),
+                header.getLong());
+    }
+
+    /**
+     * Build the additional authenticated data of a record.
+     *
+     * @param keyBytes the encoded subject identifier
+     * @param created when the entry was cached
+     * @param expires when it expires
+     * @return the subject identifier followed by both times
+     */
+    @Nonnull private static byte[] aad(@Nonnull final byte[] keyBytes, final long created, final long expires) {
+        return ByteBuffer.allocate(keyBytes.length + 16).put(keyBytes).putLong(created).putLong(expires).array();
+    }
+
+    /**
+     * Fill a buffer from a file position.
+     *
+     * @param channel the file
+     * @param buffer the buffer
+     * @param position where to read from
+     * @throws IOException if the read fails or reaches the end of the file
+     */
+    private static void readFully(@Nonnull final FileChannel channel, @Nonnull final ByteBuffer buffer,
+            final long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new IOException("Unexpected end of BAE cache file");
+            }
+        }
+    }
+
+    /**
+     * Open a cache file, writing the header if it is new.  A file in the first format is emptied, as its records
+     * cannot be authenticated the current way.
+     *
+     * @param cacheFile the file
+     * @return the open file
+     * @throws IOException if it cannot be opened or is not a cache file
+     */
+    @Nonnull private static RandomAccessFile open(@Nonnull final File cacheFile) throws IOException {
+        final RandomAccessFile opened = new RandomAccessFile(cacheFile, "rw");
+        final int header = opened.length() < 4 ? 0 : opened.readInt();
+        if (opened.length() == 0 || header == MAGIC_V1) {
+            opened.setLength(0);
+            opened.seek(0);
+            opened.writeInt(MAGIC);
+        } else if (header != MAGIC) {
+            opened.close();
+            throw new IOException(cacheFile + " is not a BAE cache file");
+        }
+        return opened;
+    }
+
+    /** Where a subject's record is in the file. */
+    private static final class Record {
+
+        /** Normalized subject identifier. */
+        private final String subject;
+
+        /** Offset of the record's length prefix. */
+        private final long offset;
+
+        /** Length of the record after its length prefix. */
+        private final int length;
+
+        /** Length of the encoded subject identifier. */
+        private final int keyLength;
+
+        /** When the entry was cached. */
+        private final long created;
+
+        /** When the entry expires. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param subjectKey normalized subject identifier
+         * @param recordOffset offset of the record's length prefix
+         * @param recordLength length of the record after its length prefix
+         * @param subjectLength length of the encoded subject identifier
+         * @param creation when the entry was cached
+         * @param expiry when the entry expires
+         */
+        private Record(final String subjectKey, final long recordOffset, final int recordLength,
+                final int subjectLength, final long creation, final long expiry) {
+            subject = subjectKey;
+            offset = recordOffset;
+            length = recordLength;
+            keyLength = subjectLength;
+            created = creation;
+            expires = expiry;
+        }
+    }
+
+    /** A cached attribute set read back from the file. */
+    public static final class Entry {
+
+        /** The attributes. */
+        private final Map<String, IdPAttribute> attributes;
+
+        /** When the attributes were resolved. */
+        private final long created;
+
+        /** When they expire. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param attrs the attributes
+         * @param creation when the attributes were resolved
+         * @param expiry when they expire
+         */
+        private Entry(final Map<String, IdPAttribute> attrs, final long creation, final long expiry) {
+            attributes = attrs;
+            created = creation;
+            expires = expiry;
+        }
+
+        /**
+         * Get the attributes.
+         *
+         * @return the attributes
+         */
+        @Nonnull public Map<String, IdPAttribute> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * Get when the attributes were resolved.
+         *
+         * @return the creation time in milliseconds since the epoch
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Get when the attributes expire.
+         *
+         * @return the expiry time in milliseconds since the epoch
+         */
+        public long getExpires() {
+            return expires;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Progress and outcome of a batch of BAE pre-fetch queries.
+ */
+@ThreadSafe
+public class BAEPrefetchReport {
+
+    /** Number of principals in the batch. */
+    private final int requested;
+
+    /** When the batch started, in milliseconds since the epoch. */
+    private final long started;
+
+    /** When the batch finished, or zero while it is running. */
+    private volatile long finished;
+
+    /** Principals already cached, so not queried. */
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    /** Queries that returned attributes. */
+    private final AtomicInteger resolved = new AtomicInteger();
+
+    /** Queries that returned no attributes. */
+    private final AtomicInteger empty = new AtomicInteger();
+
+    /** Queries that failed, timed out or were turned away. */
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param count number of principals in the batch
+     */
+    public BAEPrefetchReport(final int count) {
+        requested = count;
+        started = System.currentTimeMillis();
+    }
+
+    /** Count a principal that was already cached. */
+    void onSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    /**
+     * Count a completed query.
+     *
+     * @param attributeCount number of attributes resolved
+     */
+    void onResolved(final int attributeCount) {
+        if (attributeCount > 0) {
+            resolved.incrementAndGet();
+        } else {
+            empty.incrementAndGet();
+        }
+    }
+
+    /** Count a failed query. */
+    void onFailed() {
+        failed.incrementAndGet();
+    }
+
+    /** Mark the batch finished. */
+    void onFinished() {
+        finished = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the number of principals in the batch.
+     *
+     * @return the batch size
+     */
+    public int getRequested() {
+        return requested;
+    }
+
+    /**
+     * Get the number of principals dealt with so far.
+     *
+     * @return the completed count
+     */
+    public int getCompleted() {
+        return skipped.get() + resolved.get() + empty.get() + failed.get();
+    }
+
+    /**
+     * Get the number of principals already cached, so not queried.
+     *
+     * @return the skipped count
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Get the number of queries that returned attributes.
+     *
+     * @return the resolved count
+     */
+    public int getResolved() {
+        return resolved.get();
+    }
+
+    /**
+     * Get the number of queries that returned no attributes.
+     *
+     * @return the empty count
+     */
+    public int getEmpty() {
+        return empty.get();
+    }
+
+    /**
+     * Get the number of queries that failed, timed out or were turned away.
+     *
+     * @return the failed count
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Get whether the batch has finished.
+     *
+     * @return whether finished
+     */
+    public boolean isFinished() {
+        return finished != 0;
+    }
+
+    /**
+     * Get how long the batch has been running, or ran for.
+     *
+     * @return the elapsed time in milliseconds
+     */
+    public long getElapsed() {
+        return (finished != 0 ? finished : System.currentTimeMillis()) - started;
+    }
+
+    /**
+     * Get the number of principals dealt with per second.
+     *
+     * @return the throughput
+     */
+    public double getThroughput() {
+        final long elapsed = getElapsed();
+        return elapsed > 0 ? getCompleted() * 1000.0 / elapsed : 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        return String.format("%d/%d done (%d cached, %d resolved, %d empty, %d failed) in %dms, %.1f/s",
+                getCompleted(), requested, skipped.get(), resolved.get(), empty.get(), failed.get(), getElapsed(),
+                getThroughput());
+    }
+}
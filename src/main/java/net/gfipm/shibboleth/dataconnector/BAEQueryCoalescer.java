@@ -0,0 +1,128 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+/**
+ * Deduplicates concurrent BAE queries for the same subject.
+ *
+ * The first caller for a subject runs the query on its own thread, any caller arriving while it is outstanding waits
+ * for and shares its outcome, including its failure.
+ */
+@ThreadSafe
+public class BAEQueryCoalescer {
+
+    /** Outstanding queries, keyed on the normalized subject identifier. */
+    private final ConcurrentMap<String, FutureTask<Map<String, IdPAttribute>>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<Map<String, IdPAttribute>>>();
+
+    /** Number of queries actually issued. */
+    private final AtomicLong issued = new AtomicLong();
+
+    /** Number of callers that shared an outstanding query. */
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Run the query for a subject, or wait on the one already outstanding for it.
+     *
+     * @param key normalized subject identifier
+     * @param query the query to run if none is outstanding
+     * @return the query result
+     * @throws Exception whatever the query threw
+     */
+    @Nonnull public Map<String, IdPAttribute> execute(@Nonnull final String key,
+            @Nonnull final Callable<Map<String, IdPAttribute>> query) throws Exception {
+
+        final FutureTask<Map<String, IdPAttribute>> task = new FutureTask<Map<String, IdPAttribute>>(query);
+        final FutureTask<Map<String, IdPAttribute>> outstanding = inFlight.putIfAbsent(key, task);
+        if (outstanding != null) {
+            coalesced.incrementAndGet();
+            return getResult(outstanding);
+        }
+
+        issued.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return getResult(task);
+    }
+
+    /**
+     * Wait for a query and unwrap its failure.
+     *
+     * @param task the query
+     * @return the query result
+     * @throws Exception whatever the query threw
+     */
+    @Nonnull private Map<String, IdPAttribute> getResult(@Nonnull final FutureTask<Map<String, IdPAttribute>> task)
+            throws Exception {
+        try {
+            return task.get();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Get the number of queries currently outstanding.
+     *
+     * @return the number of outstanding queries
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * Get the number of queries actually issued.
+     *
+     * @return the issued count
+     */
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    /**
+     * Get the number of callers that shared an outstanding query rather than issuing their own.
+     *
+     * @return the coalesced count
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,251 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.gtri.gfipm.bae.v2_0.BAEServer;
+import org.gtri.gfipm.bae.v2_0.BackendAttribute;
+import org.gtri.gfipm.bae.v2_0.SubjectIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asks a BAE Responder for just the attributes the connector maps.
+ *
+ * The BAE client's query takes only the subject, so the client is examined for an attributeQuery overload that also
+ * takes the attribute names, as a collection or an array.  When there is one, queries go through it.  If a
+ * projected query fails with a fault saying the request or the attribute names are unsupported, and the same query
+ * without projection succeeds, the responder is taken not to support attribute selection and is sent full queries
+ * from then on.  Any other failure, and any failure of an interrupted query, is passed on as it is.  Without an
+ * overload, queries pass straight through.
+ */
+@ThreadSafe
+public final class BAEQueryProjection implements InvocationHandler {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BAEQueryProjection.class);
+
+    /** The BAE client. */
+    private final BAEServer server;
+
+    /** Name of the responder, for logging. */
+    private final String name;
+
+    /** The projecting overload, null if there is none or the responder rejected it. */
+    @Nullable private volatile Method projected;
+
+    /** The attribute names, in the form the overload takes. */
+    @Nullable private final Object names;
+
+    /** Number of projected queries answered. */
+    private final AtomicLong projectedCount = new AtomicLong();
+
+    /** Number of full queries sent after a projected one failed. */
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param baeServer the BAE client
+     * @param responderName name of the responder, for logging
+     * @param attributeNames the names to ask for
+     */
+    private BAEQueryProjection(@Nonnull final BAEServer baeServer, @Nonnull final String responderName,
+            @Nonnull final Set<String> attributeNames) {
+        server = baeServer;
+        name = responderName;
+        Method overload = null;
+        Object converted = null;
+        for (final Method method : baeServer.getClass().getMethods()) {
+            final Class<?>[] types = method.getParameterTypes();
+            if (!"attributeQuery".equals(method.getName()) || types.length != 2
+                    || !types[0].isAssignableFrom(SubjectIdentifier.class)) {
+                continue;
+            }
+            if (types[1].isAssignableFrom(ArrayList.class)) {
+                converted = new ArrayList<String>(attributeNames);
+            } else if (types[1].isAssignableFrom(LinkedHashSet.class)) {
+                converted = new LinkedHashSet<String>(attributeNames);
+            } else if (types[1] == String[].class) {
+                converted = attributeNames.toArray(new String[attributeNames.size()]);
+            } else {
+                continue;
+            }
+            overload = method;
+            break;
+        }
+        projected = overload;
+        names = converted;
+    }
+
+    /**
+     * Wrap a BAE client so its queries ask only for the given attributes, where it can.
+     *
+     * @param baeServer the BAE client
+     * @param responderName name of the responder, for logging
+     * @param attributeNames the names to ask for
+     * @return the projecting handler
+     */
+    @Nonnull public static BAEQueryProjection wrap(@Nonnull final BAEServer baeServer,
+            @Nonnull final String responderName, @Nonnull final Set<String> attributeNames) {
+        return new BAEQueryProjection(baeServer, responderName, attributeNames);
+    }
+
+    /**
+     * Get the client to query through.
+     *
+     * @return the projecting client
+     */
+    @Nonnull public BAEServer getServer() {
+        return (BAEServer) Proxy.newProxyInstance(BAEServer.class.getClassLoader(), new Class<?>[] {BAEServer.class},
+                this);
+    }
+
+    /**
+     * Get whether queries are being projected.
+     *
+     * @return whether the client has a projecting query the responder accepts
+     */
+    public boolean isProjecting() {
+        return projected != null;
+    }
+
+    /**
+     * Get the number of projected queries answered.
+     *
+     * @return the count
+     */
+    public long getProjectedCount() {
+        return projectedCount.get();
+    }
+
+    /**
+     * Get the number of full queries sent after a projected one failed.
+     *
+     * @return the count
+     */
+    public long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    /** {@inheritDoc} */
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        final Method overload = projected;
+        if (overload == null || !"attributeQuery".equals(method.getName()) || args == null || args.length != 1) {
+            return forward(method, args);
+        }
+
+        try {
+            final Object result = overload.invoke(server, args[0], names);
+            projectedCount.incrementAndGet();
+            return result;
+        } catch (final IllegalAccessException e) {
+            projected = null;
+            log.info("BAE client for {} does not allow selecting attributes, sending full queries", name);
+            return forward(method, args);
+        } catch (final InvocationTargetException projectionFailure) {
+            if (!isSelectionUnsupported(projectionFailure.getCause())) {
+                throw projectionFailure.getCause();
+            }
+            fallbackCount.incrementAndGet();
+            final Object result = forward(method, args);
+            projected = null;
+            log.warn("BAE Responder {} failed a query for selected attributes but answered the full query, sending "
+                    + "it full queries from now on: {}", name, projectionFailure.getCause());
+            return result;
+        }
+    }
+
+    /**
+     * Decide whether a failed projected query failed because the responder does not support attribute selection:
+     * the fault is an unsupported operation, or names the SAML RequestUnsupported or InvalidAttrNameOrValue status, and
+     * the query was not interrupted.
+     *
+     * @param failure what the projected query threw
+     * @return whether to retry the query without projection
+     */
+    private static boolean isSelectionUnsupported(@Nullable final Throwable failure) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        boolean unsupported = false;
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof InterruptedException || cause instanceof InterruptedIOException) {
+                return false;
+            }
+            final String message = cause.getMessage() == null ? "" : cause.getMessage().toLowerCase(Locale.ROOT);
+            if (cause instanceof UnsupportedOperationException || message.contains("unsupported")
+                    || message.contains("invalidattrnameorvalue")) {
+                unsupported = true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return unsupported;
+    }
+
+    /**
+     * Call the client's own method.
+     *
+     * @param method the method
+     * @param args its arguments
+     * @return its result
+     * @throws Throwable whatever it threw
+     */
+    private Object forward(final Method method, final Object[] args) throws Throwable {
+        try {
+            return method.invoke(server, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Estimate the size of a response, as the characters of its attribute names and values.
+     *
+     * @param attributes the response
+     * @return the estimated size in characters
+     */
+    public static long estimatePayload(@Nonnull final Collection<BackendAttribute> attributes) {
+        long size = 0;
+        for (final BackendAttribute attribute : attributes) {
+            size += attribute.getName().length();
+            if (attribute.getValue() != null && attribute.getValue().getStringValue() != null) {
+                size += attribute.getValue().getStringValue().length();
+            }
+        }
+        return size;
+    }
+}
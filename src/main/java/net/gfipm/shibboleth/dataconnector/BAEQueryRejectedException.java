@@ -0,0 +1,36 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package net.gfipm.shibboleth.dataconnector;
+
+/**
+ * Thrown when a BAE query is not attempted because the connector is protecting itself or the BAE Responder.
+ */
+public class BAEQueryRejectedException extends Exception {
+
+    /** Serial version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param message why the query was not attempted
+     */
+    public BAEQueryRejectedException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,250 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token bucket limiting the rate of BAE queries made on behalf of one requester entity, whose quota the BAE provider
+ * enforces across every connector that uses it.
+ *
+ * Tokens accrue at the configured rate up to the burst size.  Interactive callers, resolving a login, take a token
+ * whenever one is available.  Background callers, refreshing or pre-fetching, wait while any interactive caller is
+ * waiting and leave the lower half of the bucket to interactive callers, so a burst of logins is not held up behind
+ * background traffic.  A caller that cannot get a token within its timeout is turned away.
+ */
+@ThreadSafe
+public class BAERateLimiter {
+
+    /** Priority of a query. */
+    public enum Priority {
+        /** Resolving an attribute query for a login. */
+        INTERACTIVE,
+
+        /** Refreshing or pre-fetching a cached result. */
+        BACKGROUND
+    }
+
+    /** Limiters shared by the connectors, keyed on the requester entity id. */
+    private static final ConcurrentMap<String, BAERateLimiter> SHARED = new ConcurrentHashMap<String, BAERateLimiter>();
+
+    /** The requester entity id. */
+    private final String entityId;
+
+    /** Tokens added per nanosecond, guarded by this. */
+    private double ratePerNano;
+
+    /** Most tokens held, guarded by this. */
+    private int burst;
+
+    /** Tokens held, guarded by this. */
+    private double tokens;
+
+    /** When tokens were last added, guarded by this. */
+    private long lastRefill;
+
+    /** Number of interactive callers waiting, guarded by this. */
+    private int interactiveWaiting;
+
+    /** Number of tokens granted, by priority. */
+    private final AtomicLong[] granted = {new AtomicLong(), new AtomicLong()};
+
+    /** Number of callers turned away, by priority. */
+    private final AtomicLong[] rejected = {new AtomicLong(), new AtomicLong()};
+
+    /** Time callers waited for a token, granted or not, by priority. */
+    private final LatencyHistogram[] waits = {new LatencyHistogram(), new LatencyHistogram()};
+
+    /**
+     * Constructor.
+     *
+     * @param id the requester entity id
+     * @param queriesPerSecond the sustained query rate
+     * @param burstSize the most queries that may be made at once after a quiet period
+     */
+    public BAERateLimiter(@Nonnull final String id, final double queriesPerSecond, final int burstSize) {
+        entityId = id;
+        ratePerNano = queriesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        burst = Math.max(1, burstSize);
+        tokens = burst;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Get the limiter shared by the connectors querying as a requester entity, creating it if need be.  A limiter
+     * already shared is changed to the given rate and burst, so the connector configured last wins.
+     *
+     * @param id the requester entity id
+     * @param queriesPerSecond the sustained query rate
+     * @param burstSize the most queries that may be made at once after a quiet period
+     * @return the shared limiter
+     */
+    @Nonnull public static BAERateLimiter forRequester(@Nonnull final String id, final double queriesPerSecond,
+            final int burstSize) {
+        BAERateLimiter limiter = SHARED.get(id);
+        if (limiter == null) {
+            final BAERateLimiter created = new BAERateLimiter(id, queriesPerSecond, burstSize);
+            limiter = SHARED.putIfAbsent(id, created);
+            if (limiter == null) {
+                return created;
+            }
+        }
+        limiter.configure(queriesPerSecond, burstSize);
+        return limiter;
+    }
+
+    /**
+     * Change the rate and burst size.
+     *
+     * @param queriesPerSecond the sustained query rate
+     * @param burstSize the most queries that may be made at once after a quiet period
+     */
+    public synchronized void configure(final double queriesPerSecond, final int burstSize) {
+        final double rate = queriesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        final int size = Math.max(1, burstSize);
+        if (rate != ratePerNano || size != burst) {
+            LoggerFactory.getLogger(BAERateLimiter.class).info(
+                    "Rate limit of BAE queries for {} changed to {}/s, bursts of {}",
+                    new Object[] {entityId, queriesPerSecond, size});
+            refill(System.nanoTime());
+            ratePerNano = rate;
+            burst = size;
+            tokens = Math.min(tokens, burst);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Take a token, waiting up to the timeout for one.
+     *
+     * @param priority the priority of the query
+     * @param timeout how long to wait, in milliseconds
+     * @return whether a token was taken
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire(@Nonnull final Priority priority, final long timeout) throws InterruptedException {
+        final boolean interactive = priority == Priority.INTERACTIVE;
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean acquired = false;
+        synchronized (this) {
+            if (interactive) {
+                interactiveWaiting++;
+            }
+            try {
+                long now = start;
+                while (true) {
+                    refill(now);
+                    final double needed = interactive ? 1 : 1 + burst / 2;
+                    final boolean eligible = interactive || interactiveWaiting == 0;
+                    if (eligible && tokens >= needed) {
+                        tokens -= 1;
+                        acquired = true;
+                        break;
+                    }
+                    final long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    // An ineligible caller is woken when the interactive callers are done.
+                    final long refillTime = eligible && ratePerNano > 0
+                            ? (long) ((needed - tokens) / ratePerNano) : remaining;
+                    final long sleep = Math.max(TimeUnit.MILLISECONDS.toNanos(1), Math.min(remaining, refillTime));
+                    TimeUnit.NANOSECONDS.timedWait(this, sleep);
+                    now = System.nanoTime();
+                }
+            } finally {
+                if (interactive) {
+                    interactiveWaiting--;
+                    notifyAll();
+                }
+            }
+        }
+        waits[priority.ordinal()].record(System.nanoTime() - start);
+        (acquired ? granted : rejected)[priority.ordinal()].incrementAndGet();
+        return acquired;
+    }
+
+    /**
+     * Add the tokens accrued since the last refill.
+     *
+     * @param now the current time, from {@link System#nanoTime()}
+     */
+    private void refill(final long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+    }
+
+    /**
+     * Get the requester entity id.
+     *
+     * @return the entity id
+     */
+    @Nonnull public String getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * Get the number of tokens currently available.
+     *
+     * @return the whole number of tokens
+     */
+    public synchronized int getAvailableTokens() {
+        refill(System.nanoTime());
+        return (int) tokens;
+    }
+
+    /**
+     * Get the number of tokens granted.
+     *
+     * @param priority the priority
+     * @return the count
+     */
+    public long getGrantedCount(@Nonnull final Priority priority) {
+        return granted[priority.ordinal()].get();
+    }
+
+    /**
+     * Get the number of callers turned away.
+     *
+     * @param priority the priority
+     * @return the count
+     */
+    public long getRejectedCount(@Nonnull final Priority priority) {
+        return rejected[priority.ordinal()].get();
+    }
+
+    /**
+     * Get the time callers waited for a token.
+     *
+     * @param priority the priority
+     * @return the waiting times
+     */
+    @Nonnull public LatencyHistogram getWaitTime(@Nonnull final Priority priority) {
+        return waits[priority.ordinal()];
+    }
+}
@@ -0,0 +1,341 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+/**
+ * Bounded cache of mapped BAE query results, keyed on the normalized subject identifier.
+ *
+ * Entries are evicted least-recently-used first once the cache is full, and expire after a time to live.  Empty
+ * results (nothing returned, or the query failed) are kept for a separate, normally shorter, time to live.  Expired
+ * non-empty results stay until evicted, so they can still be served when the BAE Responder cannot be asked.
+ *
+ * The entries are kept in insertion order and an entry is moved to the end when it is used, rather than relying on
+ * access order, so that {@link #contains(String)} can look at an entry without counting as a use of it.
+ */
+@ThreadSafe
+public class BAEResultCache {
+
+    /** Maximum number of entries. */
+    private final int maxSize;
+
+    /** Time to live, in milliseconds, of a non-empty result. */
+    private final long timeToLive;
+
+    /** Time to live, in milliseconds, of an empty or failed result. */
+    private final long negativeTimeToLive;
+
+    /** Entries in access order, guarded by itself. */
+    private final LinkedHashMap<String, CacheEntry> entries;
+
+    /** Number of lookups answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups not answered from the cache. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of lookups answered with an expired entry. */
+    private final AtomicLong staleHits = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param size maximum number of entries
+     * @param ttl time to live of a non-empty result, in milliseconds
+     * @param negativeTtl time to live of an empty result, in milliseconds
+     */
+    public BAEResultCache(final int size, final long ttl, final long negativeTtl) {
+        maxSize = size;
+        timeToLive = ttl;
+        negativeTimeToLive = negativeTtl;
+        entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(final Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the cached attributes for a subject.
+     *
+     * @param key normalized subject identifier
+     * @return the cached (unmodifiable) attributes, possibly empty, or null if nothing current is cached
+     */
+    @Nullable public Map<String, IdPAttribute> get(@Nonnull final String key) {
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            final CacheEntry entry = touch(key);
+            if (entry != null) {
+                if (entry.expires > now) {
+                    hits.incrementAndGet();
+                    return entry.attributes;
+                } else if (entry.attributes.isEmpty()) {
+                    entries.remove(key);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Get whether a current result, possibly empty, is cached for a subject.  Unlike the lookups, this neither counts
+     * as a hit or miss nor marks the entry as recently used.
+     *
+     * @param key normalized subject identifier
+     * @return whether an unexpired entry is held
+     */
+    public boolean contains(@Nonnull final String key) {
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            final CacheEntry entry = entries.get(key);
+            return entry != null && entry.expires > now;
+        }
+    }
+
+    /**
+     * Look up the entry for a subject, whether or not it has expired, so the caller can decide whether to serve it
+     * and whether to refresh it.  Expired empty results are dropped rather than returned.
+     *
+     * @param key normalized subject identifier
+     * @param staleGrace how long, in milliseconds, past expiry an entry still counts as a hit
+     * @return the entry, or null if none is held
+     */
+    @Nullable public CacheEntry lookup(@Nonnull final String key, final long staleGrace) {
+        final long now = System.currentTimeMillis();
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = touch(key);
+            if (entry != null && entry.expires <= now && entry.attributes.isEmpty()) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null || entry.expires + staleGrace <= now) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+            if (entry.expires <= now) {
+                staleHits.incrementAndGet();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Get the attributes last cached for a subject, if they expired no longer ago than a limit, so that revoked or
+     * changed attributes are not asserted for as long as the BAE Responder is unreachable.
+     *
+     * @param key normalized subject identifier
+     * @param maxStale how long, in milliseconds, past expiry the attributes may be
+     * @return the entry, or null if no non-empty result recent enough is held
+     */
+    @Nullable public CacheEntry getStale(@Nonnull final String key, final long maxStale) {
+        final long now = System.currentTimeMillis();
+        synchronized (entries) {
+            final CacheEntry entry = touch(key);
+            if (entry != null && !entry.attributes.isEmpty() && now - entry.expires <= maxStale) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Cache the attributes for a subject.  An empty map is cached with the negative time to live.
+     *
+     * @param key normalized subject identifier
+     * @param attributes the mapped attributes
+     * @return the unmodifiable view that was cached
+     */
+    @Nonnull public Map<String, IdPAttribute> put(@Nonnull final String key,
+            @Nonnull final Map<String, IdPAttribute> attributes) {
+        final long now = System.currentTimeMillis();
+        final Map<String, IdPAttribute> value;
+        final long ttl;
+        if (attributes.isEmpty()) {
+            value = Collections.emptyMap();
+            ttl = negativeTimeToLive;
+        } else {
+            value = Collections.unmodifiableMap(attributes);
+            ttl = timeToLive;
+        }
+        if (ttl > 0) {
+            synchronized (entries) {
+                entries.remove(key);
+                entries.put(key, new CacheEntry(value, now, now + ttl));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Cache attributes for a subject that were resolved earlier, keeping their original lifetime.
+     *
+     * @param key normalized subject identifier
+     * @param attributes the mapped attributes
+     * @param created when the attributes were resolved, in milliseconds since the epoch
+     * @param expires when they expire, in milliseconds since the epoch
+     * @return the unmodifiable view that was cached
+     */
+    @Nonnull public Map<String, IdPAttribute> put(@Nonnull final String key,
+            @Nonnull final Map<String, IdPAttribute> attributes, final long created, final long expires) {
+        final Map<String, IdPAttribute> value = Collections.unmodifiableMap(attributes);
+        synchronized (entries) {
+            entries.remove(key);
+            entries.put(key, new CacheEntry(value, created, expires));
+        }
+        return value;
+    }
+
+    /**
+     * Remove a subject from the cache.
+     *
+     * @param key normalized subject identifier
+     */
+    public void invalidate(@Nonnull final String key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Get the entry for a subject and mark it as the most recently used.  Must be called holding the entries lock.
+     *
+     * @param key normalized subject identifier
+     * @return the entry, or null if none is held
+     */
+    @Nullable private CacheEntry touch(@Nonnull final String key) {
+        final CacheEntry entry = entries.remove(key);
+        if (entry != null) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /** Remove all entries. */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Get the number of entries currently held, including any that have expired but not yet been evicted.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Get the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups not answered from the cache.
+     *
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of lookups answered with an expired entry.
+     *
+     * @return the stale hit count
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /** A cached result and its lifetime. */
+    public static final class CacheEntry {
+
+        /** The cached attributes. */
+        private final Map<String, IdPAttribute> attributes;
+
+        /** When the entry was cached, in milliseconds since the epoch. */
+        private final long created;
+
+        /** When the entry expires, in milliseconds since the epoch. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param attrs the cached attributes
+         * @param creation when the entry was cached
+         * @param expiry when the entry expires
+         */
+        private CacheEntry(final Map<String, IdPAttribute> attrs, final long creation, final long expiry) {
+            attributes = attrs;
+            created = creation;
+            expires = expiry;
+        }
+
+        /**
+         * Get the cached attributes.
+         *
+         * @return the (unmodifiable) attributes, possibly empty
+         */
+        @Nonnull public Map<String, IdPAttribute> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * Get when the entry was cached.
+         *
+         * @return the creation time in milliseconds since the epoch
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Get when the entry expires.
+         *
+         * @return the expiry time in milliseconds since the epoch
+         */
+        public long getExpires() {
+            return expires;
+        }
+    }
+}
@@ -0,0 +1,693 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.gtri.gfipm.bae.v2_0.BAEServer;
+import org.gtri.gfipm.bae.v2_0.BackendAttribute;
+import org.gtri.gfipm.bae.v2_0.SubjectIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The BAE Responders a connector queries, with load balancing across them and automatic removal of failing ones.
+ *
+ * A responder is ejected after a run of consecutive failures and re-admitted by a periodic health probe: a query for
+ * the probe subject if one is configured, otherwise a TCP connection to its host and port.  Probes run on their own
+ * threads under a time limit, so a responder that hangs cannot hold up the probes of the others, and a responder is
+ * not probed again while its last probe is still outstanding.  If every responder has been ejected, queries are
+ * spread across all of them rather than refused.
+ *
+ * With hedging enabled, a query that has not been answered within the observed latency percentile is sent to a second
+ * responder as well, and whichever answers first is used.  Hedges are capped at a percentage of queries so that a
+ * degraded backend cannot double the outbound traffic.
+ *
+ * Hedges and probe queries count against the requester's query quota like any other query.  With a rate limiter set,
+ * each takes a background token without waiting, and is not sent if none is available.
+ */
+@ThreadSafe
+public class BAEServerPool {
+
+    /** How the next responder is chosen. */
+    public enum Strategy {
+        /** Each responder in turn. */
+        ROUND_ROBIN,
+        /** The responder with the fewest queries outstanding. */
+        LEAST_OUTSTANDING,
+        /** The responder with the lowest smoothed latency, weighted by its outstanding queries. */
+        LATENCY
+    }
+
+    /** Weight of the newest sample in the smoothed latency. */
+    private static final double EWMA_ALPHA = 0.3;
+
+    /** Number of recent latencies the hedge delay is computed from. */
+    private static final int LATENCY_SAMPLES = 256;
+
+    /** Longest time, in milliseconds, a connection probe waits to connect. */
+    private static final int PROBE_CONNECT_TIMEOUT = 5000;
+
+    /** Samples needed before queries are hedged. */
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    /** Most hedges that can be saved up for a burst. */
+    private static final double MAX_HEDGE_TOKENS = 10;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BAEServerPool.class);
+
+    /** Name used when logging. */
+    private final String name;
+
+    /** The responders. */
+    private final List<Member> members;
+
+    /** How the next responder is chosen. */
+    private final Strategy strategy;
+
+    /** Consecutive failures that eject a responder. */
+    private final int failureThreshold;
+
+    /** Round robin position. */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Limits the hedges and probe queries sent, null if they are not limited. */
+    @Nullable private volatile BAERateLimiter rateLimiter;
+
+    /** Runs hedged queries, null if hedging is disabled. */
+    @Nullable private volatile ExecutorService hedgeExecutor;
+
+    /** Latency percentile, 1 to 99, after which a query is hedged. */
+    private int hedgePercentile;
+
+    /** Least delay, in milliseconds, before a query is hedged. */
+    private long hedgeMinDelay;
+
+    /** Hedges allowed, as a percentage of queries. */
+    private int hedgeMaxRate;
+
+    /** Recent latencies in milliseconds, guarded by itself. */
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+
+    /** Number of latencies recorded. */
+    private long latencyCount;
+
+    /** Current hedge delay, in milliseconds, or -1 until there are enough samples. */
+    private volatile long hedgeDelay = -1;
+
+    /** Hedges that may currently be sent, guarded by the latencies lock. */
+    private double hedgeTokens;
+
+    /** Number of hedged queries sent. */
+    private final AtomicLong hedgesSent = new AtomicLong();
+
+    /** Number of hedged queries that answered first. */
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param poolName name used when logging
+     * @param servers clients for the responders
+     * @param serverNames display names of the responders, in the same order
+     * @param balancing how the next responder is chosen
+     * @param failures consecutive failures that eject a responder
+     */
+    public BAEServerPool(@Nonnull final String poolName, @Nonnull final List<BAEServer> servers,
+            @Nonnull final List<String> serverNames, @Nonnull final Strategy balancing, final int failures) {
+        name = poolName;
+        strategy = balancing;
+        failureThreshold = Math.max(1, failures);
+        final List<Member> list = new ArrayList<Member>(servers.size());
+        for (int i = 0; i < servers.size(); i++) {
+            list.add(new Member(serverNames.get(i), servers.get(i)));
+        }
+        members = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Query a responder chosen by the load balancing strategy.
+     *
+     * @param identifier subject to query for
+     * @return the attributes returned
+     * @throws Exception whatever the responder threw
+     */
+    @Nonnull public Collection<BackendAttribute> attributeQuery(@Nonnull final SubjectIdentifier identifier)
+            throws Exception {
+        final ExecutorService executor = hedgeExecutor;
+        if (executor == null || getHealthyCount() < 2) {
+            return select(null).attributeQuery(identifier);
+        }
+        return hedgedAttributeQuery(executor, identifier);
+    }
+
+    /**
+     * Enable hedged queries.
+     *
+     * @param executor where to run the queries
+     * @param percentile latency percentile, 1 to 99, after which a query is hedged
+     * @param minDelay least delay, in milliseconds, before a query is hedged
+     * @param maxRate hedges allowed, as a percentage of queries
+     */
+    public void enableHedging(@Nonnull final ExecutorService executor, final int percentile, final long minDelay,
+            final int maxRate) {
+        hedgePercentile = Math.min(99, Math.max(1, percentile));
+        hedgeMinDelay = minDelay;
+        hedgeMaxRate = maxRate;
+        hedgeExecutor = executor;
+    }
+
+    /**
+     * Set the rate limiter that hedges and probe queries must take a token from.
+     *
+     * @param limiter the rate limiter, or null for none
+     */
+    public void setRateLimiter(@Nullable final BAERateLimiter limiter) {
+        rateLimiter = limiter;
+    }
+
+    /**
+     * Query a responder, and a second one too if the first is slow, using whichever answers first.  If the first to
+     * answer failed, the other is waited for.  If the executor is full the query runs on the calling thread, unhedged.
+     *
+     * @param executor where to run the queries
+     * @param identifier subject to query for
+     * @return the attributes returned
+     * @throws Exception whatever the responder(s) threw
+     */
+    @Nonnull private Collection<BackendAttribute> hedgedAttributeQuery(@Nonnull final ExecutorService executor,
+            @Nonnull final SubjectIdentifier identifier) throws Exception {
+
+        final CompletionService<Collection<BackendAttribute>> completion =
+                new ExecutorCompletionService<Collection<BackendAttribute>>(executor);
+        final Member primary = select(null);
+        final Future<Collection<BackendAttribute>> first;
+        try {
+            first = completion.submit(primary.newQuery(identifier));
+        } catch (final RejectedExecutionException e) {
+            return primary.attributeQuery(identifier);
+        }
+        Future<Collection<BackendAttribute>> second = null;
+        boolean answered = false;
+
+        try {
+            Future<Collection<BackendAttribute>> done = null;
+            final long delay = hedgeDelay;
+            if (delay >= 0) {
+                done = completion.poll(delay, TimeUnit.MILLISECONDS);
+                if (done == null && takeHedgeToken() && takeQueryToken()) {
+                    try {
+                        second = completion.submit(select(primary).newQuery(identifier));
+                        hedgesSent.incrementAndGet();
+                    } catch (final RejectedExecutionException e) {
+                        log.debug("{} Hedge executor is full, not hedging", name);
+                    }
+                }
+            }
+            if (done == null) {
+                done = completion.take();
+            }
+
+            try {
+                final Collection<BackendAttribute> result = getResult(done);
+                answered = true;
+                if (done == second) {
+                    hedgesWon.incrementAndGet();
+                }
+                return result;
+            } catch (final Exception e) {
+                if (second == null) {
+                    throw e;
+                }
+                final Collection<BackendAttribute> result = getResult(completion.take());
+                answered = true;
+                return result;
+            }
+        } finally {
+            // Once answered, the loser is ignored rather than interrupted, so that it is not counted against its
+            // responder.  If the caller gave up, at the search time limit, both are interrupted to free their threads.
+            first.cancel(!answered);
+            if (second != null) {
+                second.cancel(!answered);
+            }
+        }
+    }
+
+    /**
+     * Unwrap the outcome of a hedged query.
+     *
+     * @param future the query
+     * @return the attributes returned
+     * @throws Exception whatever the responder threw
+     */
+    @Nonnull private Collection<BackendAttribute> getResult(@Nonnull final Future<Collection<BackendAttribute>> future)
+            throws Exception {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Record the latency of a successful query, and earn hedge tokens.
+     *
+     * @param millis how long the query took
+     */
+    private void recordLatency(final long millis) {
+        synchronized (latencies) {
+            latencies[(int) (latencyCount++ % LATENCY_SAMPLES)] = millis;
+            hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + hedgeMaxRate / 100.0);
+            if (hedgeExecutor != null && latencyCount >= MIN_LATENCY_SAMPLES
+                    && (latencyCount == MIN_LATENCY_SAMPLES || latencyCount % 16 == 0)) {
+                final int count = (int) Math.min(latencyCount, LATENCY_SAMPLES);
+                final long[] sorted = new long[count];
+                System.arraycopy(latencies, 0, sorted, 0, count);
+                Arrays.sort(sorted);
+                hedgeDelay = Math.max(hedgeMinDelay, sorted[(count - 1) * hedgePercentile / 100]);
+            }
+        }
+    }
+
+    /**
+     * Spend a hedge token if one is available.
+     *
+     * @return whether a hedge may be sent
+     */
+    private boolean takeHedgeToken() {
+        synchronized (latencies) {
+            if (hedgeTokens >= 1) {
+                hedgeTokens -= 1;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Take a token from the rate limiter, if there is one, without waiting.
+     *
+     * @return whether a query beyond those the connector admitted may be sent
+     * @throws InterruptedException if interrupted
+     */
+    private boolean takeQueryToken() throws InterruptedException {
+        final BAERateLimiter limiter = rateLimiter;
+        if (limiter == null || limiter.acquire(BAERateLimiter.Priority.BACKGROUND, 0)) {
+            return true;
+        }
+        log.debug("{} Query rate limit reached, not sending a hedge or probe", name);
+        return false;
+    }
+
+    /**
+     * Get the current hedge delay.
+     *
+     * @return the delay in milliseconds, or -1 if queries are not yet hedged
+     */
+    public long getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Get the number of hedged queries sent.
+     *
+     * @return the hedge count
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * Get the number of hedged queries that answered before the original.
+     *
+     * @return the winning hedge count
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Choose a responder, avoiding one already in use if possible.
+     *
+     * @param exclude responder to avoid, may be null
+     * @return the chosen responder
+     */
+    @Nonnull public Member select(@Nullable final Member exclude) {
+        List<Member> candidates = new ArrayList<Member>(members.size());
+        for (final Member member : members) {
+            if (!member.ejected && member != exclude) {
+                candidates.add(member);
+            }
+        }
+        if (candidates.isEmpty()) {
+            for (final Member member : members) {
+                if (member != exclude) {
+                    candidates.add(member);
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates = members;
+        }
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+
+        final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        if (strategy == Strategy.ROUND_ROBIN) {
+            return candidates.get(start);
+        }
+        Member best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < candidates.size(); i++) {
+            // Start from the round robin position so that ties are spread out.
+            final Member member = candidates.get((start + i) % candidates.size());
+            final double score;
+            if (strategy == Strategy.LEAST_OUTSTANDING) {
+                score = member.outstanding.get();
+            } else {
+                score = member.latency * (member.outstanding.get() + 1);
+            }
+            if (score < bestScore) {
+                best = member;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Get the responders.
+     *
+     * @return the responders
+     */
+    @Nonnull public List<Member> getMembers() {
+        return members;
+    }
+
+    /**
+     * Get the number of responders not currently ejected.
+     *
+     * @return the healthy responder count
+     */
+    public int getHealthyCount() {
+        int healthy = 0;
+        for (final Member member : members) {
+            if (!member.ejected) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Start probing ejected responders.
+     *
+     * @param scheduler when to probe
+     * @param executor where to run the probes, with a thread for each responder
+     * @param interval how often, in milliseconds, to probe
+     * @param timeout how long, in milliseconds, a probe may take
+     * @param probeSubject subject to query for when probing, or null to only check that the responder accepts
+     *            connections
+     */
+    public void startProbing(@Nonnull final ScheduledExecutorService scheduler, @Nonnull final ExecutorService executor,
+            final long interval, final long timeout, @Nullable final SubjectIdentifier probeSubject) {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                probe(executor, timeout, probeSubject);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Probe each ejected responder once, unless its last probe is still outstanding.
+     *
+     * @param executor where to run the probes
+     * @param timeout how long, in milliseconds, a probe may take
+     * @param probeSubject subject to query for, or null to only connect
+     */
+    private void probe(@Nonnull final ExecutorService executor, final long timeout,
+            @Nullable final SubjectIdentifier probeSubject) {
+        for (final Member member : members) {
+            if (!member.ejected) {
+                continue;
+            }
+            if (member.probe != null && !member.probe.isDone()) {
+                log.debug("{} Health probe of BAE Responder {} is still outstanding", name, member.name);
+                continue;
+            }
+            try {
+                if (probeSubject != null && !takeQueryToken()) {
+                    return;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            final Future<?> probe;
+            try {
+                probe = executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        if (probeSubject == null) {
+                            connect(member.name);
+                        } else {
+                            member.server.attributeQuery(probeSubject);
+                        }
+                        return null;
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                log.debug("{} Health probe of BAE Responder {} not run: {}", new Object[] {name, member.name, e});
+                continue;
+            }
+            member.probe = probe;
+            try {
+                probe.get(timeout, TimeUnit.MILLISECONDS);
+                member.readmit();
+            } catch (final TimeoutException e) {
+                // A call that ignores the interrupt keeps its thread, and the responder is skipped until it returns.
+                probe.cancel(true);
+                log.debug("{} Health probe of BAE Responder {} timed out after {}ms",
+                        new Object[] {name, member.name, timeout});
+            } catch (final ExecutionException e) {
+                log.debug("{} Health probe of BAE Responder {} failed: {}",
+                        new Object[] {name, member.name, e.getCause()});
+            } catch (final InterruptedException e) {
+                probe.cancel(true);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check that a responder accepts TCP connections.
+     *
+     * @param url the responder's URL
+     * @throws IOException if the URL has no host or the connection fails
+     */
+    private void connect(@Nonnull final String url) throws IOException {
+        final URI uri = URI.create(url);
+        if (uri.getHost() == null) {
+            throw new IOException("No host in " + url);
+        }
+        int port = uri.getPort();
+        if (port < 0) {
+            port = "http".equalsIgnoreCase(uri.getScheme()) ? 80 : 443;
+        }
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(uri.getHost(), port), PROBE_CONNECT_TIMEOUT);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /** A responder and its health. */
+    public final class Member {
+
+        /** Display name. */
+        private final String name;
+
+        /** Client for the responder. */
+        private final BAEServer server;
+
+        /** Number of queries outstanding. */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        /** Smoothed latency, in milliseconds. */
+        private volatile double latency;
+
+        /** Current run of consecutive failures. */
+        private int consecutiveFailures;
+
+        /** Whether the responder has been ejected. */
+        private volatile boolean ejected;
+
+        /** The last health probe, only used by the probing thread. */
+        @Nullable private Future<?> probe;
+
+        /**
+         * Constructor.
+         *
+         * @param memberName display name
+         * @param baeServer client for the responder
+         */
+        private Member(final String memberName, final BAEServer baeServer) {
+            name = memberName;
+            server = baeServer;
+        }
+
+        /**
+         * Query this responder, recording the outcome.
+         *
+         * @param identifier subject to query for
+         * @return the attributes returned
+         * @throws Exception whatever the responder threw
+         */
+        @Nonnull public Collection<BackendAttribute> attributeQuery(@Nonnull final SubjectIdentifier identifier)
+                throws Exception {
+            final long start = System.nanoTime();
+            outstanding.incrementAndGet();
+            try {
+                final Collection<BackendAttribute> attributes = server.attributeQuery(identifier);
+                if (Thread.currentThread().isInterrupted()) {
+                    // Cancelled at the search time limit, but the client did not notice.
+                    onFailure();
+                } else {
+                    final long nanos = System.nanoTime() - start;
+                    onSuccess(nanos / 1000000.0);
+                    recordLatency(nanos / 1000000);
+                }
+                return attributes;
+            } catch (final Exception e) {
+                onFailure();
+                throw e;
+            } finally {
+                outstanding.decrementAndGet();
+            }
+        }
+
+        /**
+         * Wrap a query of this responder for running elsewhere.
+         *
+         * @param identifier subject to query for
+         * @return the query
+         */
+        @Nonnull private Callable<Collection<BackendAttribute>> newQuery(@Nonnull final SubjectIdentifier identifier) {
+            return new Callable<Collection<BackendAttribute>>() {
+                public Collection<BackendAttribute> call() throws Exception {
+                    return attributeQuery(identifier);
+                }
+            };
+        }
+
+        /**
+         * Get the display name.
+         *
+         * @return the name
+         */
+        @Nonnull public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the number of queries outstanding.
+         *
+         * @return the outstanding count
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * Get the smoothed latency.
+         *
+         * @return the latency in milliseconds
+         */
+        public double getLatency() {
+            return latency;
+        }
+
+        /**
+         * Get whether the responder is currently ejected.
+         *
+         * @return whether ejected
+         */
+        public boolean isEjected() {
+            return ejected;
+        }
+
+        /**
+         * Record a successful query.
+         *
+         * @param millis how long it took
+         */
+        private synchronized void onSuccess(final double millis) {
+            consecutiveFailures = 0;
+            latency = latency == 0 ? millis : EWMA_ALPHA * millis + (1 - EWMA_ALPHA) * latency;
+        }
+
+        /** Record a failed query, ejecting the responder once the threshold is reached. */
+        private synchronized void onFailure() {
+            if (++consecutiveFailures >= failureThreshold && !ejected) {
+                ejected = true;
+                log.warn("{} Ejecting BAE Responder {} after {} consecutive failure(s)",
+                        new Object[] {BAEServerPool.this.name, name, consecutiveFailures});
+            }
+        }
+
+        /** Put an ejected responder back into rotation. */
+        private synchronized void readmit() {
+            if (ejected) {
+                ejected = false;
+                consecutiveFailures = 0;
+                log.info("{} Re-admitting BAE Responder {}", BAEServerPool.this.name, name);
+            }
+        }
+    }
+}
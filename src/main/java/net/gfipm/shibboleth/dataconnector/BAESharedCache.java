@@ -0,0 +1,370 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tier of the BAE result cache shared across a cluster, behind each node's in-memory {@link BAEResultCache}.
+ *
+ * An entry is its creation and expiry times followed by the {@link BAEAttributeCodec} form of the attributes, and is
+ * stored until it expires.  Keys are prefixed with the connector's id, so connectors with different attribute maps
+ * can share a store.  The shared tier only ever saves a query: a store that cannot be read or written is logged and
+ * counted, and the resolution carries on without it.  With a time limit, reads and writes run on a small pool of
+ * their own, a read that takes longer than the limit is abandoned, and writes never hold up the caller.  After a
+ * failure the store is left alone for a few seconds, so that a store that is down costs each resolution nothing.
+ */
+@ThreadSafe
+public class BAESharedCache {
+
+    /** Size of the entry header. */
+    private static final int HEADER_SIZE = 16;
+
+    /** Most reads and writes in flight at once. */
+    private static final int MAX_THREADS = 16;
+
+    /** How long, in milliseconds, the store is skipped after a failure. */
+    private static final long RETRY_AFTER = 5000;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BAESharedCache.class);
+
+    /** Prefix of log messages. */
+    private final String logPrefix;
+
+    /** Prefix of the keys. */
+    private final String namespace;
+
+    /** The store. */
+    private final BAESharedStore store;
+
+    /** Number of lookups answered. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of lookups not answered. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Number of entries written. */
+    private final AtomicLong writes = new AtomicLong();
+
+    /** Number of failed reads and writes. */
+    private final AtomicLong errors = new AtomicLong();
+
+    /** Whether the last operation failed, so that only the first of a run of failures is logged as a warning. */
+    private volatile boolean failing;
+
+    /** Until when, in milliseconds since the epoch, the store is skipped. */
+    private volatile long skipUntil;
+
+    /** How long, in milliseconds, a read may take, zero for no limit. */
+    private final long timeout;
+
+    /** Runs reads and writes, null if there is no time limit. */
+    @Nullable private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param prefix prefix of log messages
+     * @param id prefix of the keys, normally the connector id
+     * @param sharedStore the store
+     */
+    public BAESharedCache(@Nonnull final String prefix, @Nonnull final String id,
+            @Nonnull final BAESharedStore sharedStore) {
+        this(prefix, id, sharedStore, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param prefix prefix of log messages
+     * @param id prefix of the keys, normally the connector id
+     * @param sharedStore the store
+     * @param readTimeout how long, in milliseconds, a read may take, zero for no limit
+     */
+    public BAESharedCache(@Nonnull final String prefix, @Nonnull final String id,
+            @Nonnull final BAESharedStore sharedStore, final long readTimeout) {
+        logPrefix = prefix;
+        namespace = id + ":";
+        store = sharedStore;
+        timeout = readTimeout;
+        executor = readTimeout > 0 ? new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedDaemonThreadFactory("bae-shared-" + id)) : null;
+    }
+
+    /**
+     * Get the shared entry for a subject.
+     *
+     * @param key normalized subject identifier
+     * @return the entry, or null if none is current or the store failed
+     */
+    @Nullable public Entry get(@Nonnull final String key) {
+        if (System.currentTimeMillis() < skipUntil) {
+            misses.incrementAndGet();
+            return null;
+        }
+        final byte[] data;
+        try {
+            data = read(namespace + key);
+        } catch (final IOException | RuntimeException | TimeoutException e) {
+            onError("read", key, e);
+            misses.incrementAndGet();
+            return null;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            misses.incrementAndGet();
+            return null;
+        }
+        failing = false;
+        if (data != null && data.length > HEADER_SIZE) {
+            final ByteBuffer header = ByteBuffer.wrap(data, 0, HEADER_SIZE);
+            final long created = header.getLong();
+            final long expires = header.getLong();
+            if (expires > System.currentTimeMillis()) {
+                try {
+                    final Map<String, IdPAttribute> attributes =
+                            BAEAttributeCodec.decode(Arrays.copyOfRange(data, HEADER_SIZE, data.length));
+                    hits.incrementAndGet();
+                    return new Entry(attributes, created, expires);
+                } catch (final IOException e) {
+                    onError("decode", key, e);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Share the attributes resolved for a subject.
+     *
+     * @param key normalized subject identifier
+     * @param attributes the mapped attributes
+     * @param created when they were resolved, in milliseconds since the epoch
+     * @param expires when they expire, in milliseconds since the epoch
+     */
+    public void put(@Nonnull final String key, @Nonnull final Map<String, IdPAttribute> attributes,
+            final long created, final long expires) {
+        if (System.currentTimeMillis() < skipUntil) {
+            return;
+        }
+        final byte[] encoded = BAEAttributeCodec.encode(attributes);
+        final byte[] data = ByteBuffer.allocate(HEADER_SIZE + encoded.length)
+                .putLong(created).putLong(expires).put(encoded).array();
+        final Runnable write = new Runnable() {
+            public void run() {
+                try {
+                    store.write(namespace + key, data, expires);
+                    writes.incrementAndGet();
+                    failing = false;
+                } catch (final IOException | RuntimeException e) {
+                    onError("write", key, e);
+                }
+            }
+        };
+        if (executor == null) {
+            write.run();
+            return;
+        }
+        try {
+            executor.execute(write);
+        } catch (final RejectedExecutionException e) {
+            log.debug("{} Shared cache is busy, not sharing {}", logPrefix, key);
+        }
+    }
+
+    /** Stop the reads and writes in flight. */
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Read an entry from the store, within the time limit if there is one.
+     *
+     * @param storeKey the key in the store
+     * @return the value, or null if there is none
+     * @throws IOException if the store failed
+     * @throws TimeoutException if the read took too long, or the pool is busy with reads that do
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Nullable private byte[] read(@Nonnull final String storeKey)
+            throws IOException, TimeoutException, InterruptedException {
+        if (executor == null) {
+            return store.read(storeKey);
+        }
+        final Future<byte[]> future;
+        try {
+            future = executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws IOException {
+                    return store.read(storeKey);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            throw new TimeoutException("every shared cache thread is busy");
+        }
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (final TimeoutException e) {
+            future.cancel(true);
+            throw new TimeoutException("no answer within " + timeout + "ms");
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Count and log a failed operation.
+     *
+     * @param operation what failed
+     * @param key the subject
+     * @param e the failure
+     */
+    private void onError(@Nonnull final String operation, @Nonnull final String key, @Nonnull final Exception e) {
+        errors.incrementAndGet();
+        skipUntil = System.currentTimeMillis() + RETRY_AFTER;
+        if (failing) {
+            log.debug("{} Shared cache {} of {} failed: {}", new Object[] {logPrefix, operation, key, e});
+        } else {
+            failing = true;
+            log.warn("{} Shared cache {} of {} failed, carrying on without it: {}",
+                    new Object[] {logPrefix, operation, key, e});
+        }
+    }
+
+    /**
+     * Get the number of lookups answered from the shared store.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups not answered from the shared store, including failed ones.
+     *
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of entries written to the shared store.
+     *
+     * @return the write count
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Get the number of reads and writes of the shared store that failed.
+     *
+     * @return the error count
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /** A shared result and its lifetime. */
+    public static final class Entry {
+
+        /** The attributes. */
+        private final Map<String, IdPAttribute> attributes;
+
+        /** When the attributes were resolved. */
+        private final long created;
+
+        /** When they expire. */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param attrs the attributes
+         * @param creation when the attributes were resolved
+         * @param expiry when they expire
+         */
+        private Entry(final Map<String, IdPAttribute> attrs, final long creation, final long expiry) {
+            attributes = attrs;
+            created = creation;
+            expires = expiry;
+        }
+
+        /**
+         * Get the attributes.
+         *
+         * @return the attributes
+         */
+        @Nonnull public Map<String, IdPAttribute> getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * Get when the attributes were resolved.
+         *
+         * @return the creation time in milliseconds since the epoch
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Get when the attributes expire.
+         *
+         * @return the expiry time in milliseconds since the epoch
+         */
+        public long getExpires() {
+            return expires;
+        }
+    }
+}
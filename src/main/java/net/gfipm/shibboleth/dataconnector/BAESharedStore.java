@@ -0,0 +1,61 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Storage shared by the IdP nodes of a cluster, in which the BAE connector keeps resolved attribute sets so that a
+ * subject is queried once per time to live across the cluster rather than once per node.
+ *
+ * Values are opaque byte arrays with an expiry time.  Implementations must be thread-safe, and may drop an entry at
+ * any time before it expires.
+ */
+public interface BAESharedStore {
+
+    /**
+     * Read an entry.
+     *
+     * @param key the key
+     * @return the value, or null if there is none or it has expired
+     * @throws IOException if the store cannot be read
+     */
+    @Nullable byte[] read(@Nonnull String key) throws IOException;
+
+    /**
+     * Write an entry, replacing any existing one.
+     *
+     * @param key the key
+     * @param value the value
+     * @param expires when the entry expires, in milliseconds since the epoch
+     * @throws IOException if the store cannot be written
+     */
+    void write(@Nonnull String key, @Nonnull byte[] value, long expires) throws IOException;
+
+    /**
+     * Remove an entry, if present.
+     *
+     * @param key the key
+     * @throws IOException if the store cannot be written
+     */
+    void delete(@Nonnull String key) throws IOException;
+}
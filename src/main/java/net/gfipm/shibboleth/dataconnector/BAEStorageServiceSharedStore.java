@@ -0,0 +1,207 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+
+import org.opensaml.storage.StorageCapabilities;
+import org.opensaml.storage.StorageRecord;
+import org.opensaml.storage.StorageService;
+
+/**
+ * A {@link BAESharedStore} kept in an OpenSAML {@link StorageService}, such as the IdP's memcached or database
+ * storage, so that the nodes of a cluster share BAE results through the store they already share sessions and
+ * replay caches through.
+ *
+ * The store is shared with other applications and often with other hosts, so nothing in it names or describes a
+ * subject.  Values are encrypted with AES-GCM under the configured key, as in the {@link BAEPersistentCache}, bound to
+ * the key they are stored under, and stored as base64 under one storage context.  Keys, which hold the principal, are
+ * replaced by their HMAC-SHA256 under a key derived from the same one.  Values longer than the service accepts are
+ * not stored.
+ */
+@ThreadSafe
+public class BAEStorageServiceSharedStore implements BAESharedStore {
+
+    /** Default storage context. */
+    public static final String DEFAULT_CONTEXT = "net.gfipm.shibboleth.bae";
+
+    /** Character set of hashed keys. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Hexadecimal digits. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Length of the AES-GCM nonce. */
+    private static final int IV_LENGTH = 12;
+
+    /** Length of the AES-GCM tag, in bits. */
+    private static final int TAG_BITS = 128;
+
+    /** The storage service. */
+    private final StorageService storage;
+
+    /** The storage context. */
+    private final String context;
+
+    /** Encryption key. */
+    private final SecretKeySpec valueKey;
+
+    /** Key the storage keys are hashed under. */
+    private final SecretKeySpec nameKey;
+
+    /** Source of nonces. */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Constructor.
+     *
+     * @param service the storage service
+     * @param keyBytes AES key, 16, 24 or 32 bytes
+     */
+    public BAEStorageServiceSharedStore(@Nonnull final StorageService service, @Nonnull final byte[] keyBytes) {
+        this(service, DEFAULT_CONTEXT, keyBytes);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param service the storage service
+     * @param ctx the storage context
+     * @param keyBytes AES key, 16, 24 or 32 bytes
+     */
+    public BAEStorageServiceSharedStore(@Nonnull final StorageService service, @Nonnull final String ctx,
+            @Nonnull final byte[] keyBytes) {
+        if (keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32) {
+            throw new IllegalArgumentException("The shared cache key must be 16, 24 or 32 bytes, not "
+                    + keyBytes.length);
+        }
+        storage = service;
+        context = ctx;
+        valueKey = new SecretKeySpec(keyBytes, "AES");
+        nameKey = new SecretKeySpec(hmac(new SecretKeySpec(keyBytes, "HmacSHA256"), "BAE shared store key names"),
+                "HmacSHA256");
+    }
+
+    /** {@inheritDoc} */
+    @Nullable public byte[] read(@Nonnull final String key) throws IOException {
+        final StorageRecord<?> record = storage.read(context, storageKey(key));
+        if (record == null || record.getValue() == null) {
+            return null;
+        }
+        final Long expiration = record.getExpiration();
+        if (expiration != null && expiration <= System.currentTimeMillis()) {
+            return null;
+        }
+        final byte[] value = Base64Support.decode(record.getValue());
+        if (value == null || value.length < IV_LENGTH + TAG_BITS / 8) {
+            throw new IOException("Stored value is not an encrypted entry");
+        }
+        try {
+            final Cipher cipher = Cipher.getInstance(BAEPersistentCache.CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, valueKey, new GCMParameterSpec(TAG_BITS, value, 0, IV_LENGTH));
+            cipher.updateAAD(storageKey(key).getBytes(UTF8));
+            return cipher.doFinal(value, IV_LENGTH, value.length - IV_LENGTH);
+        } catch (final GeneralSecurityException e) {
+            throw new IOException("Stored value could not be decrypted: " + e.getMessage());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void write(@Nonnull final String key, @Nonnull final byte[] value, final long expires) throws IOException {
+        final String storageKey = storageKey(key);
+        final byte[] encrypted;
+        try {
+            final byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            final Cipher cipher = Cipher.getInstance(BAEPersistentCache.CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, valueKey, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(storageKey.getBytes(UTF8));
+            final byte[] sealed = cipher.doFinal(value);
+            encrypted = ByteBuffer.allocate(IV_LENGTH + sealed.length).put(iv).put(sealed).array();
+        } catch (final GeneralSecurityException e) {
+            throw new IOException("Value could not be encrypted: " + e.getMessage());
+        }
+        final String encoded = Base64Support.encode(encrypted, Base64Support.UNCHUNKED);
+        final long limit = storage.getCapabilities().getValueSize();
+        if (encoded.length() > limit) {
+            throw new IOException("Value of " + encoded.length() + " characters exceeds the storage limit of " + limit);
+        }
+        if (!storage.create(context, storageKey, encoded, expires)) {
+            storage.update(context, storageKey, encoded, expires);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void delete(@Nonnull final String key) throws IOException {
+        storage.delete(context, storageKey(key));
+    }
+
+    /**
+     * Get the key to store an entry under, its keyed digest in hex.
+     *
+     * @param key the key
+     * @return the storage key
+     * @throws IOException if the digest is longer than the service accepts
+     */
+    @Nonnull private String storageKey(@Nonnull final String key) throws IOException {
+        final StorageCapabilities capabilities = storage.getCapabilities();
+        if (capabilities.getKeySize() < 64) {
+            throw new IOException("Storage keys of " + capabilities.getKeySize() + " characters are too short");
+        }
+        final byte[] digest = hmac(nameKey, key);
+        final char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Compute an HMAC-SHA256.
+     *
+     * @param macKey the key
+     * @param data the text to authenticate
+     * @return the MAC
+     */
+    @Nonnull private static byte[] hmac(@Nonnull final SecretKeySpec macKey, @Nonnull final String data) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(macKey);
+            return mac.doFinal(data.getBytes(UTF8));
+        } catch (final GeneralSecurityException e) {
+            // Every JVM provides HmacSHA256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
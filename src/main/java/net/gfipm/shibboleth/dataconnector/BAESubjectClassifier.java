@@ -0,0 +1,230 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.gtri.gfipm.bae.v2_0.EmailSubjectIdentifier;
+import org.gtri.gfipm.bae.v2_0.FASCNSubjectIdentifier;
+import org.gtri.gfipm.bae.v2_0.InvalidFASCNException;
+import org.gtri.gfipm.bae.v2_0.PIVUUIDSubjectIdentifier;
+import org.gtri.gfipm.bae.v2_0.SubjectIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which kind of BAE subject identifier a principal is.
+ *
+ * Principals are matched against precompiled rules rather than parsed on trial, so no exception is thrown for an
+ * ordinary principal.  A DN-style principal ("/CN=user/O=org") is first reduced to its leading value.  Each rule's
+ * first group, if it has one, is the value passed to the identifier.  Anything that is neither a UUID nor a FASC-N is
+ * treated as an e-mail address, as before; a principal that does not look like one is logged.  Recent principals are
+ * kept in a small least-recently-used cache, so a repeat login skips classification.
+ */
+@ThreadSafe
+public class BAESubjectClassifier {
+
+    /** Default PIV-I UUID rule: a UUID URN, the UUID being the identifier. */
+    public static final String DEFAULT_UUID_PATTERN =
+            "(?i)urn:uuid:([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})";
+
+    /** Default FASC-N rule: 32 or 40 decimal digits, or the 200 bit encoding in hex. */
+    public static final String DEFAULT_FASCN_PATTERN = "[0-9]{32}|[0-9]{40}|[0-9A-Fa-f]{50}";
+
+    /** Default e-mail rule. */
+    public static final String DEFAULT_EMAIL_PATTERN = "[^@\\s]+@[^@\\s]+\\.[^@\\s]+";
+
+    /** Default DN rule: a slash separated DN, its leading value being the principal. */
+    public static final String DEFAULT_DN_PATTERN = "/[A-Za-z0-9.]+=([^/]+)(?:/.*)?";
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BAESubjectClassifier.class);
+
+    /** UUID rule. */
+    private final Pattern uuidPattern;
+
+    /** FASC-N rule. */
+    private final Pattern fascnPattern;
+
+    /** E-mail rule. */
+    private final Pattern emailPattern;
+
+    /** DN rule. */
+    private final Pattern dnPattern;
+
+    /** Maximum number of cached classifications, zero for none. */
+    private final int cacheSize;
+
+    /** Recent classifications in access order, guarded by itself. */
+    private final LinkedHashMap<String, SubjectIdentifier> cache;
+
+    /** Number of classifications answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Number of classifications made. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Constructor using the default rules and a cache of 1000 principals. */
+    public BAESubjectClassifier() {
+        this(null, null, null, null, 1000);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param uuidRegex UUID rule, null for the default
+     * @param fascnRegex FASC-N rule, null for the default
+     * @param emailRegex e-mail rule, null for the default
+     * @param dnRegex DN rule, null for the default
+     * @param size maximum number of cached classifications, zero for none
+     * @throws java.util.regex.PatternSyntaxException if a rule is not a valid regular expression
+     */
+    public BAESubjectClassifier(@Nullable final String uuidRegex, @Nullable final String fascnRegex,
+            @Nullable final String emailRegex, @Nullable final String dnRegex, final int size) {
+        uuidPattern = Pattern.compile(uuidRegex == null ? DEFAULT_UUID_PATTERN : uuidRegex);
+        fascnPattern = Pattern.compile(fascnRegex == null ? DEFAULT_FASCN_PATTERN : fascnRegex);
+        emailPattern = Pattern.compile(emailRegex == null ? DEFAULT_EMAIL_PATTERN : emailRegex);
+        dnPattern = Pattern.compile(dnRegex == null ? DEFAULT_DN_PATTERN : dnRegex);
+        cacheSize = size;
+        cache = new LinkedHashMap<String, SubjectIdentifier>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(final Map.Entry<String, SubjectIdentifier> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Classify a principal.
+     *
+     * @param principal the principal
+     * @return the subject identifier
+     */
+    @Nonnull public SubjectIdentifier classify(@Nonnull final String principal) {
+        if (cacheSize > 0) {
+            synchronized (cache) {
+                final SubjectIdentifier cached = cache.get(principal);
+                if (cached != null) {
+                    hits.incrementAndGet();
+                    return cached;
+                }
+            }
+        }
+        misses.incrementAndGet();
+
+        final SubjectIdentifier identifier = match(principal);
+        if (cacheSize > 0) {
+            synchronized (cache) {
+                cache.put(principal, identifier);
+            }
+        }
+        return identifier;
+    }
+
+    /**
+     * Get the type of a subject identifier, for reporting without the principal itself.
+     *
+     * @param identifier the subject identifier
+     * @return "UUID", "FASCN" or "EMAIL"
+     */
+    @Nonnull public static String getType(@Nonnull final SubjectIdentifier identifier) {
+        if (identifier instanceof PIVUUIDSubjectIdentifier) {
+            return "UUID";
+        } else if (identifier instanceof FASCNSubjectIdentifier) {
+            return "FASCN";
+        }
+        return "EMAIL";
+    }
+
+    /**
+     * Apply the rules to a principal.
+     *
+     * @param principal the principal
+     * @return the subject identifier
+     */
+    @Nonnull private SubjectIdentifier match(@Nonnull final String principal) {
+        String value = principal;
+        final Matcher dn = dnPattern.matcher(value);
+        if (dn.matches()) {
+            value = group(dn);
+            log.debug("Principal {} reduced to {}", principal, value);
+        }
+
+        final Matcher uuid = uuidPattern.matcher(value);
+        if (uuid.matches()) {
+            log.debug("Principal {} resolved as PIV-I UUID type.", principal);
+            return new PIVUUIDSubjectIdentifier(group(uuid));
+        }
+
+        final Matcher fascn = fascnPattern.matcher(value);
+        if (fascn.matches()) {
+            try {
+                final SubjectIdentifier identifier = new FASCNSubjectIdentifier(group(fascn));
+                log.debug("Principal {} resolved as FASCN type.", principal);
+                return identifier;
+            } catch (final InvalidFASCNException e) {
+                log.debug("Principal {} has the form of a FASCN but is not valid: {}", principal, e.getMessage());
+            }
+        }
+
+        if (emailPattern.matcher(value).matches()) {
+            log.debug("Principal {} resolved as E-mail type.", principal);
+        } else {
+            log.info("Principal {} is not a UUID, FASCN or E-mail address, querying for it as E-mail", principal);
+        }
+        return new EmailSubjectIdentifier(value);
+    }
+
+    /**
+     * Get the identifier value from a rule match: its first group, or the whole match if it has none.
+     *
+     * @param matcher the match
+     * @return the value
+     */
+    @Nonnull private static String group(@Nonnull final Matcher matcher) {
+        return matcher.groupCount() > 0 && matcher.group(1) != null ? matcher.group(1) : matcher.group();
+    }
+
+    /**
+     * Get the number of classifications answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of classifications made.
+     *
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
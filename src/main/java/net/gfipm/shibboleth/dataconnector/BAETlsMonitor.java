@@ -0,0 +1,343 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes and watches the JVM's default TLS client, which the BAE client connects through.
+ *
+ * The session cache of the default SSL context can be resized and its timeout changed, so that connections to the
+ * BAE Responder resume an earlier session rather than doing a full handshake.  Once installed, the monitor wraps the
+ * default HTTPS socket factory to count full and resumed handshakes and the connections still open, to the BAE
+ * Responder endpoints it has been told to watch only.  Both act on the whole JVM, not just the BAE client, so both
+ * are opt-in.  The wrapping factory is never uninstalled: it stays the JVM's default until the JVM exits, passing
+ * every call through to the factory it replaced.
+ *
+ * A handshake counts as resumed when its session, or a session with the same ID, was seen by an earlier handshake.
+ */
+@ThreadSafe
+public final class BAETlsMonitor extends SSLSocketFactory implements HandshakeCompletedListener {
+
+    /** Most session IDs remembered. */
+    private static final int MAX_SESSION_IDS = 10000;
+
+    /** The installed monitor, null until installed. */
+    private static volatile BAETlsMonitor installed;
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BAETlsMonitor.class);
+
+    /** The wrapped factory. */
+    private final SSLSocketFactory delegate;
+
+    /** Full handshakes completed. */
+    private final AtomicLong handshakes = new AtomicLong();
+
+    /** Handshakes that resumed an earlier session. */
+    private final AtomicLong resumed = new AtomicLong();
+
+    /** Watched endpoints, as lower case "host:port". */
+    private final Set<String> endpoints = Collections.synchronizedSet(new HashSet<String>());
+
+    /** Sessions seen by a handshake, held weakly so expired ones can be collected. */
+    private final Set<SSLSession> seenSessions = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<SSLSession, Boolean>()));
+
+    /** IDs of the sessions seen by a handshake, most recent last, guarded by itself. */
+    private final Map<String, Boolean> seenIds = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_SESSION_IDS;
+        }
+    };
+
+    /** Sockets created, held weakly so closed ones can be collected. */
+    private final Set<SSLSocket> sockets = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<SSLSocket, Boolean>()));
+
+    /**
+     * Constructor.
+     *
+     * @param factory the factory to wrap
+     */
+    private BAETlsMonitor(@Nonnull final SSLSocketFactory factory) {
+        delegate = factory;
+    }
+
+    /**
+     * Resize the default client session cache and change its timeout.
+     *
+     * @param size maximum number of cached sessions, zero to leave as is
+     * @param timeout session lifetime in seconds, zero to leave as is
+     */
+    public static void tuneSessionCache(final int size, final int timeout) {
+        final SSLSessionContext sessions = getSessionContext();
+        if (sessions == null) {
+            return;
+        }
+        if (size > 0) {
+            sessions.setSessionCacheSize(size);
+        }
+        if (timeout > 0) {
+            sessions.setSessionTimeout(timeout);
+        }
+    }
+
+    /**
+     * Install the monitor as the default HTTPS socket factory, unless it already is.
+     *
+     * @return the monitor
+     */
+    @Nonnull public static synchronized BAETlsMonitor install() {
+        if (installed == null || HttpsURLConnection.getDefaultSSLSocketFactory() != installed) {
+            installed = new BAETlsMonitor(HttpsURLConnection.getDefaultSSLSocketFactory());
+            HttpsURLConnection.setDefaultSSLSocketFactory(installed);
+        }
+        return installed;
+    }
+
+    /**
+     * Watch the connections to an endpoint.
+     *
+     * @param url the endpoint's URL
+     */
+    public void watchEndpoint(@Nonnull final String url) {
+        final URI uri = URI.create(url);
+        if (uri.getHost() != null) {
+            final int port = uri.getPort() < 0 ? 443 : uri.getPort();
+            endpoints.add(uri.getHost().toLowerCase(Locale.ROOT) + ":" + port);
+        }
+    }
+
+    /**
+     * Get the installed monitor.
+     *
+     * @return the monitor, or null if none is installed
+     */
+    public static BAETlsMonitor getInstalled() {
+        return installed;
+    }
+
+    /**
+     * Count the sessions in the default client session cache.
+     *
+     * @return the number of cached sessions, -1 if unavailable
+     */
+    public static int getCachedSessionCount() {
+        final SSLSessionContext sessions = getSessionContext();
+        if (sessions == null) {
+            return -1;
+        }
+        int count = 0;
+        for (final Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements(); ids.nextElement()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the default client session context.
+     *
+     * @return the context, or null if there is no default SSL context
+     */
+    private static SSLSessionContext getSessionContext() {
+        try {
+            return SSLContext.getDefault().getClientSessionContext();
+        } catch (final NoSuchAlgorithmException e) {
+            LoggerFactory.getLogger(BAETlsMonitor.class).warn("No default SSL context: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get the number of full handshakes.
+     *
+     * @return the count
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * Get the number of handshakes that resumed an earlier session.
+     *
+     * @return the count
+     */
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    /**
+     * Count the connections still open.
+     *
+     * @return the count
+     */
+    public int getOpenConnectionCount() {
+        int open = 0;
+        synchronized (sockets) {
+            for (final SSLSocket socket : sockets) {
+                if (!socket.isClosed() && isWatched(socket)) {
+                    open++;
+                }
+            }
+        }
+        return open;
+    }
+
+    /** {@inheritDoc} */
+    public void handshakeCompleted(final HandshakeCompletedEvent event) {
+        if (!isWatched(event.getSocket())) {
+            return;
+        }
+        final SSLSession session = event.getSession();
+        final boolean seen = !seenSessions.add(session);
+        final byte[] id = session.getId();
+        boolean seenId = false;
+        if (id != null && id.length > 0) {
+            synchronized (seenIds) {
+                seenId = seenIds.put(toHex(id), Boolean.TRUE) != null;
+            }
+        }
+        if (seen || seenId) {
+            resumed.incrementAndGet();
+        } else {
+            handshakes.incrementAndGet();
+        }
+        log.trace("TLS handshake with {} completed", session.getPeerHost());
+    }
+
+    /**
+     * Get whether a socket is connected to a watched endpoint.
+     *
+     * @param socket the socket
+     * @return whether it is watched
+     */
+    private boolean isWatched(final Socket socket) {
+        final InetAddress address = socket.getInetAddress();
+        if (address == null) {
+            return false;
+        }
+        // The host name the socket was opened with, if any, without a reverse lookup.
+        final String name = address.toString();
+        final String host = name.substring(0, name.indexOf('/')).toLowerCase(Locale.ROOT);
+        final int port = socket.getPort();
+        return endpoints.contains(host + ":" + port) || endpoints.contains(address.getHostAddress() + ":" + port);
+    }
+
+    /**
+     * Encode a session ID.
+     *
+     * @param id the ID
+     * @return the ID in hex
+     */
+    private static String toHex(final byte[] id) {
+        final StringBuilder hex = new StringBuilder(id.length * 2);
+        for (final byte b : id) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Watch a socket the delegate created.
+     *
+     * @param socket the socket
+     * @return the socket
+     */
+    private Socket watch(final Socket socket) {
+        if (socket instanceof SSLSocket) {
+            final SSLSocket sslSocket = (SSLSocket) socket;
+            sslSocket.addHandshakeCompletedListener(this);
+            sockets.add(sslSocket);
+        }
+        return socket;
+    }
+
+    /** {@inheritDoc} */
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    /** {@inheritDoc} */
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    /** {@inheritDoc} */
+    public Socket createSocket() throws IOException {
+        return watch(delegate.createSocket());
+    }
+
+    /** {@inheritDoc} */
+    public Socket createSocket(final Socket socket, final String host, final int port, final boolean autoClose)
+            throws IOException {
+        return watch(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    /** {@inheritDoc} */
+    public Socket createSocket(final String host, final int port) throws IOException {
+        return watch(delegate.createSocket(host, port));
+    }
+
+    /** {@inheritDoc} */
+    public Socket createSocket(final String host, final int port, final InetAddress localHost, final int localPort)
+            throws IOException {
+        return watch(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    /** {@inheritDoc} */
+    public Socket createSocket(final InetAddress host, final int port) throws IOException {
+        return watch(delegate.createSocket(host, port));
+    }
+
+    /** {@inheritDoc} */
+    public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress,
+            final int localPort) throws IOException {
+        return watch(delegate.createSocket(address, port, localAddress, localPort));
+    }
+}
@@ -0,0 +1,369 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import net.shibboleth.idp.attribute.IdPAttribute;
+import net.shibboleth.idp.attribute.IdPAttributeValue;
+import net.shibboleth.idp.attribute.StringAttributeValue;
+import net.shibboleth.idp.attribute.resolver.ResolutionException;
+
+import com.google.common.collect.Lists;
+
+/**
+ * All users' test attributes in one memory-mapped file, for directories too large to hold on the heap.
+ *
+ * The file starts with a magic number and the user count, followed by an index of record offsets sorted by the
+ * principal's UTF-8 bytes, followed by the records.  A record is the principal, the attribute count and the
+ * name/value pairs, strings being written as a length and their UTF-8 bytes.  A lookup binary searches the index
+ * and decodes just the one matching record, so heap use does not grow with the user count and opening the file
+ * costs no more than mapping it.  Every offset and length read is checked against the file, so a damaged file fails
+ * the lookup rather than the resolver.  The file is limited to 2GB.
+ *
+ * Files are built from a directory of per-user ".attr" files with {@link #convert(File, File)}, or from the
+ * command line with {@link #main(String[])}.
+ */
+@ThreadSafe
+public class BulkAttributeFile {
+
+    /** File header, "GAT" and the format version. */
+    private static final int MAGIC = 0x47415401;
+
+    /** Length of the header. */
+    private static final int HEADER_LENGTH = 8;
+
+    /** Character set of the strings. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Orders principals by their UTF-8 bytes, as the index is searched. */
+    private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+        public int compare(final byte[] a, final byte[] b) {
+            final int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                final int diff = (a[i] & 0xff) - (b[i] & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    /** The mapped file.  Only absolute reads are made on it, so it is safely shared. */
+    private final MappedByteBuffer buffer;
+
+    /** Number of users. */
+    private final int count;
+
+    /**
+     * Constructor.  Maps the file; nothing is read until a lookup.
+     *
+     * @param file the bulk attribute file
+     * @throws IOException if the file cannot be mapped or is not a bulk attribute file
+     */
+    public BulkAttributeFile(@Nonnull final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if (length < HEADER_LENGTH || length > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a bulk attribute file, or is larger than 2GB");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close();
+        }
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a bulk attribute file");
+        }
+        count = buffer.getInt(4);
+        if (count < 0 || HEADER_LENGTH + 4L * count > buffer.capacity()) {
+            throw new IOException(file + " has a damaged index");
+        }
+    }
+
+    /**
+     * Get the number of users in the file.
+     *
+     * @return the user count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Look up a user's attributes.
+     *
+     * @param principal the principal
+     * @return the attributes keyed by name, or null if the user is not in the file
+     * @throws ResolutionException if the record or the index entries searched are damaged
+     */
+    @Nullable public Map<String, IdPAttribute> lookup(@Nonnull final String principal) throws ResolutionException {
+        final byte[] key = principal.getBytes(UTF8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int offset = buffer.getInt(HEADER_LENGTH + 4 * middle);
+            checkRange(offset, 4);
+            final int diff = compareKey(offset, key);
+            if (diff < 0) {
+                low = middle + 1;
+            } else if (diff > 0) {
+                high = middle - 1;
+            } else {
+                return decode(offset);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compare the principal of the record at an offset with a key, byte by byte, without copying it.
+     *
+     * @param offset where the record starts
+     * @param key the UTF-8 key
+     * @return negative, zero or positive as the record sorts before, equal to or after the key
+     * @throws ResolutionException if the principal runs past the end of the file
+     */
+    private int compareKey(final int offset, @Nonnull final byte[] key) throws ResolutionException {
+        final int length = buffer.getInt(offset);
+        checkRange(offset + 4L, length);
+        final int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            final int diff = (buffer.get(offset + 4 + i) & 0xff) - (key[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length;
+    }
+
+    /**
+     * Decode the attributes of the record at an offset.
+     *
+     * @param offset where the record starts
+     * @return the attributes keyed by name
+     * @throws ResolutionException if the record runs past the end of the file
+     */
+    @Nonnull private Map<String, IdPAttribute> decode(final int offset) throws ResolutionException {
+        final ByteBuffer record = buffer.duplicate();
+        final int keyLength = record.getInt(offset);
+        checkRange(offset + 4L, keyLength + 4L);
+        record.position(offset + 4 + keyLength);
+        final int attributeCount = record.getInt();
+        // Each attribute takes at least the two length prefixes.
+        checkRange(record.position(), 8L * attributeCount);
+        final Map<String, IdPAttribute> attributes = new HashMap<String, IdPAttribute>(attributeCount * 2);
+        for (int i = 0; i < attributeCount; i++) {
+            final String name = readString(record).intern();
+            final List<IdPAttributeValue<String>> values = Lists.newArrayListWithExpectedSize(1);
+            values.add(new StringAttributeValue(readString(record)));
+            final IdPAttribute attribute = new IdPAttribute(name);
+            attribute.setValues(values);
+            attributes.put(name, attribute);
+        }
+        return attributes;
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string at the buffer's position.
+     *
+     * @param record the buffer
+     * @return the string
+     * @throws ResolutionException if the string runs past the end of the file
+     */
+    @Nonnull private String readString(@Nonnull final ByteBuffer record) throws ResolutionException {
+        checkRange(record.position(), 4);
+        final int length = record.getInt();
+        checkRange(record.position(), length);
+        final byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Check that a span of the file lies within it.
+     *
+     * @param position where the span starts
+     * @param length how long it is
+     * @throws ResolutionException if the span is negative or runs past the end of the file
+     */
+    private void checkRange(final long position, final long length) throws ResolutionException {
+        if (position < HEADER_LENGTH || length < 0 || position + length > buffer.capacity()) {
+            throw new ResolutionException("Bulk attribute file is damaged: " + length + " bytes at offset " + position
+                    + " run past its end");
+        }
+    }
+
+    /**
+     * Build a bulk attribute file from a directory of per-user ".attr" files, each a "name :: value" pair per line.
+     * Records are streamed to a temporary file, so only the principals are held in memory.
+     *
+     * @param directory the directory of attribute files
+     * @param output the bulk attribute file to write
+     * @return the number of users written
+     * @throws IOException if a file cannot be read or written
+     */
+    public static int convert(@Nonnull final File directory, @Nonnull final File output) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list attribute files in " + directory);
+        }
+
+        int users = 0;
+        final byte[][] keys = new byte[files.length][];
+        for (final File file : files) {
+            final String name = file.getName();
+            if (file.isFile() && name.endsWith(".attr")) {
+                keys[users++] = name.substring(0, name.length() - 5).getBytes(UTF8);
+            }
+        }
+        final byte[][] sorted = Arrays.copyOf(keys, users);
+        Arrays.sort(sorted, BYTE_ORDER);
+
+        final File records = new File(output.getPath() + ".records");
+        final int[] offsets = new int[users];
+        final int recordBase = HEADER_LENGTH + 4 * users;
+        final DataOutputStream recordOut =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(records), 1 << 16));
+        try {
+            for (int i = 0; i < users; i++) {
+                final long offset = recordBase + (long) recordOut.size();
+                if (offset > Integer.MAX_VALUE) {
+                    throw new IOException("Bulk attribute file would be larger than 2GB");
+                }
+                offsets[i] = (int) offset;
+                final String principal = new String(sorted[i], UTF8);
+                final Map<String, String> pairs = readAttributeFile(new File(directory, principal + ".attr"));
+                writeBytes(recordOut, sorted[i]);
+                recordOut.writeInt(pairs.size());
+                for (final Map.Entry<String, String> pair : pairs.entrySet()) {
+                    writeBytes(recordOut, pair.getKey().getBytes(UTF8));
+                    writeBytes(recordOut, pair.getValue().getBytes(UTF8));
+                }
+            }
+        } finally {
+            recordOut.close();
+        }
+
+        final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(users);
+            for (final int offset : offsets) {
+                out.writeInt(offset);
+            }
+            final InputStream in = new BufferedInputStream(new FileInputStream(records), 1 << 16);
+            try {
+                final byte[] chunk = new byte[1 << 16];
+                int read;
+                while ((read = in.read(chunk)) > 0) {
+                    out.write(chunk, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            out.close();
+            records.delete();
+        }
+        return users;
+    }
+
+    /**
+     * Read one user's attribute file the way the test connector does: later lines replace earlier ones of the same
+     * name, and lines without exactly one delimiter are skipped.
+     *
+     * @param file the attribute file
+     * @return the attribute values keyed by name, in file order
+     * @throws IOException if the file cannot be read
+     */
+    @Nonnull private static Map<String, String> readAttributeFile(@Nonnull final File file) throws IOException {
+        final Map<String, String> pairs = new LinkedHashMap<String, String>();
+        final BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] tokens = line.split(" :: ");
+                if (tokens.length == 2) {
+                    pairs.put(tokens[0], tokens[1]);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return pairs;
+    }
+
+    /**
+     * Write a length-prefixed byte string.
+     *
+     * @param out where to write
+     * @param bytes the bytes
+     * @throws IOException if the write fails
+     */
+    private static void writeBytes(@Nonnull final DataOutputStream out, @Nonnull final byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Convert a directory of attribute files from the command line.
+     *
+     * @param args the attribute directory and the bulk file to write
+     * @throws IOException if a file cannot be read or written
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: " + BulkAttributeFile.class.getName() + " <attribute directory> <bulk file>");
+            System.exit(1);
+        }
+        final long start = System.currentTimeMillis();
+        final int users = convert(new File(args[0]), new File(args[1]));
+        System.out.println("Wrote " + users + " user(s) to " + args[1] + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+}
@@ -0,0 +1,239 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolution metrics of a data connector, exposed over JMX as
+ * "net.gfipm.shibboleth:type=DataConnector,id=&lt;connector id&gt;".
+ *
+ * Recording is lock-free and allocates nothing, so the metrics stay on at full load.
+ */
+@ThreadSafe
+public class ConnectorMetrics implements ConnectorMetricsMBean {
+
+    /** JMX domain the metrics are registered under. */
+    public static final String JMX_DOMAIN = "net.gfipm.shibboleth";
+
+    /** The metrics currently registered under each name, guarded by itself. */
+    private static final Map<ObjectName, ConnectorMetrics> REGISTERED = new HashMap<ObjectName, ConnectorMetrics>();
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(ConnectorMetrics.class);
+
+    /** The connector id. */
+    private final String connectorId;
+
+    /** Number of resolutions. */
+    private final AtomicLong resolutions = new AtomicLong();
+
+    /** Number of resolutions that returned no attributes. */
+    private final AtomicLong empties = new AtomicLong();
+
+    /** Number of resolutions that failed. */
+    private final AtomicLong errors = new AtomicLong();
+
+    /** Attributes returned by resolutions. */
+    private final AtomicLong resolvedAttributes = new AtomicLong();
+
+    /** Resolution latency. */
+    private final LatencyHistogram resolutionLatency = new LatencyHistogram();
+
+    /** Name registered under, null when not registered. */
+    @Nullable private volatile ObjectName registeredName;
+
+    /**
+     * Constructor.
+     *
+     * @param id the connector id
+     */
+    public ConnectorMetrics(@Nonnull final String id) {
+        connectorId = id;
+    }
+
+    /**
+     * Record a resolution that completed.
+     *
+     * @param startNanos {@link System#nanoTime()} when it started
+     * @param attributes the number of attributes returned
+     */
+    public void onResolution(final long startNanos, final int attributes) {
+        resolutionLatency.record(System.nanoTime() - startNanos);
+        resolutions.incrementAndGet();
+        if (attributes == 0) {
+            empties.incrementAndGet();
+        } else {
+            resolvedAttributes.addAndGet(attributes);
+        }
+    }
+
+    /**
+     * Record a resolution that failed.
+     *
+     * @param startNanos {@link System#nanoTime()} when it started
+     */
+    public void onResolutionError(final long startNanos) {
+        resolutionLatency.record(System.nanoTime() - startNanos);
+        resolutions.incrementAndGet();
+        errors.incrementAndGet();
+    }
+
+    /**
+     * Register with the platform MBean server, replacing any earlier registration under the same connector id, as
+     * happens when the resolver is reloaded.  Failure is logged and otherwise ignored.
+     */
+    public void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = getObjectName();
+            final StandardMBean mbean = createMBean();
+            synchronized (REGISTERED) {
+                try {
+                    server.registerMBean(mbean, name);
+                } catch (final InstanceAlreadyExistsException e) {
+                    server.unregisterMBean(name);
+                    server.registerMBean(mbean, name);
+                }
+                REGISTERED.put(name, this);
+            }
+            registeredName = name;
+        } catch (final JMException e) {
+            log.warn("Unable to register metrics for data connector {}: {}", connectorId, e.getMessage());
+        }
+    }
+
+    /**
+     * Unregister from the platform MBean server, if registered and not since replaced by the metrics of a reloaded
+     * connector with the same id.
+     */
+    public void unregister() {
+        final ObjectName name = registeredName;
+        if (name == null) {
+            return;
+        }
+        registeredName = null;
+        synchronized (REGISTERED) {
+            if (REGISTERED.get(name) != this) {
+                return;
+            }
+            REGISTERED.remove(name);
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (final JMException e) {
+                log.debug("Unable to unregister metrics for data connector {}: {}", connectorId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the name the metrics are registered under.
+     *
+     * @return the object name
+     * @throws JMException if the connector id cannot be made into a name
+     */
+    @Nonnull public ObjectName getObjectName() throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=DataConnector,id=" + ObjectName.quote(connectorId));
+    }
+
+    /**
+     * Wrap the metrics as an MBean.  Subclasses exposing more return their own interface.
+     *
+     * @return the MBean
+     * @throws JMException if the metrics do not implement the interface
+     */
+    @Nonnull protected StandardMBean createMBean() throws JMException {
+        return new StandardMBean(this, ConnectorMetricsMBean.class);
+    }
+
+    /** {@inheritDoc} */
+    public String getConnectorId() {
+        return connectorId;
+    }
+
+    /** {@inheritDoc} */
+    public long getResolutionCount() {
+        return resolutions.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getSuccessCount() {
+        return resolutions.get() - empties.get() - errors.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getEmptyCount() {
+        return empties.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getResolvedAttributeCount() {
+        return resolvedAttributes.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getResolutionLatencyMean() {
+        return resolutionLatency.getMean();
+    }
+
+    /** {@inheritDoc} */
+    public long getResolutionLatency50thPercentile() {
+        return resolutionLatency.getPercentile(50);
+    }
+
+    /** {@inheritDoc} */
+    public long getResolutionLatency90thPercentile() {
+        return resolutionLatency.getPercentile(90);
+    }
+
+    /** {@inheritDoc} */
+    public long getResolutionLatency99thPercentile() {
+        return resolutionLatency.getPercentile(99);
+    }
+
+    /** {@inheritDoc} */
+    public long getResolutionLatency999thPercentile() {
+        return resolutionLatency.getPercentile(99.9);
+    }
+
+    /** {@inheritDoc} */
+    public long getResolutionLatencyMax() {
+        return resolutionLatency.getMax();
+    }
+}
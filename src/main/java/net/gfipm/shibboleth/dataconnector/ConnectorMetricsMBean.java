@@ -0,0 +1,109 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+/**
+ * Management interface of a data connector's resolution metrics.  Latencies are in microseconds.
+ */
+public interface ConnectorMetricsMBean {
+
+    /**
+     * Get the connector id.
+     *
+     * @return the id
+     */
+    String getConnectorId();
+
+    /**
+     * Get the number of resolutions.
+     *
+     * @return the count
+     */
+    long getResolutionCount();
+
+    /**
+     * Get the number of resolutions that returned attributes.
+     *
+     * @return the count
+     */
+    long getSuccessCount();
+
+    /**
+     * Get the number of resolutions that returned no attributes.
+     *
+     * @return the count
+     */
+    long getEmptyCount();
+
+    /**
+     * Get the number of resolutions that failed.
+     *
+     * @return the count
+     */
+    long getErrorCount();
+
+    /**
+     * Get the total number of attributes returned by resolutions.
+     *
+     * @return the count
+     */
+    long getResolvedAttributeCount();
+
+    /**
+     * Get the mean resolution latency.
+     *
+     * @return the mean
+     */
+    long getResolutionLatencyMean();
+
+    /**
+     * Get the median resolution latency.
+     *
+     * @return the 50th percentile
+     */
+    long getResolutionLatency50thPercentile();
+
+    /**
+     * Get the 90th percentile of resolution latency.
+     *
+     * @return the 90th percentile
+     */
+    long getResolutionLatency90thPercentile();
+
+    /**
+     * Get the 99th percentile of resolution latency.
+     *
+     * @return the 99th percentile
+     */
+    long getResolutionLatency99thPercentile();
+
+    /**
+     * Get the 99.9th percentile of resolution latency.
+     *
+     * @return the 99.9th percentile
+     */
+    long getResolutionLatency999thPercentile();
+
+    /**
+     * Get the largest resolution latency.
+     *
+     * @return the maximum
+     */
+    long getResolutionLatencyMax();
+}
@@ -9,23 +9,47 @@
 
 package net.gfipm.shibboleth.dataconnector;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.PatternSyntaxException;
 
+import org.opensaml.storage.StorageService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import javax.crypto.Cipher;
 
 import net.shibboleth.idp.attribute.IdPAttribute;
 import net.shibboleth.idp.attribute.IdPAttributeValue;
-import net.shibboleth.idp.attribute.StringAttributeValue;
 import net.shibboleth.idp.attribute.resolver.AbstractDataConnector;
 import net.shibboleth.idp.attribute.resolver.ResolutionException;
 import net.shibboleth.idp.attribute.resolver.context.AttributeResolutionContext;
@@ -33,6 +57,7 @@ import net.shibboleth.idp.attribute.resolver.context.AttributeResolverWorkContex
 import net.shibboleth.idp.attribute.resolver.PluginDependencySupport;
 
 import net.shibboleth.utilities.java.support.annotation.constraint.NonnullAfterInit;
+import net.shibboleth.utilities.java.support.codec.Base64Support;
 import net.shibboleth.utilities.java.support.annotation.constraint.NullableElements;
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
 import net.shibboleth.utilities.java.support.component.ComponentSupport;
@@ -41,14 +66,13 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
 
 
 import org.opensaml.security.x509.X509Credential;
+import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 
 import org.gtri.gfipm.bae.v2_0.SubjectIdentifier;
-import org.gtri.gfipm.bae.v2_0.EmailSubjectIdentifier;
 import org.gtri.gfipm.bae.v2_0.FASCNSubjectIdentifier;
 import org.gtri.gfipm.bae.v2_0.PIVUUIDSubjectIdentifier;
-import org.gtri.gfipm.bae.v2_0.InvalidFASCNException;
 import org.gtri.gfipm.bae.v2_0.BAEServerInfo;
 import org.gtri.gfipm.bae.v2_0.BAEClientInfo;
 import org.gtri.gfipm.bae.v2_0.BAEServer;
@@ -62,7 +86,6 @@ import org.gtri.gfipm.bae.v2_0.BAEServerCreationException;
 import org.gtri.gfipm.bae.v2_0.WebServiceRequestOptions;
 import org.gtri.gfipm.bae.v2_0.WebServiceRequestOptionsFactory;
 
-import com.google.common.collect.Lists;
 
 
 /**
@@ -79,9 +102,19 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
     private String myEntityId;
     private int    searchTimeLimit;
 
+    /** Subject classification rules, null for the defaults, and the number of classifications cached. */
+    private String uuidPattern;
+    private String fascnPattern;
+    private String emailPattern;
+    private String dnPattern;
+    private int    classifierCacheSize = 1000;
+
+    /** Classifies principals into subject identifiers. */
+    private BAESubjectClassifier subjectClassifier = new BAESubjectClassifier ();
+
     /** bae/return attribute names. */
     private List<BAEAttributeNameMap> baeAttributes;
-    private Map<String,String>        baeAttrMap;
+    private BAEAttributeMappingPlan   attributeMappingPlan;
 
     /** Trust material used when connecting to the server over https. */
     private X509Credential  x509Trust;
@@ -90,10 +123,174 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
     private PrivateKey      myKey;
     private List<X509Certificate> serverCerts;
 
-    /** BAE Connector */
-    private BAEServerInfo serverInfo;
+    /** Additional BAE Responders, used instead of baeURL/baeEntityId when given. */
+    private List<BAEEndpoint> baeEndpoints;
+
+    /** Responder pool settings. */
+    private String loadBalancing = "roundRobin";
+    private int    endpointFailureThreshold = 3;
+    private long   endpointProbeInterval = 30000;
+    private String endpointProbeSubject;
+
+    /** Options passed to the BAE client, over the defaults, and the JVM wide TLS client settings. */
+    private Map<String,String> transportOptions;
+    private int     tlsSessionCacheSize;
+    private int     tlsSessionTimeout;
+    private boolean monitorTls;
+
+    /** Whether to ask the BAE Responder for only the mapped attributes, and the projection of each responder. */
+    private boolean projectQueries = true;
+    private volatile List<BAEQueryProjection> projections = Collections.emptyList();
+
+    /** BAE Connector, built in the background with background initialization. */
     private BAEClientInfo clientInfo;
-    private BAEServer baeServer;
+    private volatile BAEServerPool serverPool;
+
+    /**
+     * Startup settings: whether the BAE client is built in the background, and the subjects queried, how many times
+     * and for at most how many milliseconds in all, to warm it up before the connector is ready.
+     */
+    private boolean backgroundInitialization;
+    private List<String> warmUpSubjects;
+    private int     warmUpIterations = 1;
+    private long    warmUpTimeout = 60000;
+
+    /** Set once the BAE client is built and warmed up, queries are refused until then. */
+    private volatile boolean ready;
+
+    /** Builds the BAE client in the background, null unless background initialization is on. */
+    @Nullable private Thread startupThread;
+
+    /** Guards starting the responder pool against the connector being destroyed meanwhile. */
+    private final Object startupLock = new Object();
+
+    /** Set when the connector is destroyed, guarded by the startup lock. */
+    private boolean stopped;
+
+    /** Schedules the responder health probes, and runs them with a thread for each responder. */
+    @Nullable private ScheduledExecutorService probeScheduler;
+    @Nullable private ExecutorService probeExecutor;
+
+    /** Hedged query settings, only used with more than one responder. */
+    private boolean hedgeRequests;
+    private int     hedgePercentile = 95;
+    private long    hedgeMinDelay = 50;
+    private int     hedgeMaxRate = 10;
+
+    /** Runs hedged queries, null unless hedging. */
+    @Nullable private ExecutorService hedgeExecutor;
+
+    /** Result cache settings, a size of zero disables caching. */
+    private int  cacheMaxSize;
+    private long cacheTimeToLive = 300000;
+    private long cacheNegativeTimeToLive = 30000;
+
+    /** Cache of mapped query results, null if caching is disabled. */
+    @Nullable private BAEResultCache resultCache;
+
+    /**
+     * Refresh settings: the fraction of the TTL after which a hit is refreshed in the background, how long past
+     * expiry an entry is still served while it is refreshed, and how long past expiry it is still served when the
+     * BAE Responder cannot answer.
+     */
+    private double refreshAheadFactor;
+    private long   staleGracePeriod;
+    private long   maxStaleOnError = 300000;
+    private int    refreshThreads = 2;
+
+    /** Runs background refreshes, null if neither refresh-ahead nor a stale grace period is set. */
+    @Nullable private ThreadPoolExecutor refreshExecutor;
+
+    /** Subjects with a background refresh outstanding. */
+    private final ConcurrentMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+
+    /** Number of background refreshes completed. */
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /** Persistent cache settings: the file, its base64 AES key and its size limit in bytes. */
+    private String persistentCachePath;
+    private String persistentCacheKey;
+    private long   persistentCacheMaxSize = 64 * 1024 * 1024;
+
+    /** Second-level cache on local disk, null if not configured. */
+    @Nullable private BAEPersistentCache persistentCache;
+
+    /**
+     * Store shared by the nodes of a cluster, null if results are not shared, or the storage service to build one on,
+     * the base64 AES key its entries are encrypted with (by default the persistent cache key) and how long, in
+     * milliseconds, a read of it may take.
+     */
+    @Nullable private BAESharedStore sharedStore;
+    @Nullable private StorageService sharedStorageService;
+    private String sharedCacheKey;
+    private long   sharedCacheTimeout = 200;
+
+    /** Shared tier of the result cache, null if not configured. */
+    @Nullable private BAESharedCache sharedCache;
+
+    /** Resolution and query metrics, registered over JMX. */
+    @NonnullAfterInit private BAEConnectorMetrics metrics;
+
+    /** Trace log settings: the fraction of resolutions logged, and the time in ms above which all are logged. */
+    private double traceLogSampleRate;
+    private long   traceLogThreshold;
+
+    /** Times the phases of each resolution. */
+    @NonnullAfterInit private ResolutionTracer tracer;
+
+    /** Whether concurrent queries for the same subject share one backend call. */
+    private boolean coalesceQueries = true;
+
+    /**
+     * Deduplicates outstanding interactive and background queries, kept apart so that an interactive resolution never
+     * waits on a background query, null if coalescing is disabled.
+     */
+    @Nullable private BAEQueryCoalescer queryCoalescer;
+    @Nullable private BAEQueryCoalescer backgroundCoalescer;
+
+    /** Bulkhead settings, a concurrency of zero leaves queries unbounded. */
+    private int  maxConcurrentQueries;
+    private int  maxQueuedQueries;
+    private long queueTimeout = 1000;
+
+    /** Caps outstanding queries, null if unbounded. */
+    @Nullable private BAEBulkhead bulkhead;
+
+    /**
+     * Rate limit settings, a rate of zero disables the limit: queries per second and burst size for the requester
+     * entity, and how long, in milliseconds, interactive and background queries wait for a token.
+     */
+    private double queryRateLimit;
+    private int    queryBurst;
+    private long   rateLimitTimeout = 500;
+    private long   backgroundRateLimitTimeout = 30000;
+
+    /** Limits the query rate of the requester entity, shared with its other connectors, null if unlimited. */
+    @Nullable private BAERateLimiter rateLimiter;
+
+    /**
+     * Query executor settings: "platform" for a bounded pool, or "virtual" for a virtual thread per query, which needs
+     * the bulkhead to bound it.
+     */
+    private String queryExecutorType = "platform";
+    private int    queryThreads;
+    private long   resolutionDeadline;
+
+    /** Runs queries off the resolver thread, null if neither a search time limit nor a deadline is set. */
+    @Nullable private ExecutorService queryExecutor;
+
+    /** Cancels queries that run past the search time limit, its tasks are removed when a query ends in time. */
+    @Nullable private ScheduledThreadPoolExecutor deadlineTimer;
+
+    /** Circuit breaker settings, the breaker is disabled unless one of the thresholds is set. */
+    private int  circuitFailureThreshold;
+    private int  circuitFailureRate;
+    private int  circuitWindowSize = 20;
+    private long circuitOpenDuration = 30000;
+    private int  circuitHalfOpenProbes = 1;
+
+    /** Guards the BAE Responder, null if disabled. */
+    @Nullable private BAECircuitBreaker circuitBreaker;
 
     /**
      * Constructor.
@@ -104,6 +301,120 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
     /**
      * Set and Get Methods used by initialization
      */
+    public void setMaxConcurrentQueries(int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxConcurrentQueries = max;
+    }
+    public int getMaxConcurrentQueries() {
+        return maxConcurrentQueries;
+    }
+    public void setMaxQueuedQueries(int max) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxQueuedQueries = max;
+    }
+    public int getMaxQueuedQueries() {
+        return maxQueuedQueries;
+    }
+    public void setQueueTimeout(long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        queueTimeout = timeout;
+    }
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+    @Nullable public BAEBulkhead getBulkhead() {
+        return bulkhead;
+    }
+    public void setQueryRateLimit(double queriesPerSecond) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        queryRateLimit = queriesPerSecond;
+    }
+    public double getQueryRateLimit() {
+        return queryRateLimit;
+    }
+    public void setQueryBurst(int burst) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        queryBurst = burst;
+    }
+    public int getQueryBurst() {
+        return queryBurst;
+    }
+    public void setRateLimitTimeout(long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        rateLimitTimeout = timeout;
+    }
+    public long getRateLimitTimeout() {
+        return rateLimitTimeout;
+    }
+    public void setBackgroundRateLimitTimeout(long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        backgroundRateLimitTimeout = timeout;
+    }
+    public long getBackgroundRateLimitTimeout() {
+        return backgroundRateLimitTimeout;
+    }
+    @Nullable public BAERateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+    public void setCircuitFailureThreshold(int failures) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        circuitFailureThreshold = failures;
+    }
+    public int getCircuitFailureThreshold() {
+        return circuitFailureThreshold;
+    }
+    public void setCircuitFailureRate(int percent) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        circuitFailureRate = percent;
+    }
+    public int getCircuitFailureRate() {
+        return circuitFailureRate;
+    }
+    public void setCircuitWindowSize(int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        circuitWindowSize = size;
+    }
+    public int getCircuitWindowSize() {
+        return circuitWindowSize;
+    }
+    public void setCircuitOpenDuration(long duration) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        circuitOpenDuration = duration;
+    }
+    public long getCircuitOpenDuration() {
+        return circuitOpenDuration;
+    }
+    public void setCircuitHalfOpenProbes(int probes) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        circuitHalfOpenProbes = probes;
+    }
+    public int getCircuitHalfOpenProbes() {
+        return circuitHalfOpenProbes;
+    }
+    @Nullable public BAECircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+    public void setQueryExecutorType(@Nullable String type) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        queryExecutorType = StringSupport.trimOrNull(type);
+    }
+    @Nullable public String getQueryExecutorType() {
+        return queryExecutorType;
+    }
+    public void setQueryThreads(int threads) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        queryThreads = threads;
+    }
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+    public void setResolutionDeadline(long deadline) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        resolutionDeadline = deadline;
+    }
+    public long getResolutionDeadline() {
+        return resolutionDeadline;
+    }
     public void setSearchTimeLimit(@Nullable int timeout) {
         ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
         searchTimeLimit = timeout;
@@ -132,6 +443,141 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
     @NonnullAfterInit public String getBaeEntityId() {
         return baeEntityId;
     }
+    public void setBaeEndpoints(@Nullable List<BAEEndpoint> endpoints) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        baeEndpoints = endpoints;
+    }
+    @Nullable public List<BAEEndpoint> getBaeEndpoints() {
+        return baeEndpoints;
+    }
+    public void setLoadBalancing(@Nullable String strategy) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        loadBalancing = StringSupport.trimOrNull(strategy);
+    }
+    @Nullable public String getLoadBalancing() {
+        return loadBalancing;
+    }
+    public void setEndpointFailureThreshold(int failures) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        endpointFailureThreshold = failures;
+    }
+    public int getEndpointFailureThreshold() {
+        return endpointFailureThreshold;
+    }
+    public void setEndpointProbeInterval(long interval) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        endpointProbeInterval = interval;
+    }
+    public long getEndpointProbeInterval() {
+        return endpointProbeInterval;
+    }
+    public void setEndpointProbeSubject(@Nullable String principal) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        endpointProbeSubject = StringSupport.trimOrNull(principal);
+    }
+    @Nullable public String getEndpointProbeSubject() {
+        return endpointProbeSubject;
+    }
+    public void setTransportOptions(@Nullable Map<String,String> options) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        transportOptions = options;
+    }
+    @Nullable public Map<String,String> getTransportOptions() {
+        return transportOptions;
+    }
+    public void setProjectQueries(boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        projectQueries = flag;
+    }
+    public boolean isProjectQueries() {
+        return projectQueries;
+    }
+    @Nonnull public List<BAEQueryProjection> getQueryProjections() {
+        return projections;
+    }
+    public void setBackgroundInitialization(boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        backgroundInitialization = flag;
+    }
+    public boolean isBackgroundInitialization() {
+        return backgroundInitialization;
+    }
+    public void setWarmUpSubjects(@Nullable List<String> subjects) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        warmUpSubjects = subjects;
+    }
+    @Nullable public List<String> getWarmUpSubjects() {
+        return warmUpSubjects;
+    }
+    public void setWarmUpIterations(int iterations) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        warmUpIterations = iterations;
+    }
+    public int getWarmUpIterations() {
+        return warmUpIterations;
+    }
+    public void setWarmUpTimeout(long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        warmUpTimeout = timeout;
+    }
+    public long getWarmUpTimeout() {
+        return warmUpTimeout;
+    }
+    public boolean isReady() {
+        return ready;
+    }
+    public void setTlsSessionCacheSize(int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        tlsSessionCacheSize = size;
+    }
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+    public void setTlsSessionTimeout(int timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        tlsSessionTimeout = timeout;
+    }
+    public int getTlsSessionTimeout() {
+        return tlsSessionTimeout;
+    }
+    public void setMonitorTls(boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        monitorTls = flag;
+    }
+    public boolean isMonitorTls() {
+        return monitorTls;
+    }
+    public void setHedgeRequests(boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        hedgeRequests = flag;
+    }
+    public boolean isHedgeRequests() {
+        return hedgeRequests;
+    }
+    public void setHedgePercentile(int percentile) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        hedgePercentile = percentile;
+    }
+    public int getHedgePercentile() {
+        return hedgePercentile;
+    }
+    public void setHedgeMinDelay(long delay) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        hedgeMinDelay = delay;
+    }
+    public long getHedgeMinDelay() {
+        return hedgeMinDelay;
+    }
+    public void setHedgeMaxRate(int percent) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        hedgeMaxRate = percent;
+    }
+    public int getHedgeMaxRate() {
+        return hedgeMaxRate;
+    }
+    @NonnullAfterInit public BAEServerPool getServerPool() {
+        return serverPool;
+    }
     public void setSubjectId(@Nullable String id) {
         ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
         subjectId = StringSupport.trimOrNull(id);
@@ -139,35 +585,212 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
     @NonnullAfterInit public String getSubjectId() {
         return subjectId;
     }
+    public void setUuidPattern(@Nullable String pattern) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        uuidPattern = StringSupport.trimOrNull(pattern);
+    }
+    @Nullable public String getUuidPattern() {
+        return uuidPattern;
+    }
+    public void setFascnPattern(@Nullable String pattern) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        fascnPattern = StringSupport.trimOrNull(pattern);
+    }
+    @Nullable public String getFascnPattern() {
+        return fascnPattern;
+    }
+    public void setEmailPattern(@Nullable String pattern) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        emailPattern = StringSupport.trimOrNull(pattern);
+    }
+    @Nullable public String getEmailPattern() {
+        return emailPattern;
+    }
+    public void setDnPattern(@Nullable String pattern) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        dnPattern = StringSupport.trimOrNull(pattern);
+    }
+    @Nullable public String getDnPattern() {
+        return dnPattern;
+    }
+    public void setClassifierCacheSize(int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        classifierCacheSize = size;
+    }
+    public int getClassifierCacheSize() {
+        return classifierCacheSize;
+    }
+    @Nonnull public BAESubjectClassifier getSubjectClassifier() {
+        return subjectClassifier;
+    }
+    public void setCacheMaxSize(int size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        cacheMaxSize = size;
+    }
+    public int getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+    public void setCacheTimeToLive(long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        cacheTimeToLive = ttl;
+    }
+    public long getCacheTimeToLive() {
+        return cacheTimeToLive;
+    }
+    public void setCacheNegativeTimeToLive(long ttl) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        cacheNegativeTimeToLive = ttl;
+    }
+    public long getCacheNegativeTimeToLive() {
+        return cacheNegativeTimeToLive;
+    }
+    @Nullable public BAEResultCache getResultCache() {
+        return resultCache;
+    }
+    public void setRefreshAheadFactor(double factor) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        refreshAheadFactor = factor;
+    }
+    public double getRefreshAheadFactor() {
+        return refreshAheadFactor;
+    }
+    public void setStaleGracePeriod(long period) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        staleGracePeriod = period;
+    }
+    public long getStaleGracePeriod() {
+        return staleGracePeriod;
+    }
+    public void setMaxStaleOnError(long period) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxStaleOnError = period;
+    }
+    public long getMaxStaleOnError() {
+        return maxStaleOnError;
+    }
+    public void setRefreshThreads(int threads) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        refreshThreads = threads;
+    }
+    public int getRefreshThreads() {
+        return refreshThreads;
+    }
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+    @NonnullAfterInit public BAEConnectorMetrics getMetrics() {
+        return metrics;
+    }
+    public void setTraceLogSampleRate(double rate) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        traceLogSampleRate = rate;
+    }
+    public double getTraceLogSampleRate() {
+        return traceLogSampleRate;
+    }
+    public void setTraceLogThreshold(long threshold) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        traceLogThreshold = threshold;
+    }
+    public long getTraceLogThreshold() {
+        return traceLogThreshold;
+    }
+    public void setPersistentCachePath(@Nullable String path) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        persistentCachePath = StringSupport.trimOrNull(path);
+    }
+    @Nullable public String getPersistentCachePath() {
+        return persistentCachePath;
+    }
+    public void setPersistentCacheKey(@Nullable String key) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        persistentCacheKey = StringSupport.trimOrNull(key);
+    }
+    public void setPersistentCacheMaxSize(long size) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        persistentCacheMaxSize = size;
+    }
+    public long getPersistentCacheMaxSize() {
+        return persistentCacheMaxSize;
+    }
+    @Nullable public BAEPersistentCache getPersistentCache() {
+        return persistentCache;
+    }
+    public void setSharedStore(@Nullable BAESharedStore store) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        sharedStore = store;
+    }
+    public void setSharedStorageService(@Nullable StorageService service) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        sharedStorageService = service;
+    }
+    public void setSharedCacheKey(@Nullable String key) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        sharedCacheKey = StringSupport.trimOrNull(key);
+    }
+    public void setSharedCacheTimeout(long timeout) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        sharedCacheTimeout = timeout;
+    }
+    public long getSharedCacheTimeout() {
+        return sharedCacheTimeout;
+    }
+    @Nullable public BAESharedStore getSharedStore() {
+        return sharedStore;
+    }
+    @Nullable public BAESharedCache getSharedCache() {
+        return sharedCache;
+    }
+    public void setCoalesceQueries(boolean flag) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        coalesceQueries = flag;
+    }
+    public boolean isCoalesceQueries() {
+        return coalesceQueries;
+    }
+    @Nullable public BAEQueryCoalescer getQueryCoalescer() {
+        return queryCoalescer;
+    }
+    @Nullable public BAEQueryCoalescer getBackgroundCoalescer() {
+        return backgroundCoalescer;
+    }
 
 
     /** 
      * Method for generating a subject identifier.  "Intelligently" determines type
      */
-    private SubjectIdentifier GetSubjectIdentifier (String PrincipalName) {
+    SubjectIdentifier GetSubjectIdentifier (String PrincipalName) {
+       return subjectClassifier.classify (PrincipalName);
+    }
+
+    /**
+     * Pick the principal name out of the resolved dependencies, preferring the configured subject id attribute.
+     */
+    @Nullable private String getPrincipal (Map<String,List<IdPAttributeValue<?>>> dependencyAttributes) {
 
-       // Test if it is a PIV-I Style UUID       
-       if (PrincipalName.indexOf ("uuid") != -1) {
-          log.debug("Principal: " + PrincipalName + " resolved as PIV-I UUID type.");
-          String trimmedUUID = PrincipalName.substring(9); // Remove "urn:uuid:" from the beginning.
-          log.debug("Trimmed UUID: " + trimmedUUID);
-          return new PIVUUIDSubjectIdentifier(trimmedUUID);
-       } 
+       List<IdPAttributeValue<?>> values = dependencyAttributes.get (subjectId);
+       if (values == null) {
+          values = dependencyAttributes.values().iterator().next();
+       }
+       if (values == null || values.isEmpty() || values.get(0).getValue() == null) {
+          return null;
+       }
+       return StringSupport.trimOrNull (values.get(0).getValue().toString());
+    }
 
-       // Test if it is a FASCN
-       try {
-          FASCNSubjectIdentifier fascnId = new FASCNSubjectIdentifier(PrincipalName);
-          log.debug("Principal: " + PrincipalName + " resolved as FASCN type.");
-          return fascnId;
-       } catch (InvalidFASCNException e) {
-         // Not a valid FASCN so we default to e-mail address.
-         log.debug("Principal: " + PrincipalName + " defaulting to E-mail type.");
-         return new EmailSubjectIdentifier (PrincipalName);
+    /**
+     * Build the cache key for a subject.  The identifier type is part of the key, and the case insensitive
+     * forms (e-mail addresses and UUIDs) are lower cased.
+     */
+    private String getCacheKey (SubjectIdentifier identifier, String PrincipalName) {
+       if (identifier instanceof FASCNSubjectIdentifier) {
+          return "fascn:" + PrincipalName;
+       } else if (identifier instanceof PIVUUIDSubjectIdentifier) {
+          return "uuid:" + PrincipalName.toLowerCase();
        }
-          
+       return "email:" + PrincipalName.toLowerCase();
     }
 
-    /** {@inheritDoc} */
     /** {@inheritDoc} */
     @Override
     @Nonnull protected Map<String, IdPAttribute> doDataConnectorResolve(
@@ -176,13 +799,12 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
 
         log.debug("Resolving BAE Data Connector.");
 
-        Map<String, IdPAttribute> attribute = new HashMap<String, IdPAttribute>();
-
-        
+        final long start = System.nanoTime();
+        final ResolutionTracer.Trace trace = tracer.start();
         final Map<String,List<IdPAttributeValue<?>>> dependencyAttributes = PluginDependencySupport.getAllAttributeValues (workContext, getDependencies());
         if (dependencyAttributes == null || dependencyAttributes.isEmpty()) {
             log.debug("Source attribute " + subjectId + " for connector " + getId() +" provided no values, cannot resolve.");
-            return Collections.EMPTY_MAP;
+            return resolveNothing (start, trace);
         }
 
         if (dependencyAttributes.size() > 1) {
@@ -193,43 +815,567 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
              log.debug("Adding dependency {} to context with {} value(s)", entry.getKey(), entry.getValue());
         }
 
-        String strPrincipal = "blah - gotta look at trace output and figure out what goes here";
+        String strPrincipal = getPrincipal (dependencyAttributes);
+        if (strPrincipal == null) {
+            log.debug("Source attribute " + subjectId + " for connector " + getId() +" provided an empty value, cannot resolve.");
+            return resolveNothing (start, trace);
+        }
+
+        trace.endPhase (ResolutionTracer.Phase.DEPENDENCIES);
+        return resolvePrincipal (strPrincipal, trace);
+    }
+
+    /**
+     * Record a resolution that had no principal to resolve, so that it is counted and traced like any other.
+     */
+    @Nonnull private Map<String, IdPAttribute> resolveNothing (long start, ResolutionTracer.Trace trace) {
+        trace.endPhase (ResolutionTracer.Phase.DEPENDENCIES);
+        metrics.onResolution (start, 0);
+        tracer.finish (trace, "EMPTY", 0);
+        return Collections.EMPTY_MAP;
+    }
+
+    /**
+     * Resolve the attributes of a principal, from the caches if possible, otherwise from the BAE Responder.
+     */
+    @Nonnull Map<String, IdPAttribute> resolvePrincipal (String strPrincipal) throws ResolutionException {
+        return resolvePrincipal (strPrincipal, tracer.start());
+    }
+
+    @Nonnull private Map<String, IdPAttribute> resolvePrincipal (String strPrincipal, ResolutionTracer.Trace trace)
+          throws ResolutionException {
+
+        long start = System.nanoTime();
+        try {
+           Map<String, IdPAttribute> attributes = lookupAttributes (strPrincipal, trace);
+           if (trace.isFailed()) {
+              metrics.onResolutionError (start);
+              tracer.finish (trace, "ERROR", attributes.size());
+           } else {
+              metrics.onResolution (start, attributes.size());
+              tracer.finish (trace, attributes.isEmpty() ? "EMPTY" : "SUCCESS", attributes.size());
+           }
+           return attributes;
+        } catch (ResolutionException e) {
+           metrics.onResolutionError (start);
+           tracer.finish (trace, "ERROR", 0);
+           throw e;
+        }
+    }
+
+    @Nonnull private Map<String, IdPAttribute> lookupAttributes (String strPrincipal, ResolutionTracer.Trace trace)
+          throws ResolutionException {
 
         log.debug ("Querying for Id : " + strPrincipal );
 
+        SubjectIdentifier identifier = GetSubjectIdentifier (strPrincipal);
+        String cacheKey = getCacheKey (identifier, strPrincipal);
+        trace.setSubjectType (BAESubjectClassifier.getType (identifier));
+        trace.endPhase (ResolutionTracer.Phase.CLASSIFICATION);
 
+        if (resultCache != null) {
+           BAEResultCache.CacheEntry cached = resultCache.lookup (cacheKey, staleGracePeriod);
+           if (cached != null) {
+              long now = System.currentTimeMillis();
+              long age = now - cached.getCreated();
+              if (now < cached.getExpires()) {
+                 if (refreshAheadFactor > 0 && !cached.getAttributes().isEmpty()
+                       && age >= (long) ((cached.getExpires() - cached.getCreated()) * refreshAheadFactor)) {
+                    refreshInBackground (cacheKey, identifier);
+                 }
+                 log.debug ("{} Answering {} from the result cache with {} attribute(s), {}ms old",
+                       new Object[] {getLogPrefix(), cacheKey, cached.getAttributes().size(), age});
+                 metrics.onServedFromCache (age);
+                 trace.setSource ("cache");
+                 trace.endPhase (ResolutionTracer.Phase.CACHE);
+                 return cached.getAttributes();
+              } else if (now < cached.getExpires() + staleGracePeriod) {
+                 refreshInBackground (cacheKey, identifier);
+                 log.debug ("{} Answering {} from the expired cache entry while it is refreshed, {}ms old",
+                       new Object[] {getLogPrefix(), cacheKey, age});
+                 metrics.onServedFromCache (age);
+                 trace.setSource ("stale");
+                 trace.endPhase (ResolutionTracer.Phase.CACHE);
+                 return cached.getAttributes();
+              }
+           }
+        }
+
+        if (persistentCache != null) {
+           BAEPersistentCache.Entry stored = persistentCache.get (cacheKey);
+           if (stored != null) {
+              long age = System.currentTimeMillis() - stored.getCreated();
+              log.debug ("{} Answering {} from the persistent cache, {}ms old", new Object[] {getLogPrefix(), cacheKey, age});
+              metrics.onServedFromCache (age);
+              trace.setSource ("persistent");
+              trace.endPhase (ResolutionTracer.Phase.CACHE);
+              return resultCache.put (cacheKey, stored.getAttributes(), stored.getCreated(), stored.getExpires());
+           }
+        }
+
+        if (sharedCache != null) {
+           BAESharedCache.Entry shared = sharedCache.get (cacheKey);
+           if (shared != null) {
+              long age = System.currentTimeMillis() - shared.getCreated();
+              log.debug ("{} Answering {} from the shared cache, {}ms old", new Object[] {getLogPrefix(), cacheKey, age});
+              metrics.onServedFromCache (age);
+              trace.setSource ("shared");
+              trace.endPhase (ResolutionTracer.Phase.CACHE);
+              return resultCache.put (cacheKey, shared.getAttributes(), shared.getCreated(), shared.getExpires());
+           }
+        }
+
+        Map<String, IdPAttribute> attribute = new HashMap<String, IdPAttribute>();
+        boolean failed = false;
+        trace.endPhase (ResolutionTracer.Phase.CACHE);
 
         try {
-//           SubjectIdentifier identifier = new FASCNSubjectIdentifier (strPrincipal);
-           SubjectIdentifier identifier = GetSubjectIdentifier (strPrincipal);
+           attribute = queryBackend (cacheKey, identifier, BAERateLimiter.Priority.INTERACTIVE, trace);
+           trace.setSource ("responder");
+        } catch (BAEQueryRejectedException e) {
+           metrics.onRejected ();
+           trace.setSource ("rejected");
+           return getFallback (cacheKey, e.getMessage(), trace);
+        } catch (TimeoutException e) {
+           metrics.onTimeout ();
+           trace.setSource ("timeout");
+           return getFallback (cacheKey, "BAE query for " + cacheKey + " timed out: " + e.getMessage(), trace);
+        } catch (BAEServerException e) {
+           log.error (getLogPrefix() + " BAE Server Error", e);
+           failed = true;
+        } catch (Exception e) {
+           log.error (getLogPrefix() + " BAE query failed", e);
+           failed = true;
+        } finally {
+           trace.endPhase (ResolutionTracer.Phase.QUERY);
+        }
+        if (failed) {
+           trace.setSource ("failed");
+           if (resultCache != null) {
+              BAEResultCache.CacheEntry stale = resultCache.getStale (cacheKey, maxStaleOnError);
+              if (stale != null) {
+                 metrics.onServedFromCache (System.currentTimeMillis() - stale.getCreated());
+                 return stale.getAttributes();
+              }
+           }
+           trace.setFailed();
+           if (resultCache != null) {
+              return resultCache.put (cacheKey, attribute);
+           }
+        }
+        return attribute;
+    }
 
-           Collection<BackendAttribute> attributes = baeServer.attributeQuery(identifier);
+    /**
+     * Query the BAE Responder for a subject, sharing the call with any concurrent query of the same subject at the
+     * same priority.  Background queries are shared only among themselves, since one may wait far longer for the rate
+     * limiter than an interactive resolution is allowed to.
+     */
+    @Nonnull private Map<String, IdPAttribute> queryBackend (final String cacheKey, final SubjectIdentifier identifier,
+          final BAERateLimiter.Priority priority, @Nullable final ResolutionTracer.Trace trace) throws Exception {
 
-           // TBD Integrate BAE Interface
-           for (BackendAttribute a : attributes) {
-              
-              // If we find this attribute in our map, then it is an attribute we process 
-              if ( baeAttrMap.get (a.getName()) != null ) 
-              {
-                String attribName  = baeAttrMap.get (a.getName());
-                String attribValue = a.getValue().getStringValue();
+        Callable<Map<String, IdPAttribute>> query = new Callable<Map<String, IdPAttribute>>() {
+           public Map<String, IdPAttribute> call() throws Exception {
+              return callBackend (cacheKey, identifier, priority, trace);
+           }
+        };
 
-                List<IdPAttributeValue<String>> baXmlAttr = Lists.newArrayListWithExpectedSize(1);
-                baXmlAttr.add(new StringAttributeValue(attribValue));
+        BAEQueryCoalescer coalescer = priority == BAERateLimiter.Priority.INTERACTIVE
+              ? queryCoalescer : backgroundCoalescer;
+        if (coalescer != null) {
+           return coalescer.execute (cacheKey, query);
+        }
+        return query.call();
+    }
 
-                final IdPAttribute tempAttribute = new IdPAttribute(attribName);
-                tempAttribute.setValues(baXmlAttr);
+    /**
+     * Make the actual call to the BAE Responder, unless the connector is still starting, the circuit breaker is open,
+     * the rate limit is reached or the bulkhead is full.  With a query executor the call runs there and the resolver waits only up to the resolution
+     * deadline.
+     */
+    @Nonnull private Map<String, IdPAttribute> callBackend (String cacheKey, SubjectIdentifier identifier,
+          BAERateLimiter.Priority priority, @Nullable ResolutionTracer.Trace trace) throws Exception {
+
+        if (!ready) {
+           throw new BAEQueryRejectedException ("BAE connector is still starting");
+        }
+        final long generation = circuitBreaker == null ? 0 : circuitBreaker.allowRequest();
+        if (generation == BAECircuitBreaker.REFUSED) {
+           throw new BAEQueryRejectedException ("BAE circuit breaker is " + circuitBreaker.getState());
+        }
 
-                attribute.put (tempAttribute.getId(), tempAttribute);
+        if (rateLimiter != null) {
+           boolean permitted = false;
+           try {
+              permitted = rateLimiter.acquire (priority, priority == BAERateLimiter.Priority.INTERACTIVE
+                    ? rateLimitTimeout : backgroundRateLimitTimeout);
+           } finally {
+              if (!permitted && circuitBreaker != null) {
+                 circuitBreaker.onAbandoned (generation);
               }
-          }
-        } catch (BAEServerException e) {
-           log.error ("BAE Server Error: {}", e);
+           }
+           if (!permitted) {
+              throw new BAEQueryRejectedException ("BAE query rate limit of " + queryRateLimit + "/s for "
+                    + myEntityId + " reached");
+           }
+        }
+
+        boolean admitted = false;
+        try {
+           admitted = bulkhead == null || bulkhead.acquire();
+        } finally {
+           if (!admitted && circuitBreaker != null) {
+              circuitBreaker.onAbandoned (generation);
+           }
+        }
+        if (!admitted) {
+           throw new BAEQueryRejectedException ("BAE query bulkhead is full (" + bulkhead.getActiveCount() + " active, "
+                 + bulkhead.getQueuedCount() + " queued)");
+        }
+
+        final BackendQuery task = new BackendQuery (cacheKey, identifier, trace, generation);
+
+        if (queryExecutor == null) {
+           task.run();
+           return getResult (task, 0);
+        }
+
+        try {
+           queryExecutor.execute (task);
+        } catch (RejectedExecutionException e) {
+           task.abandon();
+           throw new BAEQueryRejectedException ("BAE query executor is full or shut down");
+        }
+        if (searchTimeLimit > 0) {
+           task.setDeadline (deadlineTimer.schedule (new Runnable() {
+              public void run() {
+                 task.cancel (true);
+              }
+           }, searchTimeLimit, TimeUnit.MILLISECONDS));
+        }
+
+        long wait = resolutionDeadline > 0 ? resolutionDeadline : searchTimeLimit;
+        try {
+           return getResult (task, wait);
+        } catch (TimeoutException e) {
+           log.debug ("{} Stopped waiting for {} after {}ms, the query is left to complete in the background.",
+                 new Object[] {getLogPrefix(), cacheKey, wait});
+           throw e;
+        }
+    }
+
+    /**
+     * Wait for a backend query, for at most timeout ms if that is positive, and unwrap its failure.  A query
+     * cancelled at the search time limit is reported as a timeout.
+     */
+    @Nonnull private Map<String, IdPAttribute> getResult (Future<Map<String, IdPAttribute>> task, long timeout)
+          throws Exception {
+        try {
+           if (timeout > 0) {
+              return task.get (timeout, TimeUnit.MILLISECONDS);
+           }
+           return task.get();
+        } catch (CancellationException e) {
+           throw new TimeoutException ("BAE query cancelled at the search time limit");
+        } catch (ExecutionException e) {
+           if (e.getCause() instanceof Exception) {
+              throw (Exception) e.getCause();
+           } else if (e.getCause() instanceof Error) {
+              throw (Error) e.getCause();
+           }
+           throw e;
+        }
+    }
+
+    /**
+     * A single call to the BAE Responder.  However it ends, it returns its bulkhead permit and reports its outcome
+     * to the circuit breaker, and a successful result is cached even if the resolver has stopped waiting for it.
+     */
+    private class BackendQuery extends FutureTask<Map<String, IdPAttribute>> {
+
+        /** Normalized subject identifier. */
+        private final String cacheKey;
+
+        /** Set when the query never reached the BAE Responder. */
+        private volatile boolean abandoned;
+
+        /** Set by whichever of the call and the cancellation of a call never started owns the bulkhead permit. */
+        private final AtomicBoolean permitClaimed;
+
+        /** Cancels the query at the search time limit, null if there is none. */
+        @Nullable private volatile ScheduledFuture<?> deadline;
+
+        /** Circuit breaker generation the query was admitted in. */
+        private final long generation;
+
+        /**
+         * Constructor.
+         *
+         * @param key normalized subject identifier
+         * @param identifier subject to query for
+         * @param trace timing of the resolution that made the query, null for a background query
+         * @param admitted circuit breaker generation the query was admitted in
+         */
+        BackendQuery (String key, SubjectIdentifier identifier, @Nullable ResolutionTracer.Trace trace, long admitted) {
+           this (key, identifier, trace, admitted, new AtomicBoolean());
+        }
+
+        /**
+         * Constructor.  The bulkhead permit is returned when the call to the BAE Responder actually returns, not when
+         * the task is cancelled, as an interrupt does not stop a blocked socket read.
+         *
+         * @param key normalized subject identifier
+         * @param identifier subject to query for
+         * @param trace timing of the resolution that made the query, null for a background query
+         * @param admitted circuit breaker generation the query was admitted in
+         * @param claimed claimed by the call when it starts
+         */
+        private BackendQuery (String key, final SubjectIdentifier identifier,
+              @Nullable final ResolutionTracer.Trace trace, long admitted, final AtomicBoolean claimed) {
+           super (new Callable<Map<String, IdPAttribute>>() {
+              public Map<String, IdPAttribute> call() throws Exception {
+                 if (!claimed.compareAndSet (false, true)) {
+                    throw new CancellationException ("BAE query cancelled before it started");
+                 }
+                 try {
+                    long start = metrics.onQueryStart ();
+                    Collection<BackendAttribute> returned;
+                    try {
+                       returned = serverPool.attributeQuery(identifier);
+                    } catch (Exception e) {
+                       metrics.onQueryError (start);
+                       throw e;
+                    }
+                    long mapping = System.nanoTime();
+                    Map<String, IdPAttribute> mapped = mapAttributes (returned);
+                    if (trace != null) {
+                       trace.addTime (ResolutionTracer.Phase.MAPPING, System.nanoTime() - mapping);
+                    }
+                    metrics.onQuery (start, returned.size(), mapped.size(), BAEQueryProjection.estimatePayload (returned));
+                    return Collections.unmodifiableMap (mapped);
+                 } finally {
+                    if (bulkhead != null) {
+                       bulkhead.release();
+                    }
+                 }
+              }
+           });
+           cacheKey = key;
+           generation = admitted;
+           permitClaimed = claimed;
+        }
+
+        /**
+         * Set the task that cancels the query at the search time limit, which is dropped as soon as the query ends.
+         *
+         * @param task the scheduled cancellation
+         */
+        void setDeadline (ScheduledFuture<?> task) {
+           deadline = task;
+           if (isDone()) {
+              task.cancel (false);
+           }
+        }
+
+        /** Cancel a query that was never started. */
+        void abandon() {
+           abandoned = true;
+           cancel (false);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        protected void done() {
+           ScheduledFuture<?> task = deadline;
+           if (task != null) {
+              task.cancel (false);
+           }
+
+           // A task cancelled before its call started never will start, so its permit is returned here.
+           if (bulkhead != null && permitClaimed.compareAndSet (false, true)) {
+              bulkhead.release();
+           }
+
+           Map<String, IdPAttribute> result = null;
+           if (!isCancelled()) {
+              try {
+                 result = get();
+              } catch (Exception e) {
+                 // Reported to the waiting resolver, if it is still waiting.
+              }
+           }
+
+           if (circuitBreaker != null) {
+              if (abandoned) {
+                 circuitBreaker.onAbandoned (generation);
+              } else if (result != null) {
+                 circuitBreaker.onSuccess (generation);
+              } else {
+                 circuitBreaker.onFailure (generation);
+              }
+           }
+           if (result != null && resultCache != null) {
+              resultCache.put (cacheKey, result);
+              if (!result.isEmpty() && (persistentCache != null || sharedCache != null)) {
+                 long now = System.currentTimeMillis();
+                 if (persistentCache != null) {
+                    persistentCache.put (cacheKey, result, now, now + cacheTimeToLive);
+                 }
+                 if (sharedCache != null) {
+                    sharedCache.put (cacheKey, result, now, now + cacheTimeToLive);
+                 }
+              }
+           }
+        }
+    }
+
+    /**
+     * Re-query a cached subject in the background, unless a refresh of it is already outstanding.  A failed refresh
+     * leaves the cached entry as it is.
+     */
+    private void refreshInBackground (final String cacheKey, final SubjectIdentifier identifier) {
+        if (refreshExecutor == null || refreshing.putIfAbsent (cacheKey, Boolean.TRUE) != null) {
+           return;
+        }
+        try {
+           refreshExecutor.execute (new Runnable() {
+              public void run() {
+                 try {
+                    queryBackend (cacheKey, identifier, BAERateLimiter.Priority.BACKGROUND, null);
+                    refreshCount.incrementAndGet();
+                 } catch (Exception e) {
+                    log.debug ("{} Background refresh of {} failed: {}", new Object[] {getLogPrefix(), cacheKey, e});
+                 } finally {
+                    refreshing.remove (cacheKey);
+                 }
+              }
+           });
+        } catch (RejectedExecutionException e) {
+           refreshing.remove (cacheKey);
+        }
+    }
+
+    /**
+     * Pre-fetch the attributes of a batch of principals into the result cache, so that their logins are answered
+     * from memory.  Principals already cached are skipped.  Blocks until the batch is done, logging progress.
+     *
+     * @param principals the principal names
+     * @param parallelism most queries outstanding at once
+     * @param queriesPerSecond most queries started per second, zero or less for no limit
+     * @return the outcome of the batch
+     */
+    @Nonnull public BAEPrefetchReport prefetch (@Nonnull Collection<String> principals, int parallelism,
+          double queriesPerSecond) {
+        ComponentSupport.ifNotInitializedThrowUninitializedComponentException(this);
+
+        final BAEPrefetchReport report = new BAEPrefetchReport (principals.size());
+        if (resultCache == null) {
+           log.warn ("{} Pre-fetch requested but the result cache is disabled, nothing to do.", getLogPrefix());
+           report.onFinished();
+           return report;
+        }
+
+        final long interval = queriesPerSecond > 0 ? (long) (1000000000L / queriesPerSecond) : 0;
+        final AtomicLong nextStart = new AtomicLong ();
+        final int progressStep = Math.max (1, principals.size() / 10);
+
+        log.info ("{} Pre-fetching {} principal(s), {} at a time.", new Object[] {getLogPrefix(), principals.size(), parallelism});
+        ExecutorService workers = Executors.newFixedThreadPool (Math.max (1, parallelism),
+              new NamedDaemonThreadFactory ("bae-prefetch-" + getId()));
+        try {
+           for (final String principal : principals) {
+              workers.execute (new Runnable() {
+                 public void run() {
+                    prefetch (principal, report, interval, nextStart);
+                    if (report.getCompleted() % progressStep == 0) {
+                       log.info ("{} Pre-fetch progress: {}", getLogPrefix(), report);
+                    }
+                 }
+              });
+           }
+        } finally {
+           workers.shutdown();
+        }
+
+        try {
+           workers.awaitTermination (Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+           workers.shutdownNow();
+           Thread.currentThread().interrupt();
+        }
+        report.onFinished();
+        log.info ("{} Pre-fetch finished: {}", getLogPrefix(), report);
+        return report;
+    }
+
+    /**
+     * Pre-fetch one principal, starting its query no sooner than the rate limit allows.
+     */
+    private void prefetch (String principal, BAEPrefetchReport report, long interval, AtomicLong nextStart) {
+        String strPrincipal = StringSupport.trimOrNull (principal);
+        if (strPrincipal == null) {
+           report.onFailed();
+           return;
+        }
+        SubjectIdentifier identifier = GetSubjectIdentifier (strPrincipal);
+        String cacheKey = getCacheKey (identifier, strPrincipal);
+        if (resultCache.contains (cacheKey)) {
+           report.onSkipped();
+           return;
+        }
+
+        if (interval > 0) {
+           long now = System.nanoTime();
+           long previous;
+           long start;
+           do {
+              previous = nextStart.get();
+              start = previous == 0 ? now : Math.max (previous, now);
+           } while (!nextStart.compareAndSet (previous, start + interval));
+           try {
+              TimeUnit.NANOSECONDS.sleep (start - now);
+           } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              report.onFailed();
+              return;
+           }
+        }
+
+        try {
+           report.onResolved (queryBackend (cacheKey, identifier, BAERateLimiter.Priority.BACKGROUND, null).size());
         } catch (Exception e) {
-           log.error ("Query Failed: {}", e);
+           log.debug ("{} Pre-fetch of {} failed: {}", new Object[] {getLogPrefix(), cacheKey, e});
+           report.onFailed();
         }
+    }
 
-        return attribute;
+    /**
+     * The answer when a query could not be made: the last result cached for the subject even if expired, otherwise
+     * hand over to the failover connector if there is one, otherwise resolve nothing and report the resolution failed.
+     */
+    @Nonnull private Map<String, IdPAttribute> getFallback (String cacheKey, String reason,
+          ResolutionTracer.Trace trace) throws ResolutionException {
+        if (resultCache != null) {
+           BAEResultCache.CacheEntry stale = resultCache.getStale (cacheKey, maxStaleOnError);
+           if (stale != null) {
+              log.debug ("{} {}, answering {} from the expired cache entry.", new Object[] {getLogPrefix(), reason, cacheKey});
+              metrics.onServedFromCache (System.currentTimeMillis() - stale.getCreated());
+              return stale.getAttributes();
+           }
+        }
+        if (getFailoverDataConnectorId() != null) {
+           throw new ResolutionException (getLogPrefix() + " " + reason);
+        }
+        log.debug ("{} {}, resolving no attributes.", getLogPrefix(), reason);
+        trace.setFailed();
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Map the attributes returned by the BAE Responder to the configured return names, dropping any we do not process.
+     */
+    @Nonnull Map<String, IdPAttribute> mapAttributes (Collection<BackendAttribute> attributes) {
+        return attributeMappingPlan.map (attributes);
     }
 
 
@@ -250,11 +1396,18 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
     public void setX509Trust(X509Credential tc) {
        /* TBD - based on BAE API */
        x509Trust = tc;
+       serverCerts = getCertificates (tc);
+    }
+
+    /**
+     * The certificate chain of a trust credential, as a list.
+     */
+    private static List<X509Certificate> getCertificates (X509Credential tc) {
        Collection<X509Certificate> coll = tc.getEntityCertificateChain();
        if (coll instanceof List)
-          serverCerts = (List)coll;
+          return (List)coll;
        else
-          serverCerts = new ArrayList(coll);
+          return new ArrayList(coll);
     }
 
     /**
@@ -283,10 +1436,7 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
 
     public void setBaeAttributes(List<BAEAttributeNameMap> list) {
        baeAttributes = list;
-       baeAttrMap = new HashMap<String,String> ();
-       for (BAEAttributeNameMap attrib : list) {
-          baeAttrMap.put (attrib.QueryName, attrib.ReturnName);
-       }
+       attributeMappingPlan = new BAEAttributeMappingPlan (list);
     }
 
     
@@ -294,14 +1444,28 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
     @Override
     protected void doInitialize() throws ComponentInitializationException {
 
-        if (null == baeURL) {
-            throw new ComponentInitializationException(getLogPrefix() + " No BAE Responder URL found.");
-        }
-        if (null == baeEntityId) {
-            throw new ComponentInitializationException(getLogPrefix() + " No BAE Responder Entity Id found.");
-        }
-        if (null == serverCerts) {
-            throw new ComponentInitializationException(getLogPrefix() + " No BAE Responder Trust Certificate(s) found.");
+        if (null == baeEndpoints || baeEndpoints.isEmpty()) {
+            if (null == baeURL) {
+                throw new ComponentInitializationException(getLogPrefix() + " No BAE Responder URL found.");
+            }
+            if (null == baeEntityId) {
+                throw new ComponentInitializationException(getLogPrefix() + " No BAE Responder Entity Id found.");
+            }
+            if (null == serverCerts) {
+                throw new ComponentInitializationException(getLogPrefix() + " No BAE Responder Trust Certificate(s) found.");
+            }
+        } else {
+            for (BAEEndpoint endpoint : baeEndpoints) {
+                if (null == StringSupport.trimOrNull(endpoint.Url)) {
+                    throw new ComponentInitializationException(getLogPrefix() + " No BAE Responder URL found for an endpoint.");
+                }
+                if (null == StringSupport.trimOrNull(endpoint.EntityId)) {
+                    throw new ComponentInitializationException(getLogPrefix() + " No BAE Responder Entity Id found for " + endpoint.Url + ".");
+                }
+                if (null == endpoint.Trust && null == serverCerts) {
+                    throw new ComponentInitializationException(getLogPrefix() + " No BAE Responder Trust Certificate(s) found for " + endpoint.Url + ".");
+                }
+            }
         }
         if (null == myEntityId) {
             throw new ComponentInitializationException(getLogPrefix() + " No BAE Requester Entity Id found.");
@@ -312,25 +1476,438 @@ public class GfipmBAEDataConnector extends AbstractDataConnector {
         if (null == myKey) {
             throw new ComponentInitializationException(getLogPrefix() + " No BAE Requester Private Key found.");
         }
-        if (null == baeAttrMap) {
+        if (null == attributeMappingPlan) {
             throw new ComponentInitializationException(getLogPrefix() + " No Attribute Map found.");
         }
         if (null == subjectId) {
             throw new ComponentInitializationException(getLogPrefix() + " No Subject Identifier attribute found.");
         }
 
-       serverInfo = BAEServerInfoFactory.getInstance().createBAEServerInfo(baeURL, baeEntityId, serverCerts); 
+       BAEServerPool.Strategy strategy = getLoadBalancingStrategy ();
+       try {
+          subjectClassifier = new BAESubjectClassifier (uuidPattern, fascnPattern, emailPattern, dnPattern,
+                classifierCacheSize);
+       } catch (PatternSyntaxException e) {
+          throw new ComponentInitializationException(getLogPrefix() + " Invalid subject classification pattern: "
+                + e.getMessage());
+       }
+       metrics = new BAEConnectorMetrics (this);
+       tracer = new ResolutionTracer (getId(), traceLogSampleRate, traceLogThreshold);
+
+       if (cacheMaxSize > 0) {
+          resultCache = new BAEResultCache (cacheMaxSize, cacheTimeToLive, cacheNegativeTimeToLive);
+          if (refreshAheadFactor > 0 || staleGracePeriod > 0) {
+             int threads = Math.max (1, refreshThreads);
+             refreshExecutor = new ThreadPoolExecutor (threads, threads, 60, TimeUnit.SECONDS,
+                   new ArrayBlockingQueue<Runnable> (1000), new NamedDaemonThreadFactory ("bae-refresh-" + getId()));
+          }
+       }
+       if (null != persistentCachePath) {
+          requireCipher ("persistent cache");
+          openPersistentCache ();
+       }
+       if (null != sharedStorageService) {
+          requireCipher ("shared cache");
+          String key = null != sharedCacheKey ? sharedCacheKey : persistentCacheKey;
+          byte[] keyBytes = null == key ? null : Base64Support.decode (key);
+          if (null == keyBytes) {
+             throw new ComponentInitializationException(getLogPrefix() + " No shared cache key found.");
+          }
+          try {
+             sharedStore = new BAEStorageServiceSharedStore (sharedStorageService, keyBytes);
+          } catch (IllegalArgumentException e) {
+             throw new ComponentInitializationException(getLogPrefix() + " " + e.getMessage());
+          }
+       }
+       if (null != sharedStore) {
+          if (null == resultCache) {
+             throw new ComponentInitializationException(getLogPrefix() + " The shared cache needs the result cache to be enabled.");
+          }
+          sharedCache = new BAESharedCache (getLogPrefix(), getId(), sharedStore, sharedCacheTimeout);
+       }
+       if (coalesceQueries) {
+          queryCoalescer = new BAEQueryCoalescer ();
+          backgroundCoalescer = new BAEQueryCoalescer ();
+       }
+       if (maxConcurrentQueries > 0) {
+          bulkhead = new BAEBulkhead (maxConcurrentQueries, maxQueuedQueries, queueTimeout);
+       }
+       if (queryRateLimit > 0) {
+          int burst = queryBurst > 0 ? queryBurst : (int) Math.ceil (queryRateLimit);
+          rateLimiter = BAERateLimiter.forRequester (myEntityId, queryRateLimit, burst);
+          log.info ("{} Limiting BAE queries for {} to {}/s, bursts of {}",
+                new Object[] {getLogPrefix(), myEntityId, queryRateLimit, burst});
+       }
+       if (circuitFailureThreshold > 0 || circuitFailureRate > 0) {
+          circuitBreaker = new BAECircuitBreaker (getLogPrefix(), circuitFailureThreshold, circuitFailureRate,
+                circuitWindowSize, circuitOpenDuration, circuitHalfOpenProbes);
+       }
+       if (searchTimeLimit > 0 || resolutionDeadline > 0) {
+          if (searchTimeLimit <= 0) {
+             // Without a time limit a hung call would hold its executor thread and bulkhead permit forever.
+             searchTimeLimit = 30000;
+             log.info ("{} No searchTimeLimit set, limiting BAE queries to {}ms", getLogPrefix(), searchTimeLimit);
+          }
+          queryExecutor = createQueryExecutor ();
+          deadlineTimer = new ScheduledThreadPoolExecutor (1, new NamedDaemonThreadFactory ("bae-deadline-" + getId()));
+          deadlineTimer.setRemoveOnCancelPolicy (true);
+       }
+
+       if (backgroundInitialization) {
+          final BAEServerPool.Strategy poolStrategy = strategy;
+          startupThread = new NamedDaemonThreadFactory ("bae-startup-" + getId()).newThread (new Runnable() {
+             public void run() {
+                startInBackground (poolStrategy);
+             }
+          });
+          startupThread.start();
+          log.info ("{} Building the BAE client in the background, queries are refused until it is ready.",
+                getLogPrefix());
+       } else {
+          try {
+             buildServerPool (strategy);
+          } catch (BAEServerCreationException e) {
+             log.error ("BAE Server Creation Error: {}", e);
+             throw new ComponentInitializationException(getLogPrefix() + " BAE Server could not be initialized.");
+          }
+          startServerPool ();
+          try {
+             warmUp ();
+          } finally {
+             ready = true;
+          }
+       }
+       metrics.register ();
+    }
+
+    /**
+     * Build the BAE client, retrying with a growing delay until it can be built or the connector is destroyed, then
+     * warm it up and mark the connector ready.
+     */
+    private void startInBackground (BAEServerPool.Strategy strategy) {
+       long delay = 1000;
+       while (true) {
+          try {
+             buildServerPool (strategy);
+             break;
+          } catch (Exception e) {
+             log.error ("{} BAE client could not be built, retrying in {}ms: {}", new Object[] {getLogPrefix(), delay, e});
+          }
+          try {
+             Thread.sleep (delay);
+          } catch (InterruptedException e) {
+             return;
+          }
+          delay = Math.min (delay * 2, 60000);
+       }
+       synchronized (startupLock) {
+          if (stopped) {
+             return;
+          }
+          startServerPool ();
+       }
+       try {
+          warmUp ();
+       } finally {
+          ready = true;
+       }
+       log.info ("{} BAE connector is ready.", getLogPrefix());
+    }
+
+    /**
+     * Query the warm-up subjects, so that class loading, JIT compilation, TLS sessions and connections are done before
+     * the first login rather than during it.  The results are discarded, and failures are only logged.  Each query
+     * runs on a warm-up thread and is given up at the search time limit, and the warm-up as a whole stops at the
+     * warm-up timeout, so that a BAE Responder that does not answer cannot hold up initialization.
+     */
+    private void warmUp () {
+       if (null == warmUpSubjects || warmUpSubjects.isEmpty()) {
+          return;
+       }
+       long start = System.nanoTime();
+       long deadline = warmUpTimeout > 0 ? start + TimeUnit.MILLISECONDS.toNanos (warmUpTimeout) : Long.MAX_VALUE;
+       int queries = 0;
+       int failures = 0;
+       ExecutorService warmUpExecutor = Executors.newSingleThreadExecutor (
+             new NamedDaemonThreadFactory ("bae-warmup-" + getId()));
+       try {
+          warming:
+          for (int i = 0; i < Math.max (1, warmUpIterations); i++) {
+             for (final String subject : warmUpSubjects) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis (deadline - System.nanoTime());
+                if (remaining <= 0) {
+                   log.warn ("{} Warm-up stopped after {}ms, the connector is ready without it.", getLogPrefix(),
+                         warmUpTimeout);
+                   break warming;
+                }
+                Future<?> query = null;
+                try {
+                   if (rateLimiter != null && !rateLimiter.acquire (BAERateLimiter.Priority.BACKGROUND,
+                         Math.min (backgroundRateLimitTimeout, remaining))) {
+                      continue;
+                   }
+                   queries++;
+                   query = warmUpExecutor.submit (new Callable<Object>() {
+                      public Object call() throws Exception {
+                         return mapAttributes (serverPool.attributeQuery (GetSubjectIdentifier (subject)));
+                      }
+                   });
+                   query.get (searchTimeLimit > 0 ? Math.min (searchTimeLimit, remaining) : remaining,
+                         TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                   Thread.currentThread().interrupt();
+                   return;
+                } catch (TimeoutException e) {
+                   failures++;
+                   query.cancel (true);
+                   log.debug ("{} Warm-up query for {} timed out", getLogPrefix(), subject);
+                   // A call that ignores the interrupt keeps the warm-up thread, so the next query needs another.
+                   warmUpExecutor.shutdownNow();
+                   warmUpExecutor = Executors.newSingleThreadExecutor (
+                         new NamedDaemonThreadFactory ("bae-warmup-" + getId()));
+                } catch (Exception e) {
+                   failures++;
+                   log.debug ("{} Warm-up query for {} failed: {}", new Object[] {getLogPrefix(), subject, e});
+                }
+             }
+          }
+       } finally {
+          warmUpExecutor.shutdownNow();
+       }
+       if (queries > 0 && failures == queries) {
+          log.warn ("{} All {} warm-up queries failed, the BAE Responder may be unreachable.", getLogPrefix(), queries);
+       } else {
+          log.info ("{} Warmed up with {} queries ({} failed) in {}ms", new Object[] {getLogPrefix(), queries, failures,
+                TimeUnit.NANOSECONDS.toMillis (System.nanoTime() - start)});
+       }
+    }
+
+    /**
+     * Build the BAE client and the pool of BAE Responders it queries.
+     */
+    private void buildServerPool (BAEServerPool.Strategy strategy) throws BAEServerCreationException {
        clientInfo = BAEClientInfoFactory.getInstance().createBAEClientInfo(myEntityId, myCert, myKey);
        Map<String,String> mapOptions = new HashMap<String,String> ();
        mapOptions.put (WebServiceRequestOptions.CLIENT_CERT_AUTH, "false");
        mapOptions.put (WebServiceRequestOptions.SERVER_CERT_AUTH, "false");
+       if (null != transportOptions) {
+          mapOptions.putAll (transportOptions);
+       }
+       log.debug ("{} BAE client options: {}", getLogPrefix(), mapOptions);
+       BAETlsMonitor.tuneSessionCache (tlsSessionCacheSize, tlsSessionTimeout);
        WebServiceRequestOptions wsRequestOptions = WebServiceRequestOptionsFactory.getInstance().createWebServiceRequestOptions(mapOptions);
 
-       try {
-          baeServer = BAEServerFactory.getInstance().createBAEServer(serverInfo, clientInfo, wsRequestOptions);
-       } catch (BAEServerCreationException e) {
-         log.error ("BAE Server Creation Error: {}", e);
-         throw new ComponentInitializationException(getLogPrefix() + " BAE Server could not be initialized.");
+       List<BAEServer> servers = new ArrayList<BAEServer> ();
+       List<String> serverNames = new ArrayList<String> ();
+       if (null == baeEndpoints || baeEndpoints.isEmpty()) {
+          BAEServerInfo serverInfo = BAEServerInfoFactory.getInstance().createBAEServerInfo(baeURL, baeEntityId, serverCerts);
+          servers.add (createBAEServer (serverInfo, wsRequestOptions));
+          serverNames.add (baeURL);
+       } else {
+          for (BAEEndpoint endpoint : baeEndpoints) {
+             List<X509Certificate> certs = null == endpoint.Trust ? serverCerts : getCertificates (endpoint.Trust);
+             BAEServerInfo serverInfo = BAEServerInfoFactory.getInstance().createBAEServerInfo(
+                   StringSupport.trimOrNull(endpoint.Url), StringSupport.trimOrNull(endpoint.EntityId), certs);
+             servers.add (createBAEServer (serverInfo, wsRequestOptions));
+             serverNames.add (StringSupport.trimOrNull(endpoint.Url));
+          }
        }
+
+       if (monitorTls) {
+          BAETlsMonitor monitor = BAETlsMonitor.install ();
+          for (String serverName : serverNames) {
+             monitor.watchEndpoint (serverName);
+          }
+       }
+
+       List<BAEQueryProjection> built = new ArrayList<BAEQueryProjection> ();
+       if (projectQueries) {
+          for (int i = 0; i < servers.size(); i++) {
+             BAEQueryProjection projection = BAEQueryProjection.wrap (servers.get(i), serverNames.get(i),
+                   attributeMappingPlan.getQueryNames());
+             if (projection.isProjecting()) {
+                log.info ("{} Requesting only the {} mapped attributes from {}", new Object[] {getLogPrefix(),
+                      attributeMappingPlan.getQueryNames().size(), serverNames.get(i)});
+                built.add (projection);
+                servers.set (i, projection.getServer());
+             } else {
+                log.info ("{} BAE client for {} cannot select attributes, requesting all of them",
+                      getLogPrefix(), serverNames.get(i));
+             }
+          }
+       }
+
+       projections = built;
+       serverPool = new BAEServerPool (getLogPrefix(), servers, serverNames, strategy, endpointFailureThreshold);
+       serverPool.setRateLimiter (rateLimiter);
+    }
+
+    /**
+     * Start the health probes and hedging of the responder pool.
+     */
+    private void startServerPool () {
+       if (serverPool.getMembers().size() > 1 && endpointProbeInterval > 0) {
+          probeScheduler = Executors.newSingleThreadScheduledExecutor (
+                new NamedDaemonThreadFactory ("bae-probe-" + getId()));
+          if (null == endpointProbeSubject) {
+             log.info ("{} No endpointProbeSubject set, ejected BAE Responders are re-admitted once they accept connections",
+                   getLogPrefix());
+          }
+          int members = serverPool.getMembers().size();
+          probeExecutor = new ThreadPoolExecutor (0, members, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable> (),
+                new NamedDaemonThreadFactory ("bae-probe-query-" + getId()));
+          serverPool.startProbing (probeScheduler, probeExecutor, endpointProbeInterval,
+                searchTimeLimit > 0 ? searchTimeLimit : 30000,
+                null == endpointProbeSubject ? null : GetSubjectIdentifier (endpointProbeSubject));
+       }
+       if (hedgeRequests && serverPool.getMembers().size() > 1) {
+          // Room for a query and its hedge per admitted call; beyond that queries run unhedged on the caller.
+          int threads = 2 * (maxConcurrentQueries > 0 ? maxConcurrentQueries : 50);
+          hedgeExecutor = new ThreadPoolExecutor (0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable> (),
+                new NamedDaemonThreadFactory ("bae-hedge-" + getId()));
+          serverPool.enableHedging (hedgeExecutor, hedgePercentile, hedgeMinDelay, hedgeMaxRate);
+       }
+    }
+
+    /**
+     * Create the client for one BAE Responder.  Overridden to substitute an in-process responder when benchmarking.
+     */
+    protected BAEServer createBAEServer (BAEServerInfo serverInfo, WebServiceRequestOptions wsRequestOptions)
+          throws BAEServerCreationException {
+       return BAEServerFactory.getInstance().createBAEServer(serverInfo, clientInfo, wsRequestOptions);
+    }
+
+    /**
+     * Refuse to start a cache whose entries cannot be encrypted on this JVM, rather than have every write fail.
+     */
+    private void requireCipher (String feature) throws ComponentInitializationException {
+        try {
+           Cipher.getInstance (BAEPersistentCache.CIPHER);
+        } catch (GeneralSecurityException e) {
+           throw new ComponentInitializationException(getLogPrefix() + " The " + feature + " needs "
+                 + BAEPersistentCache.CIPHER + ", which this JVM does not provide; it needs Java 8 or later.", e);
+        }
+    }
+
+    /**
+     * Open the persistent cache and load its index in the background, so that initialization is not held up.
+     */
+    private void openPersistentCache () throws ComponentInitializationException {
+        if (null == resultCache) {
+           throw new ComponentInitializationException(getLogPrefix() + " The persistent cache needs the result cache to be enabled.");
+        }
+        byte[] keyBytes = null == persistentCacheKey ? null : Base64Support.decode (persistentCacheKey);
+        if (null == keyBytes) {
+           throw new ComponentInitializationException(getLogPrefix() + " No persistent cache key found.");
+        }
+        final BAEPersistentCache cache;
+        try {
+           cache = new BAEPersistentCache (new File (persistentCachePath), keyBytes, persistentCacheMaxSize);
+        } catch (IOException e) {
+           throw new ComponentInitializationException(getLogPrefix() + " Persistent cache could not be opened.", e);
+        }
+        persistentCache = cache;
+
+        new NamedDaemonThreadFactory ("bae-cache-load-" + getId()).newThread (new Runnable() {
+           public void run() {
+              try {
+                 cache.load();
+              } catch (IOException e) {
+                 log.warn ("{} Persistent cache could not be loaded: {}", getLogPrefix(), e.getMessage());
+              }
+           }
+        }).start();
+    }
+
+    /**
+     * Parse the load balancing strategy name.
+     */
+    private BAEServerPool.Strategy getLoadBalancingStrategy () throws ComponentInitializationException {
+        if (null == loadBalancing || "roundRobin".equalsIgnoreCase (loadBalancing)) {
+           return BAEServerPool.Strategy.ROUND_ROBIN;
+        } else if ("leastOutstanding".equalsIgnoreCase (loadBalancing)) {
+           return BAEServerPool.Strategy.LEAST_OUTSTANDING;
+        } else if ("latency".equalsIgnoreCase (loadBalancing)) {
+           return BAEServerPool.Strategy.LATENCY;
+        }
+        throw new ComponentInitializationException(getLogPrefix() + " Unknown load balancing strategy " + loadBalancing + ".");
+    }
+
+    /**
+     * Build the query executor: a virtual thread per query if asked for and the JVM supports it, otherwise a pool of
+     * queryThreads platform threads (by default the bulkhead size, or 50) whose queue holds as many calls again.
+     * Calls beyond that are rejected rather than queued without bound.
+     */
+    private ExecutorService createQueryExecutor () throws ComponentInitializationException {
+        if ("virtual".equalsIgnoreCase (queryExecutorType)) {
+           if (maxConcurrentQueries <= 0) {
+              throw new ComponentInitializationException(getLogPrefix() + " The virtual query executor needs maxConcurrentQueries to be set.");
+           }
+           try {
+              return (ExecutorService) Executors.class.getMethod ("newVirtualThreadPerTaskExecutor").invoke (null);
+           } catch (Exception e) {
+              log.warn ("{} Virtual threads are not available on this JVM, using a platform thread pool.", getLogPrefix());
+           }
+        } else if (queryExecutorType != null && !"platform".equalsIgnoreCase (queryExecutorType)) {
+           log.warn ("{} Unknown query executor type '{}', using a platform thread pool.", getLogPrefix(), queryExecutorType);
+        }
+
+        int threads = queryThreads;
+        if (threads <= 0) {
+           threads = maxConcurrentQueries > 0 ? maxConcurrentQueries : 50;
+        }
+        int queue = maxConcurrentQueries > 0 ? maxConcurrentQueries : threads;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor (threads, threads, 60, TimeUnit.SECONDS,
+              new ArrayBlockingQueue<Runnable> (queue), new NamedDaemonThreadFactory ("bae-query-" + getId()));
+        executor.allowCoreThreadTimeOut (true);
+        return executor;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        synchronized (startupLock) {
+           stopped = true;
+        }
+        if (startupThread != null) {
+           startupThread.interrupt();
+           startupThread = null;
+        }
+        if (queryExecutor != null) {
+           queryExecutor.shutdownNow();
+           queryExecutor = null;
+        }
+        if (deadlineTimer != null) {
+           deadlineTimer.shutdownNow();
+           deadlineTimer = null;
+        }
+        if (refreshExecutor != null) {
+           refreshExecutor.shutdownNow();
+           refreshExecutor = null;
+        }
+        if (probeScheduler != null) {
+           probeScheduler.shutdownNow();
+           probeScheduler = null;
+        }
+        if (probeExecutor != null) {
+           probeExecutor.shutdownNow();
+           probeExecutor = null;
+        }
+        if (hedgeExecutor != null) {
+           hedgeExecutor.shutdownNow();
+           hedgeExecutor = null;
+        }
+        if (persistentCache != null) {
+           persistentCache.close();
+           persistentCache = null;
+        }
+        if (sharedCache != null) {
+           sharedCache.close();
+           sharedCache = null;
+        }
+        if (metrics != null) {
+           metrics.unregister ();
+        }
+        super.doDestroy();
     }
 }
@@ -40,6 +40,15 @@ import net.shibboleth.utilities.java.support.logic.Constraint;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,6 +73,42 @@ public class GfipmTestDataConnector extends AbstractDataConnector {
     /** Shibboleth Attribute Definition Id to get the User Id from as opposed to just using the principal id */
     @NonnullAfterInit private String uidAttributeId;
 
+    /** Whether to load every attribute file into memory at initialization rather than reading one per resolution. */
+    private boolean preloadAttributes;
+
+    /** Attributes of every user keyed by principal, when preloaded.  Replaced whole, never modified. */
+    @Nullable private volatile Map<String, Map<String, IdPAttribute>> userIndex;
+
+    /** Whether to watch the attribute directory and reload changed files into the index. */
+    private boolean watchAttributeFiles;
+
+    /** How long, in milliseconds, the directory must be quiet before changes are applied. */
+    private long reloadDelay = 500;
+
+    /** Longest time, in milliseconds, changes wait to be applied while the directory keeps changing. */
+    private long maxReloadDelay = 10000;
+
+    /** Watches the attribute directory, null unless watching. */
+    @Nullable private WatchService watchService;
+
+    /** Path to a bulk attribute file holding every user, used in place of the attribute directory when set. */
+    @Nullable private String pathToBulkAttributeFile;
+
+    /** The mapped bulk attribute file, null unless configured. */
+    @Nullable private BulkAttributeFile bulkAttributeFile;
+
+    /** Resolution metrics, registered over JMX. */
+    @NonnullAfterInit private ConnectorMetrics metrics;
+
+    /** Fraction of resolutions written to the trace log. */
+    private double traceLogSampleRate;
+
+    /** Resolutions slower than this, in milliseconds, are always written to the trace log. */
+    private long traceLogThreshold;
+
+    /** Times the phases of each resolution. */
+    @NonnullAfterInit private ResolutionTracer tracer;
+
     /**
      * Constructor.
      * 
@@ -114,6 +159,148 @@ public class GfipmTestDataConnector extends AbstractDataConnector {
         return pathToUserAttributeFiles;
     }
 
+    /**
+      * Set whether to load every attribute file into memory at initialization.
+      *
+      * @param preload what to set.
+      */
+    public void setPreloadAttributes(boolean preload) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        preloadAttributes = preload;
+    }
+
+    /**
+      * Get whether every attribute file is loaded into memory at initialization.
+      *
+      * @return whether attributes are preloaded.
+      */
+    public boolean isPreloadAttributes() {
+        return preloadAttributes;
+    }
+
+    /**
+      * Set whether to watch the attribute directory and reload changed files.  Implies preloading.
+      *
+      * @param watch what to set.
+      */
+    public void setWatchAttributeFiles(boolean watch) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        watchAttributeFiles = watch;
+    }
+
+    /**
+      * Get whether the attribute directory is watched for changes.
+      *
+      * @return whether the directory is watched.
+      */
+    public boolean isWatchAttributeFiles() {
+        return watchAttributeFiles;
+    }
+
+    /**
+      * Set how long the directory must be quiet before changes are applied.
+      *
+      * @param delay the delay in milliseconds.
+      */
+    public void setReloadDelay(long delay) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        reloadDelay = delay;
+    }
+
+    /**
+      * Get how long the directory must be quiet before changes are applied.
+      *
+      * @return the delay in milliseconds.
+      */
+    public long getReloadDelay() {
+        return reloadDelay;
+    }
+
+    /**
+      * Set the longest time changes wait to be applied while the directory keeps changing.
+      *
+      * @param delay the delay in milliseconds.
+      */
+    public void setMaxReloadDelay(long delay) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        maxReloadDelay = delay;
+    }
+
+    /**
+      * Get the longest time changes wait to be applied while the directory keeps changing.
+      *
+      * @return the delay in milliseconds.
+      */
+    public long getMaxReloadDelay() {
+        return maxReloadDelay;
+    }
+
+    /**
+      * Set the path of a bulk attribute file, built with {@link BulkAttributeFile}, to use instead of the directory.
+      *
+      * @param path what to set.
+      */
+    public void setPathToBulkAttributeFile(@Nullable String path) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        pathToBulkAttributeFile = StringSupport.trimOrNull(path);
+    }
+
+    /**
+      * Get the path of the bulk attribute file.
+      *
+      * @return the path, or null if the attribute directory is used.
+      */
+    @Nullable public String getPathToBulkAttributeFile() {
+        return pathToBulkAttributeFile;
+    }
+
+    /**
+      * Get the resolution metrics.
+      *
+      * @return the metrics.
+      */
+    @NonnullAfterInit public ConnectorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+      * Set the fraction of resolutions written to the trace log.
+      *
+      * @param rate the fraction, from 0 to 1.
+      */
+    public void setTraceLogSampleRate(double rate) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        traceLogSampleRate = rate;
+    }
+
+    /**
+      * Get the fraction of resolutions written to the trace log.
+      *
+      * @return the fraction.
+      */
+    public double getTraceLogSampleRate() {
+        return traceLogSampleRate;
+    }
+
+    /**
+      * Set how slow a resolution must be to always be written to the trace log.
+      *
+      * @param threshold the time in milliseconds, 0 to log only the sample.
+      */
+    public void setTraceLogThreshold(long threshold) {
+        ComponentSupport.ifInitializedThrowUnmodifiabledComponentException(this);
+        traceLogThreshold = threshold;
+    }
+
+    /**
+      * Get how slow a resolution must be to always be written to the trace log.
+      *
+      * @return the time in milliseconds.
+      */
+    public long getTraceLogThreshold() {
+        return traceLogThreshold;
+    }
+
     private String getPrincipal (
             @Nonnull final AttributeResolutionContext resolutionContext,
             @Nonnull final AttributeResolverWorkContext workContext) {
@@ -145,7 +332,43 @@ public class GfipmTestDataConnector extends AbstractDataConnector {
         Constraint.isNotNull(resolutionContext, "AttributeResolutionContext cannot be null");
         Constraint.isNotNull(workContext, "AttributeResolverWorkContext cannot be null");
 
-        String strPrincipal = getPrincipal (resolutionContext, workContext);
+        final ResolutionTracer.Trace trace = tracer.start();
+        final String strPrincipal = getPrincipal (resolutionContext, workContext);
+        trace.endPhase (ResolutionTracer.Phase.DEPENDENCIES);
+        return resolvePrincipal (strPrincipal, trace);
+    }
+
+    /**
+      * Resolve the attributes of a principal from its attribute file.
+      *
+      * @param strPrincipal the principal, possibly a DN, or null if none was identified.
+      * @return the attributes keyed by name.
+      * @throws ResolutionException if the principal has no attribute file.
+      */
+    @Nonnull Map<String, IdPAttribute> resolvePrincipal (@Nullable String strPrincipal) throws ResolutionException {
+        return resolvePrincipal (strPrincipal, tracer.start());
+    }
+
+    @Nonnull private Map<String, IdPAttribute> resolvePrincipal (@Nullable String strPrincipal,
+            @Nonnull ResolutionTracer.Trace trace) throws ResolutionException {
+
+        final long start = System.nanoTime();
+        try {
+            final Map<String, IdPAttribute> attributes = lookupAttributes (strPrincipal, trace);
+            trace.endPhase (ResolutionTracer.Phase.QUERY);
+            metrics.onResolution (start, attributes.size());
+            tracer.finish (trace, attributes.isEmpty() ? "EMPTY" : "SUCCESS", attributes.size());
+            return attributes;
+        } catch (ResolutionException e) {
+            trace.endPhase (ResolutionTracer.Phase.QUERY);
+            metrics.onResolutionError (start);
+            tracer.finish (trace, "ERROR", 0);
+            throw e;
+        }
+    }
+
+    @Nonnull private Map<String, IdPAttribute> lookupAttributes (@Nullable String strPrincipal,
+            @Nonnull ResolutionTracer.Trace trace) throws ResolutionException {
 
         //We want to cleanup principals that are DNs
         if ( null == strPrincipal )
@@ -153,6 +376,7 @@ public class GfipmTestDataConnector extends AbstractDataConnector {
            log.error ("Failed to identify the principal");
            throw new ResolutionException("Unique principal not identified.");
         } else if ( strPrincipal.startsWith ("/") ) {
+           trace.setSubjectType ("DN");
            int start = strPrincipal.indexOf ('=');
            int end   = strPrincipal.indexOf ('/', start);
            strPrincipal = strPrincipal.substring (start + 1, end); // ;/CN=LinuxrefUser1/ST=GA/C=US/O=Georgia Tech.xml
@@ -163,15 +387,57 @@ public class GfipmTestDataConnector extends AbstractDataConnector {
         strPrincipal.replace ('\\', '-');
         strPrincipal.replace ('=', '_');
 
+        if (null == trace.getSubjectType()) {
+           trace.setSubjectType ("UID");
+        }
+
+        if (bulkAttributeFile != null) {
+           trace.setSource ("bulk");
+           Map<String, IdPAttribute> outputAttr = bulkAttributeFile.lookup (strPrincipal);
+           if (outputAttr == null) {
+              throw new ResolutionException("User Not Found: " + strPrincipal + " in " + pathToBulkAttributeFile);
+           }
+           return outputAttr;
+        }
+
         String strFileName = pathToUserAttributeFiles + strPrincipal + ".attr";
 
+        final Map<String, Map<String, IdPAttribute>> index = userIndex;
+        if (index != null) {
+           trace.setSource ("preload");
+           Map<String, IdPAttribute> outputAttr = index.get (strPrincipal);
+           if (outputAttr == null) {
+              throw new ResolutionException("File Not Found: " + strFileName);
+           }
+           return outputAttr;
+        }
+
         log.debug ("Trying to load attribute file: " + strFileName + "\n");
+        trace.setSource ("file");
+
+        try {
+           return parseAttributeFile (new File(strFileName));
+        }
+        catch (java.io.FileNotFoundException name) {
+           throw new ResolutionException("File Not Found: " + strFileName);
+        } catch (java.io.IOException e) {
+           throw new ResolutionException("File Parsing Error, while reading " + strFileName);
+        }
+    }
+
+    /**
+     * Read one user's attribute file, a "name :: value" pair per line.
+     *
+     * @param inputFile the file
+     * @return the attributes, keyed by name
+     * @throws java.io.IOException if the file cannot be read
+     */
+    private Map<String, IdPAttribute> parseAttributeFile (File inputFile) throws java.io.IOException {
 
         Map<String, IdPAttribute> outputAttr = new HashMap<String, IdPAttribute>(20);
 
+        BufferedReader in = new BufferedReader(new FileReader(inputFile));
         try {
-           File inputFile = new File(strFileName);
-           BufferedReader in = new BufferedReader(new FileReader(inputFile));
            String strNextLine = "";
 
            while ( (strNextLine = in.readLine()) != null ) {
@@ -181,9 +447,9 @@ public class GfipmTestDataConnector extends AbstractDataConnector {
                log.debug ("Delimiter error when parsing attribute line: " + strNextLine);
              }
              else {
-               String strAttrName  = tokens[0];
+               String strAttrName  = tokens[0].intern();
                String strAttrValue = tokens[1];
-               log.debug ("Attr  = " + strAttrName + "\nValue = " + strAttrValue + "\n");
+               log.trace ("Attr  = {}, Value = {}", strAttrName, strAttrValue);
 
                List<IdPAttributeValue<String>> outputValue = Lists.newArrayListWithExpectedSize(1);
                outputValue.add(new StringAttributeValue(strAttrValue));
@@ -194,14 +460,178 @@ public class GfipmTestDataConnector extends AbstractDataConnector {
                outputAttr.put (tempAttr.getId(), tempAttr);
              }
            }
+        } finally {
+           in.close();
         }
-        catch (java.io.FileNotFoundException name) {
-           throw new ResolutionException("File Not Found: " + strFileName);
+
+        return outputAttr;
+    }
+
+    /**
+     * Load every attribute file in the directory into an immutable index keyed by principal.
+     *
+     * @return the index
+     * @throws ComponentInitializationException if the directory cannot be listed
+     */
+    private Map<String, Map<String, IdPAttribute>> loadUserIndex () throws ComponentInitializationException {
+
+        final long start = System.currentTimeMillis();
+        File[] files = new File(pathToUserAttributeFiles).listFiles();
+        if (files == null) {
+           throw new ComponentInitializationException(getLogPrefix() + " Cannot list attribute files in " + pathToUserAttributeFiles);
+        }
+
+        Map<String, Map<String, IdPAttribute>> index = new HashMap<String, Map<String, IdPAttribute>>(files.length * 2);
+        long attributeCount = 0;
+        long estimatedBytes = 0;
+        for (File file : files) {
+           String name = file.getName();
+           if (!file.isFile() || !name.endsWith (".attr")) {
+              continue;
+           }
+           try {
+              Map<String, IdPAttribute> attributes = parseAttributeFile (file);
+              index.put (name.substring (0, name.length() - 5), Collections.unmodifiableMap (attributes));
+              attributeCount += attributes.size();
+              estimatedBytes += estimateSize (name, attributes);
+           } catch (java.io.IOException e) {
+              log.warn ("{} Skipping unreadable attribute file {}: {}", new Object[] {getLogPrefix(), file, e.getMessage()});
+           }
+        }
+
+        log.info ("{} Loaded {} user(s) with {} attribute(s) from {} in {}ms, using about {} KB",
+              new Object[] {getLogPrefix(), index.size(), attributeCount, pathToUserAttributeFiles,
+                            System.currentTimeMillis() - start, estimatedBytes / 1024});
+        return Collections.unmodifiableMap (index);
+    }
+
+    /**
+     * Register for changes to the attribute directory.  This happens before the index is loaded so that no change
+     * is missed; changes made during the load are applied once the watcher starts.
+     *
+     * @throws ComponentInitializationException if the directory cannot be watched
+     */
+    private void registerWatch () throws ComponentInitializationException {
+        final Path directory = Paths.get (pathToUserAttributeFiles);
+        try {
+           watchService = directory.getFileSystem().newWatchService();
+           directory.register (watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                 StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
         } catch (java.io.IOException e) {
-           throw new ResolutionException("File Parsing Error, while reading " + strFileName);
+           throw new ComponentInitializationException(getLogPrefix() + " Cannot watch " + pathToUserAttributeFiles, e);
         }
+    }
 
-        return outputAttr;
+    /**
+     * Start applying changes to the attribute directory.
+     */
+    private void startWatching () {
+        final WatchService watcher = watchService;
+        new NamedDaemonThreadFactory ("attr-watch-" + getId()).newThread (new Runnable() {
+           public void run() {
+              watch (watcher);
+           }
+        }).start();
+    }
+
+    /**
+     * Collect changed file names until the directory has been quiet for the reload delay, or the maximum reload delay
+     * has passed since the first change, then apply them.  Runs until the watch service is closed.
+     */
+    private void watch (WatchService watcher) {
+        try {
+           while (true) {
+              Set<String> changed = new HashSet<String>();
+              boolean overflow = collectChanges (watcher.take(), changed);
+              long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos (Math.max (reloadDelay, maxReloadDelay));
+              long remaining;
+              while ((remaining = TimeUnit.NANOSECONDS.toMillis (deadline - System.nanoTime())) > 0) {
+                 WatchKey key = watcher.poll (Math.min (reloadDelay, remaining), TimeUnit.MILLISECONDS);
+                 if (key == null) {
+                    break;
+                 }
+                 overflow |= collectChanges (key, changed);
+              }
+              applyChanges (changed, overflow);
+           }
+        } catch (ClosedWatchServiceException e) {
+           log.debug ("{} Stopped watching {}", getLogPrefix(), pathToUserAttributeFiles);
+        } catch (InterruptedException e) {
+           log.debug ("{} Interrupted watching {}", getLogPrefix(), pathToUserAttributeFiles);
+        }
+    }
+
+    /**
+     * Add the attribute files named by a watch key's events to the set.
+     *
+     * @return whether events were lost, so that the whole directory must be reloaded
+     */
+    private boolean collectChanges (WatchKey key, Set<String> changed) {
+        boolean overflow = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+           if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              overflow = true;
+           } else {
+              String name = event.context().toString();
+              if (name.endsWith (".attr")) {
+                 changed.add (name);
+              }
+           }
+        }
+        key.reset();
+        return overflow;
+    }
+
+    /**
+     * Re-read the changed files into a copy of the index and swap it in.  Resolutions carry on against the old index
+     * meanwhile.
+     */
+    private void applyChanges (Set<String> changed, boolean overflow) {
+        if (overflow) {
+           log.info ("{} Lost track of changes to {}, reloading all attribute files", getLogPrefix(), pathToUserAttributeFiles);
+           try {
+              userIndex = loadUserIndex ();
+           } catch (ComponentInitializationException e) {
+              log.error ("{} Reload failed: {}", getLogPrefix(), e.getMessage());
+           }
+           return;
+        }
+        if (changed.isEmpty()) {
+           return;
+        }
+
+        Map<String, Map<String, IdPAttribute>> index = new HashMap<String, Map<String, IdPAttribute>>(userIndex);
+        for (String name : changed) {
+           String principal = name.substring (0, name.length() - 5);
+           File file = new File (pathToUserAttributeFiles, name);
+           if (!file.isFile()) {
+              index.remove (principal);
+              continue;
+           }
+           try {
+              index.put (principal, Collections.unmodifiableMap (parseAttributeFile (file)));
+           } catch (java.io.IOException e) {
+              // Most likely deleted or still being written; the next event for it will bring it up to date.
+              log.warn ("{} Could not reload {}: {}", new Object[] {getLogPrefix(), file, e.getMessage()});
+           }
+        }
+        userIndex = Collections.unmodifiableMap (index);
+        log.info ("{} Reloaded {} attribute file(s), {} user(s) now loaded", new Object[] {getLogPrefix(), changed.size(), index.size()});
+    }
+
+    /**
+     * Rough heap footprint of one user's entry: the key, the map and, per attribute, the attribute, its value list
+     * and its values.  Interned attribute names are not counted.
+     */
+    private static long estimateSize (String fileName, Map<String, IdPAttribute> attributes) {
+        long bytes = 40 + 2L * fileName.length() + 64 + 32L * attributes.size();
+        for (IdPAttribute attribute : attributes.values()) {
+           bytes += 48 + 40;
+           for (IdPAttributeValue<?> value : attribute.getValues()) {
+              bytes += 16 + 40 + 2L * String.valueOf(value.getValue()).length();
+           }
+        }
+        return bytes;
     }
 
     /** {@inheritDoc} */
@@ -212,9 +642,52 @@ public class GfipmTestDataConnector extends AbstractDataConnector {
         if (null == uidAttributeId) {
             throw new ComponentInitializationException(getLogPrefix() + " No uid attribute source set up.");
         }
+        metrics = new ConnectorMetrics (getId());
+        tracer = new ResolutionTracer (getId(), traceLogSampleRate, traceLogThreshold);
+        if (null != pathToBulkAttributeFile) {
+            try {
+                final long start = System.currentTimeMillis();
+                bulkAttributeFile = new BulkAttributeFile (new File(pathToBulkAttributeFile));
+                log.info ("{} Mapped {} users from {} in {}ms", getLogPrefix(), bulkAttributeFile.size(),
+                          pathToBulkAttributeFile, System.currentTimeMillis() - start);
+            } catch (java.io.IOException e) {
+                throw new ComponentInitializationException(getLogPrefix() + " Unable to open bulk attribute file "
+                        + pathToBulkAttributeFile, e);
+            }
+            metrics.register ();
+            return;
+        }
         if (null == pathToUserAttributeFiles) {
             throw new ComponentInitializationException(getLogPrefix() + " No path to attribute files set up.");
         }
+        if (watchAttributeFiles) {
+            registerWatch ();
+        }
+        if (preloadAttributes || watchAttributeFiles) {
+            userIndex = loadUserIndex ();
+        }
+        if (watchAttributeFiles) {
+            startWatching ();
+        }
+        metrics.register ();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doDestroy() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (java.io.IOException e) {
+                log.debug ("{} Error closing the watch service: {}", getLogPrefix(), e.getMessage());
+            }
+            watchService = null;
+        }
+        bulkAttributeFile = null;
+        if (metrics != null) {
+            metrics.unregister ();
+        }
+        super.doDestroy();
     }
 
 }
@@ -0,0 +1,158 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Lock-free, allocation-free latency histogram.
+ *
+ * Latencies are recorded in microseconds into log-linear buckets: each power of two is split into eight, so a
+ * percentile is accurate to within one eighth of its value.  Recording is a couple of atomic increments, cheap
+ * enough to leave on at full load.  Percentiles are read from a racy but consistent-enough snapshot of the buckets.
+ */
+@ThreadSafe
+public class LatencyHistogram {
+
+    /** Sub-buckets per power of two, as a shift. */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /** Sub-buckets per power of two. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Number of buckets, enough for any positive long. */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Counts per bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** Number of values recorded. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** Sum of the values recorded, in microseconds. */
+    private final AtomicLong total = new AtomicLong();
+
+    /** Largest value recorded, in microseconds. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the mean latency.
+     *
+     * @return the mean in microseconds, 0 if nothing was recorded
+     */
+    public long getMean() {
+        final long n = count.get();
+        return n > 0 ? total.get() / n : 0;
+    }
+
+    /**
+     * Get the largest latency recorded.
+     *
+     * @return the maximum in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get a percentile of the latencies recorded.
+     *
+     * @param percentile the percentile, 0 to 100
+     * @return the upper bound, in microseconds, of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentile(final double percentile) {
+        long n = 0;
+        final long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Find the bucket of a value.
+     *
+     * @param micros the value
+     * @return the bucket index
+     */
+    private static int bucket(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the largest value that falls in a bucket.
+     *
+     * @param index the bucket index
+     * @return the upper bound
+     */
+    private static long upperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        final long lower = (1L << exponent) + (index % SUB_BUCKETS) * width;
+        return lower + width - 1;
+    }
+}
@@ -0,0 +1,51 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Thread factory for the connectors' background work, so that it never holds up container shutdown.
+ */
+public class NamedDaemonThreadFactory implements ThreadFactory {
+
+    /** Prefix of the thread names. */
+    private final String prefix;
+
+    /** Number of threads created so far. */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param name prefix of the thread names
+     */
+    public NamedDaemonThreadFactory(@Nonnull final String name) {
+        prefix = name;
+    }
+
+    /** {@inheritDoc} */
+    public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,405 @@
+/* ========================================================================
+ * Copyright (c) 2013 GTRI
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ========================================================================
+ */
+
+
+package net.gfipm.shibboleth.dataconnector;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-phase timing of a data connector's resolutions, emitted as Java Flight Recorder events and, optionally, as a
+ * sampled structured log line.
+ *
+ * Each resolution is broken down into dependency lookup, subject classification, cache lookup, query and attribute
+ * mapping, and reported with the connector id, the subject identifier type, where the result came from, its size and
+ * the outcome.  The principal itself is never recorded.
+ *
+ * The "net.gfipm.shibboleth.DataConnectorResolution" event is defined at run time through jdk.jfr.EventFactory, so
+ * the connectors still run on a JVM without Flight Recorder; there the events are simply not emitted.  Log lines go to
+ * the "net.gfipm.shibboleth.dataconnector.trace" logger at info level, for a sampled fraction of resolutions and for
+ * every resolution slower than the log threshold.
+ */
+@ThreadSafe
+public class ResolutionTracer {
+
+    /** Name of the Flight Recorder event. */
+    public static final String EVENT_NAME = "net.gfipm.shibboleth.DataConnectorResolution";
+
+    /** Name of the trace logger. */
+    public static final String LOGGER_NAME = "net.gfipm.shibboleth.dataconnector.trace";
+
+    /** Phases of a resolution. */
+    public enum Phase {
+        /** Reading the principal from the resolved dependencies. */
+        DEPENDENCIES,
+
+        /** Classifying the principal as a subject identifier. */
+        CLASSIFICATION,
+
+        /** Looking the subject up in the caches. */
+        CACHE,
+
+        /** Querying the attribute source, including any wait for a shared query, token or permit. */
+        QUERY,
+
+        /** Mapping the returned attributes. */
+        MAPPING
+    }
+
+    /** Names of the event fields, in the order they are set. */
+    private static final String[] FIELDS = {"connectorId", "subjectType", "source", "outcome", "attributeCount",
+        "dependencyTime", "classificationTime", "cacheTime", "queryTime", "mappingTime"};
+
+    /** Index of the first phase field. */
+    private static final int FIRST_PHASE_FIELD = 5;
+
+    /** Shared Flight Recorder bridge, null if Flight Recorder is not available. */
+    @Nullable private static final FlightRecorder RECORDER = FlightRecorder.create();
+
+    /** Trace logger. */
+    private final Logger traceLog = LoggerFactory.getLogger(LOGGER_NAME);
+
+    /** The connector id. */
+    private final String connectorId;
+
+    /** Fraction of resolutions logged. */
+    private final double logSampleRate;
+
+    /** Resolutions slower than this, in nanoseconds, are always logged, 0 to log only the sample. */
+    private final long logThreshold;
+
+    /**
+     * Constructor.
+     *
+     * @param id the connector id
+     * @param sampleRate fraction, from 0 to 1, of resolutions logged
+     * @param threshold resolutions slower than this, in milliseconds, are always logged, 0 for none
+     */
+    public ResolutionTracer(@Nonnull final String id, final double sampleRate, final long threshold) {
+        connectorId = id;
+        logSampleRate = sampleRate;
+        logThreshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+    }
+
+    /**
+     * Get whether resolutions are emitted as Flight Recorder events on this JVM.
+     *
+     * @return whether Flight Recorder is available
+     */
+    public static boolean isFlightRecorderAvailable() {
+        return RECORDER != null;
+    }
+
+    /**
+     * Start timing a resolution.  Time runs in the first phase until a phase is ended.  A Flight Recorder event is only
+     * created while a recording has the event enabled.
+     *
+     * @return the trace
+     */
+    @Nonnull public Trace start() {
+        return new Trace(RECORDER == null ? null : RECORDER.begin());
+    }
+
+    /**
+     * Finish a resolution, emitting its event and log line.
+     *
+     * @param trace the trace
+     * @param outcome "SUCCESS", "EMPTY" or "ERROR"
+     * @param attributeCount the number of attributes resolved
+     */
+    public void finish(@Nonnull final Trace trace, @Nonnull final String outcome, final int attributeCount) {
+        final long total = System.nanoTime() - trace.start;
+        final long[] phases = trace.phases.clone();
+        // Mapping runs inside the query, and is reported separately.
+        phases[Phase.QUERY.ordinal()] = Math.max(0, phases[Phase.QUERY.ordinal()] - phases[Phase.MAPPING.ordinal()]);
+
+        if (trace.event != null) {
+            final Object[] values = new Object[FIELDS.length];
+            values[0] = connectorId;
+            values[1] = trace.subjectType;
+            values[2] = trace.source;
+            values[3] = outcome;
+            values[4] = attributeCount;
+            for (int i = 0; i < phases.length; i++) {
+                values[FIRST_PHASE_FIELD + i] = phases[i];
+            }
+            RECORDER.commit(trace.event, values);
+        }
+
+        if ((logThreshold > 0 && total >= logThreshold)
+                || (logSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < logSampleRate)) {
+            traceLog.info("connector={} subjectType={} source={} outcome={} attributes={} totalUs={} "
+                    + "dependencyUs={} classificationUs={} cacheUs={} queryUs={} mappingUs={}", new Object[] {
+                        connectorId, trace.subjectType, trace.source, outcome, attributeCount, total / 1000,
+                        phases[0] / 1000, phases[1] / 1000, phases[2] / 1000, phases[3] / 1000, phases[4] / 1000});
+        }
+    }
+
+    /** Timing of one resolution.  Phases are ended on the resolving thread, mapping time may be added from another. */
+    public static final class Trace {
+
+        /** When the resolution started, from {@link System#nanoTime()}. */
+        private final long start;
+
+        /** When the last phase ended. */
+        private long mark;
+
+        /** Time spent in each phase, in nanoseconds. */
+        private final long[] phases = new long[Phase.values().length];
+
+        /** The Flight Recorder event, null if Flight Recorder is not available. */
+        @Nullable private final Object event;
+
+        /** The subject identifier type. */
+        @Nullable private String subjectType;
+
+        /** Where the result came from. */
+        @Nullable private String source;
+
+        /** Whether the attribute source failed and nothing could be answered in its place. */
+        private boolean failed;
+
+        /**
+         * Constructor.
+         *
+         * @param recorderEvent the begun Flight Recorder event, or null
+         */
+        private Trace(@Nullable final Object recorderEvent) {
+            event = recorderEvent;
+            start = System.nanoTime();
+            mark = start;
+        }
+
+        /**
+         * End a phase, charging it with the time since the previous phase ended.
+         *
+         * @param phase the phase
+         */
+        public void endPhase(@Nonnull final Phase phase) {
+            final long now = System.nanoTime();
+            phases[phase.ordinal()] += now - mark;
+            mark = now;
+        }
+
+        /**
+         * Charge a phase with time measured elsewhere.
+         *
+         * @param phase the phase
+         * @param nanos the time, in nanoseconds
+         */
+        public void addTime(@Nonnull final Phase phase, final long nanos) {
+            phases[phase.ordinal()] += nanos;
+        }
+
+        /**
+         * Set the type of the subject identifier.
+         *
+         * @param type the type, never the principal itself
+         */
+        public void setSubjectType(@Nullable final String type) {
+            subjectType = type;
+        }
+
+        /**
+         * Get the type of the subject identifier.
+         *
+         * @return the type, or null if not yet known
+         */
+        @Nullable public String getSubjectType() {
+            return subjectType;
+        }
+
+        /**
+         * Set where the result came from.
+         *
+         * @param resultSource the source, such as "cache" or "responder"
+         */
+        public void setSource(@Nullable final String resultSource) {
+            source = resultSource;
+        }
+
+        /** Mark the resolution as failed, though it still returns a (normally empty) result. */
+        public void setFailed() {
+            failed = true;
+        }
+
+        /**
+         * Get whether the resolution failed.
+         *
+         * @return whether the attribute source failed and nothing could be answered in its place
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+
+    /** Reflective bridge to jdk.jfr, whose event type is defined once and shared by every connector. */
+    private static final class FlightRecorder {
+
+        /** The event factory. */
+        private final Object factory;
+
+        /** The event type, from EventFactory.getEventType(). */
+        private final Object eventType;
+
+        /** EventType.isEnabled(). */
+        private final Method isEnabled;
+
+        /** EventFactory.newEvent(). */
+        private final Method newEvent;
+
+        /** Event.begin(). */
+        private final Method begin;
+
+        /** Event.end(). */
+        private final Method end;
+
+        /** Event.shouldCommit(). */
+        private final Method shouldCommit;
+
+        /** Event.set(int, Object). */
+        private final Method set;
+
+        /** Event.commit(). */
+        private final Method commit;
+
+        /**
+         * Constructor.
+         *
+         * @param eventFactory the event factory
+         * @throws ReflectiveOperationException if jdk.jfr does not have the expected methods
+         */
+        private FlightRecorder(@Nonnull final Object eventFactory) throws ReflectiveOperationException {
+            factory = eventFactory;
+            eventType = factory.getClass().getMethod("getEventType").invoke(factory);
+            isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+            newEvent = factory.getClass().getMethod("newEvent");
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            begin = eventClass.getMethod("begin");
+            end = eventClass.getMethod("end");
+            shouldCommit = eventClass.getMethod("shouldCommit");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            commit = eventClass.getMethod("commit");
+        }
+
+        /**
+         * Define the event type.
+         *
+         * @return the bridge, or null if Flight Recorder is not available
+         */
+        @Nullable static FlightRecorder create() {
+            try {
+                final Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+                final Constructor<?> annotation = element.getConstructor(Class.class, Object.class);
+                final Class<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor");
+                final Constructor<?> field = descriptor.getConstructor(Class.class, String.class, List.class);
+
+                final List<Object> eventAnnotations = new ArrayList<Object>();
+                eventAnnotations.add(annotation.newInstance(jfr("Name"), EVENT_NAME));
+                eventAnnotations.add(annotation.newInstance(jfr("Label"), "Data Connector Resolution"));
+                eventAnnotations.add(annotation.newInstance(jfr("Category"),
+                        new String[] {"GFIPM", "Attribute Resolution"}));
+                eventAnnotations.add(annotation.newInstance(jfr("Description"),
+                        "Attribute resolution by a GFIPM data connector, broken down by phase"));
+                eventAnnotations.add(annotation.newInstance(jfr("StackTrace"), Boolean.FALSE));
+
+                final Object timespan = annotation.newInstance(jfr("Timespan"), "NANOSECONDS");
+                final List<Object> fields = new ArrayList<Object>();
+                for (int i = 0; i < FIELDS.length; i++) {
+                    final Class<?> type = i < FIRST_PHASE_FIELD - 1 ? String.class
+                            : i == FIRST_PHASE_FIELD - 1 ? int.class : long.class;
+                    final List<Object> fieldAnnotations = i < FIRST_PHASE_FIELD
+                            ? Collections.<Object>emptyList() : Arrays.asList(timespan);
+                    fields.add(field.newInstance(type, FIELDS[i], fieldAnnotations));
+                }
+
+                final Method create = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class);
+                return new FlightRecorder(create.invoke(null, eventAnnotations, fields));
+            } catch (final ReflectiveOperationException | LinkageError | RuntimeException e) {
+                LoggerFactory.getLogger(ResolutionTracer.class).debug(
+                        "Flight Recorder is not available, resolution events are disabled: {}", e.toString());
+                return null;
+            }
+        }
+
+        /**
+         * Load a jdk.jfr annotation type.
+         *
+         * @param name the simple name of the annotation
+         * @return the annotation type
+         * @throws ClassNotFoundException if jdk.jfr is not available
+         */
+        @Nonnull private static Class<? extends Annotation> jfr(@Nonnull final String name)
+                throws ClassNotFoundException {
+            return Class.forName("jdk.jfr." + name).asSubclass(Annotation.class);
+        }
+
+        /**
+         * Create and begin an event, unless no recording has the event type enabled.
+         *
+         * @return the event, or null if it is not wanted or could not be created
+         */
+        @Nullable Object begin() {
+            try {
+                if (!Boolean.TRUE.equals(isEnabled.invoke(eventType))) {
+                    return null;
+                }
+                final Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return event;
+            } catch (final ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        /**
+         * End an event and commit it, if a recording wants it.
+         *
+         * @param event the event
+         * @param values the field values, in the order of the fields
+         */
+        void commit(@Nonnull final Object event, @Nonnull final Object[] values) {
+            try {
+                end.invoke(event);
+                if (Boolean.TRUE.equals(shouldCommit.invoke(event))) {
+                    for (int i = 0; i < values.length; i++) {
+                        set.invoke(event, i, values[i]);
+                    }
+                    commit.invoke(event);
+                }
+            } catch (final ReflectiveOperationException e) {
+                LoggerFactory.getLogger(ResolutionTracer.class).debug("Resolution event not committed: {}",
+                        e.toString());
+            }
+        }
+    }
+}